@@ -0,0 +1,211 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.entity.Schedulable;
+import jakarta.ejb.EJB;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Learns at which time of day the source of a harvester config publishes new
+ * files, and thins out the listings outside of that window.
+ * <p>
+ * Inside the learned window every fire time of the cron schedule is polled,
+ * outside of it only one fire time per HARVEST_ADAPTIVE_SPARSE_MINUTES, so
+ * files which arrive at an unusual time are still found, only later.
+ * Configs without a clear pattern are polled on every fire time.
+ */
+@ApplicationScoped
+public class AdaptivePolling {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptivePolling.class);
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    /** arrivals needed before a window is trusted */
+    static final int MIN_ARRIVALS = 5;
+    /** a window covering more than this is no pattern */
+    static final int MAX_WINDOW_MINUTES = 12 * 60;
+    static final Duration HISTORY = Duration.ofDays(28);
+    private static final Duration RELEARN_AFTER = Duration.ofHours(6);
+    private final Map<Integer, Learned> learned = new ConcurrentHashMap<>();
+    private final Map<Integer, Instant> lastListed = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> saved = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+    @EJB
+    HarvestArrivals harvestArrivals;
+    @Inject
+    @ConfigProperty(name = "TIMEZONE", defaultValue = "Europe/Copenhagen")
+    String timezone;
+    @Inject
+    @ConfigProperty(name = "HARVEST_ADAPTIVE_POLLING", defaultValue = "false")
+    boolean enabled;
+    @Inject
+    @ConfigProperty(name = "HARVEST_ADAPTIVE_SPARSE_MINUTES", defaultValue = "120")
+    int sparseMinutes;
+    @Inject
+    @ConfigProperty(name = "HARVEST_ADAPTIVE_MARGIN_MINUTES", defaultValue = "30")
+    int marginMinutes;
+
+    public AdaptivePolling() {
+    }
+
+    public AdaptivePolling(HarvestArrivals harvestArrivals, String timezone, int sparseMinutes, int marginMinutes, Clock clock) {
+        this.harvestArrivals = harvestArrivals;
+        this.timezone = timezone;
+        this.enabled = true;
+        this.sparseMinutes = sparseMinutes;
+        this.marginMinutes = marginMinutes;
+        this.clock = clock;
+    }
+
+    /**
+     * Decides whether a scheduled fire time of a config should list the source.
+     * Only looks, the listing is recorded by {@link #listed} once it has run.
+     * @param config harvester config
+     * @param fireTime scheduled fire time
+     * @return false if no files are expected at the fire time, and the source was listed recently
+     */
+    public boolean shouldPoll(Schedulable config, Instant fireTime) {
+        if (!enabled) return true;
+        Window window = windowOf(config.getId());
+        Instant last = lastListed.get(config.getId());
+        return window == null || window.contains(minuteOfDay(fireTime))
+                || last == null || !fireTime.isBefore(last.plus(Duration.ofMinutes(sparseMinutes)));
+    }
+
+    /**
+     * Records that a fire time of a config was passed over without listing the source
+     * @param configId harvester config id
+     */
+    public void skipped(int configId) {
+        saved.computeIfAbsent(configId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Records that the source of a config was listed
+     * @param configId harvester config id
+     * @param listedAt time of the listing
+     */
+    public void listed(int configId, Instant listedAt) {
+        lastListed.merge(configId, listedAt, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * Records that a harvest of a config found new files
+     * @param configId harvester config id
+     * @param bytes total size of the files, null if unknown
+     */
+    public void arrived(int configId, Long bytes) {
+        Instant now = clock.instant();
+        harvestArrivals.record(configId, now, bytes, now.minus(HISTORY));
+        learned.remove(configId);
+    }
+
+    /**
+     * @return learned window and number of saved listings per config
+     */
+    public Map<Integer, Map<String, Object>> getStatus() {
+        Map<Integer, Map<String, Object>> status = new TreeMap<>();
+        learned.forEach((id, l) -> {
+            Map<String, Object> config = new LinkedHashMap<>();
+            config.put("window", l.window == null ? null : l.window.toString());
+            AtomicLong count = saved.get(id);
+            config.put("listingsSaved", count == null ? 0 : count.get());
+            status.put(id, config);
+        });
+        return status;
+    }
+
+    Window windowOf(int configId) {
+        Instant now = clock.instant();
+        Learned current = learned.get(configId);
+        if (current != null && now.isBefore(current.learnedAt.plus(RELEARN_AFTER))) return current.window;
+        Window window = null;
+        try {
+            window = learn(harvestArrivals.since(configId, now.minus(HISTORY)));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to learn the arrival window of harvester {}", configId, e);
+        }
+        learned.put(configId, new Learned(window, now));
+        return window;
+    }
+
+    /**
+     * Finds the shortest time of day window containing all arrivals, which
+     * is the day minus the longest gap between two arrivals, widened by the margin
+     * @param arrivals times new files were found
+     * @return window, or null if there are too few arrivals or they are spread over the day
+     */
+    Window learn(List<Instant> arrivals) {
+        if (arrivals.size() < MIN_ARRIVALS) return null;
+        int[] minutes = arrivals.stream().mapToInt(this::minuteOfDay).sorted().distinct().toArray();
+        int gapStart = minutes.length - 1;
+        int longestGap = minutes[0] + MINUTES_PER_DAY - minutes[minutes.length - 1];
+        for (int i = 0; i < minutes.length - 1; i++) {
+            int gap = minutes[i + 1] - minutes[i];
+            if (gap > longestGap) {
+                longestGap = gap;
+                gapStart = i;
+            }
+        }
+        int length = MINUTES_PER_DAY - longestGap + 2 * marginMinutes;
+        if (length > MAX_WINDOW_MINUTES) return null;
+        int start = Math.floorMod(minutes[(gapStart + 1) % minutes.length] - marginMinutes, MINUTES_PER_DAY);
+        return new Window(start, length);
+    }
+
+    private int minuteOfDay(Instant instant) {
+        ZonedDateTime time = instant.atZone(ZoneId.of(timezone));
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    /**
+     * Time of day window, which may wrap around midnight
+     */
+    static class Window {
+        private final int start;
+        private final int length;
+
+        Window(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        boolean contains(int minuteOfDay) {
+            return Math.floorMod(minuteOfDay - start, MINUTES_PER_DAY) <= length;
+        }
+
+        @Override
+        public String toString() {
+            int end = (start + length) % MINUTES_PER_DAY;
+            return String.format("%02d:%02d-%02d:%02d", start / 60, start % 60, end / 60, end % 60);
+        }
+    }
+
+    private static class Learned {
+        private final Window window;
+        private final Instant learnedAt;
+
+        private Learned(Window window, Instant learnedAt) {
+            this.window = window;
+            this.learnedAt = learnedAt;
+        }
+    }
+}
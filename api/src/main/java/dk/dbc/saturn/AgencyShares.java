@@ -0,0 +1,313 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Shares the harvest slots and the transfer bandwidth between the agencies
+ * the harvester configs belong to, so a single agency with many configs or
+ * large files cannot starve the others.
+ * <p>
+ * Every agency has a weight, 1 unless configured otherwise. A free harvest
+ * slot goes to the agency with the fewest running harvests relative to its
+ * weight, see {@link FairShareQueue}. When a total bandwidth is configured,
+ * it is divided between the agencies which are transferring files, by weight.
+ * On top of that an agency can have hard quotas on its number of running
+ * harvests and on the number of bytes it transfers per hour. An agency over
+ * its byte quota finishes its running harvests, but starts no new ones until
+ * the next hour.
+ * <p>
+ * All of this is kept in memory, so the quotas and the bandwidth apply to
+ * each instance on its own. With N instances sharing the configs through
+ * {@link HarvestLeases}, an agency may run N times its running quota and
+ * transfer N times its byte quota.
+ */
+@ApplicationScoped
+public class AgencyShares {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgencyShares.class);
+    static final String UNKNOWN = "unknown";
+    /** the amount of transfer time an agency may read ahead before it is paced */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private final Map<String, Usage> usages = new ConcurrentHashMap<>();
+    private final Map<String, Integer> weights = new HashMap<>();
+    private final Map<String, Integer> maxRunning = new HashMap<>();
+    private final Map<String, Long> maxBytesPerHour = new HashMap<>();
+    /** sum of the weights of the agencies which are transferring files */
+    private int transferringWeight = 0;
+    private Clock clock = Clock.systemUTC();
+    @Inject
+    MetricRegistry metricRegistry;
+    @Inject
+    @ConfigProperty(name = "HARVEST_AGENCY_WEIGHTS", defaultValue = "")
+    Set<String> agencyWeights;
+    @Inject
+    @ConfigProperty(name = "HARVEST_AGENCY_MAX_RUNNING", defaultValue = "")
+    Set<String> agencyMaxRunning;
+    @Inject
+    @ConfigProperty(name = "HARVEST_AGENCY_MAX_BYTES_PER_HOUR", defaultValue = "")
+    Set<String> agencyMaxBytesPerHour;
+    @Inject
+    @ConfigProperty(name = "HARVEST_BANDWIDTH_BYTES_PER_SECOND", defaultValue = "0")
+    long bandwidth;
+
+    public AgencyShares() {
+    }
+
+    public AgencyShares(Map<String, Integer> weights, Map<String, Integer> maxRunning, Map<String, Long> maxBytesPerHour,
+                        long bandwidth, Clock clock, MetricRegistry metricRegistry) {
+        weights.forEach((agency, weight) -> this.weights.put(key(agency), weight));
+        maxRunning.forEach((agency, limit) -> this.maxRunning.put(key(agency), limit));
+        maxBytesPerHour.forEach((agency, limit) -> this.maxBytesPerHour.put(key(agency), limit));
+        this.bandwidth = bandwidth;
+        this.clock = clock;
+        this.metricRegistry = metricRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        parse(agencyWeights, weights, Integer::parseInt);
+        parse(agencyMaxRunning, maxRunning, Integer::parseInt);
+        parse(agencyMaxBytesPerHour, maxBytesPerHour, Long::parseLong);
+        LOGGER.info("Agency weights {}, running harvest quotas {}, hourly byte quotas {}, bandwidth {} bytes/s, all per instance",
+                weights, maxRunning, maxBytesPerHour, bandwidth);
+    }
+
+    /**
+     * @param agency agency of a harvester config
+     * @return running harvests of the agency relative to its weight, a free slot goes to the lowest share
+     */
+    public double share(String agency) {
+        Usage usage = usage(agency);
+        return (double) usage.running / usage.weight;
+    }
+
+    /**
+     * @param agency agency of a harvester config
+     * @return false if the agency has reached one of its quotas
+     */
+    public boolean mayStart(String agency) {
+        Usage usage = usage(agency);
+        boolean held = usage.running >= maxRunning.getOrDefault(usage.agency, Integer.MAX_VALUE)
+                || usage.bytesThisHour(clock.instant()) >= maxBytesPerHour.getOrDefault(usage.agency, Long.MAX_VALUE);
+        usage.held = held;
+        return !held;
+    }
+
+    public void queued(String agency) {
+        usage(agency).queued++;
+    }
+
+    public void started(String agency) {
+        Usage usage = usage(agency);
+        usage.queued--;
+        usage.running++;
+    }
+
+    public void finished(String agency) {
+        usage(agency).running--;
+    }
+
+    /**
+     * Accounts the bytes read through a stream to an agency, and paces the
+     * reads to the share of the agency of the bandwidth
+     * @param agency agency of a harvester config, the stream is returned as is if null
+     * @param inputStream stream of a file being transferred
+     * @return metered stream
+     */
+    public InputStream meter(String agency, InputStream inputStream) {
+        if (agency == null) return inputStream;
+        return new MeteredInputStream(usage(agency), inputStream);
+    }
+
+    /**
+     * @return weight, running and queued harvests, bytes transferred this hour and quotas per agency
+     */
+    public Map<String, Map<String, Object>> getStatus() {
+        Instant now = clock.instant();
+        Map<String, Map<String, Object>> status = new TreeMap<>();
+        usages.forEach((agency, usage) -> {
+            Map<String, Object> agencyStatus = new LinkedHashMap<>();
+            agencyStatus.put("weight", usage.weight);
+            agencyStatus.put("running", usage.running);
+            agencyStatus.put("queued", usage.queued);
+            agencyStatus.put("bytesThisHour", usage.bytesThisHour(now));
+            agencyStatus.put("maxRunning", maxRunning.get(agency));
+            agencyStatus.put("maxBytesPerHour", maxBytesPerHour.get(agency));
+            agencyStatus.put("held", usage.held);
+            status.put(agency, agencyStatus);
+        });
+        return status;
+    }
+
+    private Usage usage(String agency) {
+        return usages.computeIfAbsent(key(agency), k -> {
+            Usage usage = new Usage(k, Math.max(weights.getOrDefault(k, 1), 1));
+            Tag tag = new Tag("agency", k);
+            metricRegistry.gauge("harvest_agency_running", () -> usage.running, tag);
+            metricRegistry.gauge("harvest_agency_queued", () -> usage.queued, tag);
+            metricRegistry.gauge("harvest_agency_held", () -> usage.held ? 1 : 0, tag);
+            metricRegistry.gauge("harvest_agency_bytes_this_hour", () -> usage.bytesThisHour(clock.instant()), tag);
+            usage.bytes = metricRegistry.counter("harvest_agency_bytes", tag);
+            return usage;
+        });
+    }
+
+    private synchronized void transferStarted(Usage usage) {
+        if (usage.transfers++ == 0) transferringWeight += usage.weight;
+    }
+
+    private synchronized void transferDone(Usage usage) {
+        if (--usage.transfers == 0) transferringWeight -= usage.weight;
+    }
+
+    /**
+     * Reserves the transfer time of a number of bytes at the share of the
+     * agency of the bandwidth, and waits if the agency is too far ahead
+     */
+    private void pace(Usage usage, int bytes) throws InterruptedIOException {
+        if (bandwidth <= 0) return;
+        int weight;
+        synchronized (this) {
+            weight = Math.max(transferringWeight, usage.weight);
+        }
+        double rate = (double) bandwidth * usage.weight / weight;
+        long delay = usage.reserve((long) (bytes * TimeUnit.SECONDS.toNanos(1) / rate), System.nanoTime());
+        if (delay <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing transfer of agency " + usage.agency);
+        }
+    }
+
+    private static <V> void parse(Set<String> settings, Map<String, V> values, Function<String, V> parser) {
+        if (settings == null) return;
+        for (String setting : settings) {
+            String[] parts = setting.split("=");
+            try {
+                values.put(key(parts[0]), parser.apply(parts[1].trim()));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ignoring invalid agency setting \"{}\"", setting);
+            }
+        }
+    }
+
+    private static String key(String agency) {
+        return agency == null || agency.isBlank() ? UNKNOWN : agency.trim();
+    }
+
+    private static class Usage {
+        private final String agency;
+        private final int weight;
+        // running and queued are only changed by the FairShareQueue, under its lock
+        private volatile int running = 0;
+        private volatile int queued = 0;
+        private volatile boolean held = false;
+        private int transfers = 0;
+        private Counter bytes;
+        private Instant hour = Instant.EPOCH;
+        private long bytesThisHour = 0;
+        /** the time the transfers of the agency have used up their share of the bandwidth until */
+        private long pacedUntil = Long.MIN_VALUE;
+
+        private Usage(String agency, int weight) {
+            this.agency = agency;
+            this.weight = weight;
+        }
+
+        private synchronized void transferred(int count, Instant now) {
+            bytesThisHour(now);
+            bytesThisHour += count;
+            bytes.inc(count);
+        }
+
+        private synchronized long bytesThisHour(Instant now) {
+            Instant current = now.truncatedTo(ChronoUnit.HOURS);
+            if (!current.equals(hour)) {
+                hour = current;
+                bytesThisHour = 0;
+            }
+            return bytesThisHour;
+        }
+
+        /**
+         * @return nanoseconds to wait before the transfer may continue
+         */
+        private synchronized long reserve(long nanos, long now) {
+            // unused share does not accumulate beyond the burst
+            pacedUntil = Math.max(pacedUntil, now - BURST_NANOS) + nanos;
+            return pacedUntil - now;
+        }
+    }
+
+    private class MeteredInputStream extends FilterInputStream {
+        private final Usage usage;
+        private boolean closed = false;
+
+        private MeteredInputStream(Usage usage, InputStream in) {
+            super(in);
+            this.usage = usage;
+            transferStarted(usage);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) transferred(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) transferred(count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    transferDone(usage);
+                }
+            }
+        }
+
+        private void transferred(int count) throws InterruptedIOException {
+            usage.transferred(count, clock.instant());
+            pace(usage, count);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.eclipse.microprofile.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a source stream ahead on a thread of its own, into a fixed number of
+ * buffers which are handed to the reader of this stream and back again, so
+ * the source and the sink of a transfer do not take turns waiting for each
+ * other.
+ * <p>
+ * The time the reading thread waits for a free buffer is a stall of the sink,
+ * and the time the reader of this stream waits for a filled buffer is a stall
+ * of the source. Closing this stream stops the reading thread and waits for it,
+ * so the source is not read after that, and the caller closes the source, and
+ * releases the connection it came from, once. Only a reading thread which is
+ * stuck in a read of the source for longer than {@link #STOP_TIMEOUT} has the
+ * source closed under it, which is the only way to unblock the read.
+ */
+public class BufferRing extends InputStream {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BufferRing.class);
+    static final Duration STOP_TIMEOUT = Duration.ofSeconds(10);
+    private static final Chunk END = new Chunk(null, -1, null);
+    private final InputStream source;
+    private final BlockingQueue<byte[]> free;
+    // never holds more chunks than there are buffers, plus the end or a failure
+    private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+    private final Timer sourceStall;
+    private final Timer sinkStall;
+    private final Thread reader;
+    private volatile boolean closed = false;
+    private Chunk current = null;
+    private int position = 0;
+
+    /**
+     * @param source stream to read ahead
+     * @param buffers number of buffers
+     * @param bufferSize size of each buffer
+     * @param threadFactory factory for the reading thread
+     * @param sourceStall updated with the time spent waiting for the source
+     * @param sinkStall updated with the time the source spent waiting for the sink
+     */
+    public BufferRing(InputStream source, int buffers, int bufferSize, ThreadFactory threadFactory, Timer sourceStall, Timer sinkStall) {
+        this.source = source;
+        this.sourceStall = sourceStall;
+        this.sinkStall = sinkStall;
+        free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        reader = threadFactory.newThread(this::fill);
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (current == null || current != END && position == current.length) {
+            if (current != null) free.offer(current.bytes);
+            current = next();
+            position = 0;
+        }
+        if (current == END) return -1;
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.bytes, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        reader.interrupt();
+        if (awaitReader(STOP_TIMEOUT)) return;
+        LOGGER.warn("Reading thread is stuck in a read of its source, closing the source under it");
+        source.close();
+        if (!awaitReader(STOP_TIMEOUT)) LOGGER.warn("Reading thread did not stop after its source was closed");
+    }
+
+    /**
+     * @return true if the reading thread has ended, false if the wait timed out
+     */
+    private boolean awaitReader(Duration timeout) {
+        // the closing thread may be interrupted by an abort, which must not cut the wait short
+        boolean interrupted = Thread.interrupted();
+        try {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            while (reader.isAlive()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedJoin(reader, left);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private Chunk next() throws IOException {
+        try {
+            Chunk chunk = take(filled, sourceStall);
+            if (chunk.failure != null) {
+                current = END;
+                throw new IOException("Reading from source failed", chunk.failure);
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for source");
+        }
+    }
+
+    private void fill() {
+        try {
+            while (!closed) {
+                byte[] buffer = take(free, sinkStall);
+                int length = source.readNBytes(buffer, 0, buffer.length);
+                if (length > 0) filled.add(new Chunk(buffer, length, null));
+                if (length < buffer.length) {
+                    filled.add(END);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            if (!closed) filled.add(new Chunk(null, 0, e));
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue, Timer stall) throws InterruptedException {
+        T item = queue.poll();
+        if (item != null) return item;
+        long start = System.nanoTime();
+        item = queue.take();
+        stall.update(Duration.ofNanos(System.nanoTime() - start));
+        return item;
+    }
+
+    private static class Chunk {
+        private final byte[] bytes;
+        private final int length;
+        private final Exception failure;
+
+        private Chunk(byte[] bytes, int length, Exception failure) {
+            this.bytes = bytes;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dbc.saturn.HarvestLanes.Lane;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Holds harvest tasks back until the {@link HarvestExecutor} has a free slot.
+ * <p>
+ * A free slot goes to the lane of the highest priority with a waiting task,
+ * see {@link HarvestLanes}, unless the lanes of its priority and lower are
+ * already using all slots except those reserved for lanes of higher priority.
+ * Within the lane it goes to the task of the agency with the smallest weighted
+ * share of the running harvests, among the agencies which have not reached a
+ * quota, see {@link AgencyShares}. The tasks of an agency start in the order
+ * they were submitted, and ties between agencies go to the oldest task.
+ */
+public class FairShareQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FairShareQueue.class);
+    private final HarvestExecutor executor;
+    private final AgencyShares agencyShares;
+    private final HarvestLanes harvestLanes;
+    private final Map<Lane, Map<String, Deque<Task>>> queues = new EnumMap<>(Lane.class);
+    private final int[] queued = new int[Lane.values().length];
+    private final int[] running = new int[Lane.values().length];
+    private long sequence = 0;
+
+    public FairShareQueue(HarvestExecutor executor, AgencyShares agencyShares, HarvestLanes harvestLanes) {
+        this.executor = executor;
+        this.agencyShares = agencyShares;
+        this.harvestLanes = harvestLanes;
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new HashMap<>());
+        }
+    }
+
+    /**
+     * Queues a task, and starts it right away if there is a free slot
+     * @param lane lane of the harvest
+     * @param agency agency of the harvester config
+     * @param task harvest task
+     */
+    public synchronized void submit(Lane lane, String agency, Runnable task) {
+        String key = agency == null ? AgencyShares.UNKNOWN : agency;
+        queues.get(lane).computeIfAbsent(key, k -> new ArrayDeque<>()).add(new Task(lane, key, task, sequence++));
+        queued[lane.ordinal()]++;
+        agencyShares.queued(key);
+        drain();
+    }
+
+    /**
+     * Starts queued tasks while there are free slots, called whenever a task
+     * finishes, the concurrency changes, or a quota may have been lifted
+     */
+    public synchronized void drain() {
+        int concurrency = executor.getConcurrency();
+        while (getRunning() < concurrency) {
+            Task task = next(concurrency);
+            if (task == null) return;
+            queued[task.lane.ordinal()]--;
+            running[task.lane.ordinal()]++;
+            agencyShares.started(task.agency);
+            try {
+                executor.submit(() -> {
+                    try {
+                        task.runnable.run();
+                    } finally {
+                        finished(task);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // only happens while shutting down
+                LOGGER.warn("Harvest executor rejected task of agency {}", task.agency);
+                running[task.lane.ordinal()]--;
+                agencyShares.finished(task.agency);
+                return;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (int count : queued) size += count;
+        return size;
+    }
+
+    public synchronized int size(Lane lane) {
+        return queued[lane.ordinal()];
+    }
+
+    public synchronized int getRunning() {
+        int count = 0;
+        for (int lane : running) count += lane;
+        return count;
+    }
+
+    public synchronized int getRunning(Lane lane) {
+        return running[lane.ordinal()];
+    }
+
+    private synchronized void finished(Task task) {
+        running[task.lane.ordinal()]--;
+        agencyShares.finished(task.agency);
+        drain();
+    }
+
+    private Task next(int concurrency) {
+        // slots reserved for lanes of higher priority than the lane at hand
+        int reserved = 0;
+        // running harvests of the lane at hand and lanes of lower priority
+        int runningFrom = getRunning();
+        boolean full = false;
+        for (Lane lane : Lane.values()) {
+            // a lane which may not start more harvests blocks the lanes below
+            // it too, or they would take the slots it reserves for the lanes above.
+            // Reservations which do not fit the concurrency are refused by
+            // HarvestLanes.checkReservations, and logged at startup, a lane
+            // below them still gets one slot so it is not starved
+            full |= runningFrom >= Math.max(concurrency - reserved, 1);
+            if (!full) {
+                Task task = next(lane);
+                if (task != null) return task;
+            }
+            reserved += harvestLanes.getReserved(lane);
+            runningFrom -= running[lane.ordinal()];
+        }
+        return null;
+    }
+
+    private Task next(Lane lane) {
+        Map<String, Deque<Task>> agencies = queues.get(lane);
+        Task next = null;
+        double nextShare = 0;
+        for (Deque<Task> tasks : agencies.values()) {
+            Task head = tasks.peek();
+            if (head == null || !agencyShares.mayStart(head.agency)) continue;
+            double share = agencyShares.share(head.agency);
+            if (next == null || share < nextShare || share == nextShare && head.sequence < next.sequence) {
+                next = head;
+                nextShare = share;
+            }
+        }
+        if (next != null) {
+            Deque<Task> tasks = agencies.get(next.agency);
+            tasks.poll();
+            if (tasks.isEmpty()) agencies.remove(next.agency);
+        }
+        return next;
+    }
+
+    private static class Task {
+        private final Lane lane;
+        private final String agency;
+        private final Runnable runnable;
+        private final long sequence;
+
+        private Task(Lane lane, String agency, Runnable runnable, long sequence) {
+            this.lane = lane;
+            this.agency = agency;
+            this.runnable = runnable;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -26,5 +26,12 @@ public interface FileHarvest {
      default boolean isResumable() {
           return false;
      }
+
+     /**
+      * @return true if the content can be fetched while other files of the same harvest are being fetched
+      */
+     default boolean isConcurrent() {
+          return false;
+     }
      void close();
 }
@@ -3,11 +3,16 @@ package dk.dbc.saturn;
 import dk.dbc.ftp.FtpClient;
 import dk.dbc.proxy.ProxyBean;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class FtpClientFactory {
@@ -47,6 +52,70 @@ public class FtpClientFactory {
         return ftpClient;
     }
 
+    /**
+     * Connects and logs in a client which can start a download part way into
+     * a file, using the REST command, which the client of createFtpClient cannot
+     * @param config harvester config
+     * @param proxyBean proxy to connect through, if it has a host
+     * @return client in binary and passive mode, in the home directory of the user
+     * @throws IOException if the client could not connect or log in
+     */
+    public static FTPClient createResumingFtpClient(FtpHarvesterConfig config, ProxyBean proxyBean) throws IOException {
+        FTPClient ftpClient = new FTPClient();
+        if (proxyBean != null && proxyBean.getProxyHostname() != null &&
+                proxyBean.getProxyPort() != 0) {
+            ftpClient.setProxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(
+                    proxyBean.getProxyHostname(), proxyBean.getProxyPort())));
+        }
+        try {
+            ftpClient.connect(config.getHost(), config.getPort());
+            if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
+                throw new IOException("Connection refused by " + config.getHost() + ": " + ftpClient.getReplyString().trim());
+            }
+            if (!ftpClient.login(config.getUsername(), config.getPassword())) {
+                throw new IOException("Login to " + config.getHost() + " failed: " + ftpClient.getReplyString().trim());
+            }
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            ftpClient.enterLocalPassiveMode();
+            return ftpClient;
+        } catch (IOException | RuntimeException e) {
+            if (ftpClient.isConnected()) {
+                ftpClient.disconnect();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens connections for resuming downloads. Whether the server can start a
+     * download part way into a file is asked on the first connection opened,
+     * which is taken under a permit of the host like any transfer, instead of
+     * on a session of its own while the listing connection is open
+     * @param config harvester config
+     * @param proxyBean proxy to connect through, if it has a host
+     * @return connector shared by the files of a listing
+     */
+    public static FtpFileHarvest.ResumeConnector createResumeConnector(FtpHarvesterConfig config, ProxyBean proxyBean) {
+        AtomicReference<Boolean> supported = new AtomicReference<>();
+        return new FtpFileHarvest.ResumeConnector() {
+            @Override
+            public FTPClient connect() throws IOException {
+                return createResumingFtpClient(config, proxyBean);
+            }
+
+            @Override
+            public boolean supportsResume(FTPClient ftpClient) throws IOException {
+                Boolean known = supported.get();
+                if (known == null) {
+                    known = ftpClient.hasFeature("REST");
+                    supported.set(known);
+                    if (!known) LOGGER.info("{} does not list REST among its features, downloads are not resumed", config.getHost());
+                }
+                return known;
+            }
+        };
+    }
+
     public static FtpClient createFtpClient( String host, int port,
                                              String username, String password, String dir,
                                              ProxyBean proxyBean ) {
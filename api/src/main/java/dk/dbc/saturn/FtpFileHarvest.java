@@ -2,11 +2,20 @@ package dk.dbc.saturn;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import dk.dbc.ftp.FtpClient;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class FtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FtpFileHarvest.class);
     private String filename;
     private final Integer seqno;
     private FtpClient ftpClient;
@@ -14,6 +23,9 @@ public class FtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
     private final FileHarvest.Status status;
     private final Number size;
     private final AtomicReference<ByteCountingInputStream> countingInputStream = new AtomicReference<>();
+    private Supplier<FtpClient> connector;
+    private volatile ResumeConnector resumeConnector;
+    private long resumePoint = 0;
 
     public FtpFileHarvest(String dir, String filename, Integer seqno, FtpClient ftpClient, FileHarvest.Status status, Number size) {
         this.filename = filename;
@@ -24,6 +36,31 @@ public class FtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
         this.size = size;
     }
 
+    /**
+     * Lets the file be fetched over a connection of its own, instead of the
+     * connection it was listed with, so it can be fetched at the same time
+     * as other files of the harvest
+     * @param connector opens a new connection to the source
+     * @return this file
+     */
+    public FtpFileHarvest withConnector(Supplier<FtpClient> connector) {
+        this.connector = connector;
+        return this;
+    }
+
+    /**
+     * Lets a transfer of the file which broke off be resumed where it broke
+     * off. The file is fetched over a connection of its own. If the server
+     * turns out not to support the REST command, or to reject it anyway, the
+     * file is no longer resumable, and must be fetched from the start.
+     * @param resumeConnector opens a new connection to the source
+     * @return this file
+     */
+    public FtpFileHarvest withResumeConnector(ResumeConnector resumeConnector) {
+        this.resumeConnector = resumeConnector;
+        return this;
+    }
+
     @Override
     public String getFilename() {
         return filename;
@@ -47,15 +84,122 @@ public class FtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
 
     @Override
     @JsonIgnore
-    public ByteCountingInputStream getContent() {
-        if (!dir.isEmpty()) {
-            ftpClient.cd(dir);
+    public ByteCountingInputStream getContent() throws HarvestException {
+        InputStream content;
+        if (resumeConnector != null) {
+            content = getResumed();
+        } else {
+            content = connector == null ? get(ftpClient) : getConnected();
         }
-        ByteCountingInputStream stream = new ByteCountingInputStream(ftpClient.get(filename, FtpClient.FileType.BINARY));
+        ByteCountingInputStream stream = new ByteCountingInputStream(content);
         countingInputStream.set(stream);
         return stream;
     }
 
+    @Override
+    public void setResumePoint(long resumePoint) {
+        this.resumePoint = resumePoint;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return resumeConnector != null;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return connector != null;
+    }
+
+    private InputStream get(FtpClient client) {
+        if (!dir.isEmpty()) {
+            client.cd(dir);
+        }
+        return client.get(filename, FtpClient.FileType.BINARY);
+    }
+
+    /**
+     * Fetches the file over a new connection, which is closed with the stream
+     */
+    private InputStream getConnected() {
+        FtpClient client = connector.get();
+        try {
+            return new FilterInputStream(get(client)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        client.close();
+                    }
+                }
+            };
+        } catch (RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches the file from the resume point on, over a new connection which
+     * is closed with the stream
+     */
+    private InputStream getResumed() throws HarvestException {
+        ResumeConnector resume = resumeConnector;
+        FTPClient client = null;
+        try {
+            client = resume.connect();
+            if (!resume.supportsResume(client)) {
+                resumeConnector = null;
+                // a download from the start needs no REST, and goes on over this connection
+                if (resumePoint > 0) throw new IOException("Server does not support the REST command");
+            }
+            if (!dir.isEmpty() && !client.changeWorkingDirectory(dir)) {
+                throw new IOException("Unable to change directory to " + dir + ": " + client.getReplyString().trim());
+            }
+            if (resumePoint > 0) client.setRestartOffset(resumePoint);
+            InputStream is = client.retrieveFileStream(filename);
+            if (is == null) {
+                if (resumePoint > 0 && isRejected(client.getReplyCode())) {
+                    LOGGER.warn("Server rejected resuming {} at byte {}, the file must be fetched from the start", filename, resumePoint);
+                    resumeConnector = null;
+                }
+                throw new IOException(client.getReplyString().trim());
+            }
+            FTPClient connected = client;
+            return new FilterInputStream(is) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        disconnect(connected);
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            disconnect(client);
+            throw new HarvestException(String.format("Unable to resume %s at byte %d", filename, resumePoint), e);
+        }
+    }
+
+    /**
+     * @return true if the reply code means that the REST command is not supported, as opposed to a failing download
+     */
+    private static boolean isRejected(int replyCode) {
+        return replyCode == FTPReply.UNRECOGNIZED_COMMAND || replyCode == FTPReply.SYNTAX_ERROR_IN_ARGUMENTS
+                || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED_FOR_PARAMETER;
+    }
+
+    private static void disconnect(FTPClient client) {
+        if (client == null || !client.isConnected()) return;
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            // the connection is discarded either way
+        }
+    }
+
     @Override
     public Integer getSeqno() {
         return seqno;
@@ -112,4 +256,19 @@ public class FtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
     public int compareTo(FileHarvest other) {
         return filename.compareTo(other.getFilename());
     }
+
+    /**
+     * Opens a connection a file can be resumed over
+     */
+    public interface ResumeConnector {
+        FTPClient connect() throws IOException;
+
+        /**
+         * @param ftpClient connection opened by this connector
+         * @return true if the server can start a download part way into a file
+         */
+        default boolean supportsResume(FTPClient ftpClient) throws IOException {
+            return true;
+        }
+    }
 }
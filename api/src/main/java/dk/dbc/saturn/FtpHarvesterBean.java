@@ -7,6 +7,7 @@ package dk.dbc.saturn;
 
 import dk.dbc.ftp.FtpClient;
 import dk.dbc.proxy.ProxyBean;
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
 import dk.dbc.util.Stopwatch;
 import jakarta.ejb.EJB;
@@ -14,20 +15,28 @@ import jakarta.ejb.LocalBean;
 import jakarta.ejb.Stateless;
 import jakarta.ejb.TransactionAttribute;
 import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @LocalBean
 @Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class FtpHarvesterBean extends Harvester<FtpHarvesterConfig> {
     private static final Logger LOGGER = LoggerFactory.getLogger(FtpHarvesterBean.class);
     @EJB
     ProxyBean proxyBean;
+    @Inject
+    @ConfigProperty(name = "HARVEST_FTP_RESUME", defaultValue = "false")
+    boolean resumeTransfers;
 
     public Set<FileHarvest> listFiles( FtpHarvesterConfig ftpHarvesterConfig ) {
         final SeqnoMatcher seqnoMatcher = new SeqnoMatcher( ftpHarvesterConfig );
@@ -40,8 +49,11 @@ public class FtpHarvesterBean extends Harvester<FtpHarvesterConfig> {
                 ftpHarvesterConfig.getDir(),
                 fileNameMatcher.getPattern());
         Set<FileHarvest> fileHarvests = new HashSet<>();
-        FtpClient ftpClient = FtpClientFactory.createFtpClient( ftpHarvesterConfig, proxyBean);
+        // files transferred in parallel each need a connection of their own
+        Supplier<FtpClient> connector = transfersInParallel(ftpHarvesterConfig) ? () -> login(ftpHarvesterConfig) : null;
+        FtpClient ftpClient = connect(ftpHarvesterConfig);
         String workingDirectory = ftpClient.pwd();
+        FtpFileHarvest.ResumeConnector resumeConnector = resumeConnector(ftpHarvesterConfig);
         for (String file : ftpClient.list(fileNameMatcher)) {
             if (file != null && !file.isEmpty()) {
                 /*
@@ -58,7 +70,9 @@ public class FtpHarvesterBean extends Harvester<FtpHarvesterConfig> {
                             file,
                             seqnoMatcher.getSeqno(),
                             ftpClient,
-                            FileHarvest.Status.AWAITING_DOWNLOAD, fileNameMatcher.getFileSize(filename));
+                            FileHarvest.Status.AWAITING_DOWNLOAD, fileNameMatcher.getFileSize(filename))
+                            .withConnector(connector)
+                            .withResumeConnector(resumeConnector);
                     fileHarvests.add(fileHarvest);
                 }
             }
@@ -72,7 +86,6 @@ public class FtpHarvesterBean extends Harvester<FtpHarvesterConfig> {
         return fileHarvests;
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Set<FileHarvest> listAllFiles(FtpHarvesterConfig ftpHarvesterConfig) {
         final SeqnoMatcher seqnoMatcher = new SeqnoMatcher(ftpHarvesterConfig);
         final FileNameMatcher fileNameMatcher = new FileNameMatcher(ftpHarvesterConfig.getFilesPattern());
@@ -109,4 +122,37 @@ public class FtpHarvesterBean extends Harvester<FtpHarvesterConfig> {
             ftpClient.close();
         }
     }
+
+    @Override
+    protected void warm(FtpHarvesterConfig ftpHarvesterConfig, Instant due, HostPermits.Permit permit) {
+        warmConnections.warm(ftpHarvesterConfig.getId(), HarvesterType.FTP, due, permit,
+                () -> login(ftpHarvesterConfig), FtpClient::close);
+    }
+
+    private FtpClient connect(FtpHarvesterConfig ftpHarvesterConfig) {
+        // the server may have dropped an idle connection, which shows on the first command
+        return warmConnections.connect(ftpHarvesterConfig.getId(), HarvesterType.FTP, FtpClient.class,
+                () -> login(ftpHarvesterConfig), ftpClient -> ftpClient.pwd() != null);
+    }
+
+    /**
+     * @return opens connections for resuming transfers, or null if transfers
+     * are not resumed, see HARVEST_FTP_RESUME
+     */
+    private FtpFileHarvest.ResumeConnector resumeConnector(FtpHarvesterConfig ftpHarvesterConfig) {
+        if (!resumeTransfers) return null;
+        return FtpClientFactory.createResumeConnector(ftpHarvesterConfig, proxyBean);
+    }
+
+    private FtpClient login(FtpHarvesterConfig ftpHarvesterConfig) {
+        FtpClient ftpClient = FtpClientFactory.createFtpClient(ftpHarvesterConfig, proxyBean);
+        // the client connects and logs in on its first command
+        ftpClient.pwd();
+        return ftpClient;
+    }
+
+    @Override
+    public String hostOf(FtpHarvesterConfig ftpHarvesterConfig) {
+        return ftpHarvesterConfig.getHost();
+    }
 }
@@ -21,12 +21,15 @@ import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.core.Response;
 import net.jodah.failsafe.RetryPolicy;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.time.Duration;
 import java.util.List;
 import java.util.Set;
 
 @LocalBean
 @Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class HTTPHarvesterBean extends Harvester<HttpHarvesterConfig> {
     @EJB
     ProxyBean proxyBean;
@@ -80,15 +83,29 @@ public class HTTPHarvesterBean extends Harvester<HttpHarvesterConfig> {
         }
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Set<FileHarvest> listFiles(HttpHarvesterConfig config) throws HarvestException {
         return getHttpListFilesHandler(config).listFiles(config);
     }
 
     HttpListFilesHandler getHttpListFilesHandler(HttpHarvesterConfig config) {
         if (config.getListFilesHandler() == HttpHarvesterConfig.ListFilesHandler.LITTERATURSIDEN) {
-            return new LitteratursidenHttpListFilesHandler(proxyBean, RETRY_POLICY);
+            return new LitteratursidenHttpListFilesHandler(proxyBean, untilCircuitOpens(RETRY_POLICY, config));
+        }
+        return new HttpListFilesHandler(proxyBean, untilCircuitOpens(RETRY_POLICY, config), config.getHttpHeaders());
+    }
+
+    /**
+     * @param config http harvester config
+     * @return the origin (host and port) of the config url
+     */
+    @Override
+    public String hostOf(HttpHarvesterConfig config) {
+        if (config.getUrl() == null) return null;
+        try {
+            URL url = new URL(config.getUrl());
+            return url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        } catch (MalformedURLException e) {
+            return null;
         }
-        return new HttpListFilesHandler(proxyBean, RETRY_POLICY, config.getHttpHeaders());
     }
 }
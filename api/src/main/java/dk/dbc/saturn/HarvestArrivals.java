@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Database record of the times at which harvests found new files, and of
+ * the size of those files
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class HarvestArrivals {
+    @PersistenceContext(unitName = "saturn_PU")
+    EntityManager entityManager;
+
+    /**
+     * Records that a harvest found new files, and forgets arrivals older than the given time
+     * @param configId harvester config id
+     * @param arrived time the files were found
+     * @param bytes total size of the files, null if unknown
+     * @param keepSince arrivals before this time are deleted
+     */
+    public void record(int configId, Instant arrived, Long bytes, Instant keepSince) {
+        entityManager.createNativeQuery("INSERT INTO harvestarrival (configid, arrived, bytes) VALUES (?1, ?2, CAST(?3 AS BIGINT))")
+                .setParameter(1, configId)
+                .setParameter(2, Timestamp.from(arrived))
+                .setParameter(3, bytes)
+                .executeUpdate();
+        entityManager.createNativeQuery("DELETE FROM harvestarrival WHERE configid = ?1 AND arrived < ?2")
+                .setParameter(1, configId)
+                .setParameter(2, Timestamp.from(keepSince))
+                .executeUpdate();
+    }
+
+    /**
+     * @param configId harvester config id
+     * @param since start of the period
+     * @return arrivals of a config since the given time, earliest first
+     */
+    @SuppressWarnings("unchecked")
+    public List<Instant> since(int configId, Instant since) {
+        List<Date> rows = entityManager.createNativeQuery(
+                "SELECT arrived FROM harvestarrival WHERE configid = ?1 AND arrived >= ?2 ORDER BY arrived")
+                .setParameter(1, configId)
+                .setParameter(2, Timestamp.from(since))
+                .getResultList();
+        return rows.stream().map(Date::toInstant).collect(Collectors.toList());
+    }
+
+    /**
+     * @param configId harvester config id
+     * @param limit maximum number of arrivals
+     * @return sizes of the latest arrivals of a config with a known size, latest first
+     */
+    @SuppressWarnings("unchecked")
+    public List<Long> latestBytes(int configId, int limit) {
+        List<Number> rows = entityManager.createNativeQuery(
+                "SELECT bytes FROM harvestarrival WHERE configid = ?1 AND bytes IS NOT NULL ORDER BY arrived DESC LIMIT ?2")
+                .setParameter(1, configId)
+                .setParameter(2, limit)
+                .getResultList();
+        return rows.stream().map(Number::longValue).collect(Collectors.toList());
+    }
+}
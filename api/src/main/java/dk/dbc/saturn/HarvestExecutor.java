@@ -0,0 +1,81 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs harvest tasks on a fixed size thread pool, whose size can be changed
+ * while it runs.
+ */
+public class HarvestExecutor {
+    private final ThreadPoolExecutor pool;
+
+    private HarvestExecutor(ThreadPoolExecutor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param concurrency number of concurrent tasks
+     * @param threadFactory factory for the pooled threads
+     * @return executor backed by a fixed size thread pool
+     */
+    public static HarvestExecutor pooled(int concurrency, ThreadFactory threadFactory) {
+        // core and maximum size must be equal, a pool with an unbounded
+        // queue never grows beyond its core size
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 1L, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return new HarvestExecutor(pool);
+    }
+
+    public void submit(Runnable task) {
+        pool.submit(task);
+    }
+
+    /**
+     * Changes the number of concurrent tasks. Running tasks are not affected,
+     * when shrinking no new tasks are started until enough of them are done.
+     * @param size new concurrency
+     */
+    public void setConcurrency(int size) {
+        if (size < 1) throw new IllegalArgumentException("Concurrency must be at least 1, was " + size);
+        // the core size may never exceed the maximum size, so the order matters
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    public int getConcurrency() {
+        return pool.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public int getThreadCount() {
+        return pool.getPoolSize();
+    }
+
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    public long getCompletedTaskCount() {
+        return pool.getCompletedTaskCount();
+    }
+
+    public void shutdownNow() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.EJB;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sorts harvests into lanes, so manual runs and small harvests do not wait
+ * behind bulk transfers, see {@link FairShareQueue}.
+ * <p>
+ * Manual runs go to the interactive lane. A scheduled harvest goes to the
+ * small lane if the largest of its latest arrivals, summed from the sizes the
+ * sources report for their files, was below HARVEST_SMALL_HARVEST_BYTES, and
+ * to the bulk lane otherwise. A harvest of unknown size, because its config
+ * has no arrivals of a known size yet, goes to the HARVEST_LANE_UNKNOWN_SIZE lane.
+ * A number of harvest slots are reserved for the interactive and small lanes,
+ * bulk transfers only get the rest, see {@link #checkReservations}.
+ */
+@ApplicationScoped
+public class HarvestLanes {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestLanes.class);
+    /** arrivals the expected size of a harvest is learned from */
+    static final int HISTORY = 5;
+    private static final Duration RELEARN_AFTER = Duration.ofHours(1);
+    private final Map<Integer, Learned> learned = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+    @EJB
+    HarvestArrivals harvestArrivals;
+    @Inject
+    @ConfigProperty(name = "HARVEST_LANE_INTERACTIVE_RESERVED", defaultValue = "1")
+    int interactiveReserved;
+    @Inject
+    @ConfigProperty(name = "HARVEST_LANE_SMALL_RESERVED", defaultValue = "1")
+    int smallReserved;
+    @Inject
+    @ConfigProperty(name = "HARVEST_SMALL_HARVEST_BYTES", defaultValue = "10485760")
+    long smallBytes;
+    @Inject
+    @ConfigProperty(name = "HARVEST_LANE_UNKNOWN_SIZE", defaultValue = "BULK")
+    Lane unknownSizeLane;
+
+    public enum Lane {
+        // in order of priority
+        INTERACTIVE, SMALL, BULK
+    }
+
+    public HarvestLanes() {
+    }
+
+    public HarvestLanes(HarvestArrivals harvestArrivals, int interactiveReserved, int smallReserved, long smallBytes, Lane unknownSizeLane, Clock clock) {
+        this.harvestArrivals = harvestArrivals;
+        this.interactiveReserved = interactiveReserved;
+        this.smallReserved = smallReserved;
+        this.smallBytes = smallBytes;
+        this.unknownSizeLane = unknownSizeLane;
+        this.clock = clock;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (unknownSizeLane == Lane.INTERACTIVE) {
+            LOGGER.warn("HARVEST_LANE_UNKNOWN_SIZE may be SMALL or BULK, the interactive lane is for manual runs only, using BULK");
+            unknownSizeLane = Lane.BULK;
+        }
+    }
+
+    /**
+     * @param configId harvester config id
+     * @return lane of a scheduled harvest of the config
+     */
+    public Lane laneOf(int configId) {
+        Long expected = expectedBytes(configId);
+        if (expected == null) return unknownSizeLane;
+        return expected < smallBytes ? Lane.SMALL : Lane.BULK;
+    }
+
+    /**
+     * Forgets the expected size of a config, after a harvest found new files
+     * @param configId harvester config id
+     */
+    public void arrived(int configId) {
+        learned.remove(configId);
+    }
+
+    /**
+     * @param lane lane
+     * @return number of harvest slots which only the lane, or lanes of higher priority, may use
+     */
+    public int getReserved(Lane lane) {
+        switch (lane) {
+            case INTERACTIVE:
+                return Math.max(interactiveReserved, 0);
+            case SMALL:
+                return Math.max(smallReserved, 0);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Checks that the reserved slots leave at least one slot for bulk
+     * transfers. If they do not, the lanes below the reservations which do
+     * not fit still get one slot each, see {@link FairShareQueue}.
+     * @param concurrency number of concurrent harvests
+     * @throws IllegalArgumentException if the reservations do not fit
+     */
+    public void checkReservations(int concurrency) throws IllegalArgumentException {
+        int reserved = getReserved(Lane.INTERACTIVE) + getReserved(Lane.SMALL);
+        if (reserved >= concurrency) {
+            throw new IllegalArgumentException(String.format(
+                    "The %d harvest slots reserved for manual runs and small harvests leave no slot for bulk transfers with %d concurrent harvests",
+                    reserved, concurrency));
+        }
+    }
+
+    Long expectedBytes(int configId) {
+        Instant now = clock.instant();
+        Learned current = learned.get(configId);
+        if (current != null && now.isBefore(current.learnedAt.plus(RELEARN_AFTER))) return current.bytes;
+        try {
+            List<Long> latest = harvestArrivals.latestBytes(configId, HISTORY);
+            Long bytes = latest.stream().max(Long::compare).orElse(null);
+            learned.put(configId, new Learned(bytes, now));
+            return bytes;
+        } catch (RuntimeException e) {
+            // not remembered, so the next harvest tries again
+            LOGGER.warn("Unable to learn the expected size of harvester {}", configId, e);
+            return null;
+        }
+    }
+
+    private static class Learned {
+        private final Long bytes;
+        private final Instant learnedAt;
+
+        private Learned(Long bytes, Instant learnedAt) {
+            this.bytes = bytes;
+            this.learnedAt = learnedAt;
+        }
+    }
+}
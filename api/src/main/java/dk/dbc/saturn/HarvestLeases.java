@@ -0,0 +1,139 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Database backed leases on harvester configs, which lets several saturn
+ * instances share the harvesting without running the same harvest twice.
+ * <p>
+ * A harvest is only started by the instance that claims the lease for its
+ * scheduled slot. The lease is extended by heartbeats while the harvest runs,
+ * and released when it is done. Leases of an instance that stops heart-beating
+ * expire and are recovered by one of the other instances, which then runs the
+ * orphaned harvest right away.
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class HarvestLeases {
+    /** identifies this instance, a restarted instance never inherits the leases of its previous life */
+    static final String OWNER = System.getenv().getOrDefault("HOSTNAME", "saturn") + "/" + UUID.randomUUID();
+
+    @PersistenceContext(unitName = "saturn_PU")
+    EntityManager entityManager;
+    @Inject
+    @ConfigProperty(name = "HARVEST_LEASE_SECONDS", defaultValue = "120")
+    int leaseSeconds;
+
+    /**
+     * Claims the lease of a config for a scheduled slot
+     * @param configId harvester config id
+     * @param type harvester type
+     * @param slot scheduled time of the harvest
+     * @return true if the lease was claimed, false if another instance holds
+     * it or already claimed the slot
+     */
+    public boolean claim(int configId, HarvesterType type, Instant slot) {
+        entityManager.createNativeQuery(
+                "INSERT INTO harvestlease (configid, type) VALUES (?1, ?2) ON CONFLICT (configid) DO NOTHING")
+                .setParameter(1, configId)
+                .setParameter(2, type.name())
+                .executeUpdate();
+        return entityManager.createNativeQuery(
+                "UPDATE harvestlease SET owner = ?1, expires = now() + make_interval(secs => ?2), slot = ?3" +
+                " WHERE configid = (SELECT configid FROM harvestlease WHERE configid = ?4" +
+                " AND (owner IS NULL OR expires < now()) AND (slot IS NULL OR slot < ?3)" +
+                " FOR UPDATE SKIP LOCKED)")
+                .setParameter(1, OWNER)
+                .setParameter(2, leaseSeconds)
+                .setParameter(3, Timestamp.from(slot))
+                .setParameter(4, configId)
+                .executeUpdate() == 1;
+    }
+
+    /**
+     * Releases the lease of a config held by this instance
+     * @param configId harvester config id
+     */
+    public void release(int configId) {
+        entityManager.createNativeQuery(
+                "UPDATE harvestlease SET owner = NULL, expires = NULL WHERE configid = ?1 AND owner = ?2")
+                .setParameter(1, configId)
+                .setParameter(2, OWNER)
+                .executeUpdate();
+    }
+
+    /**
+     * Extends leases held by this instance
+     * @param configIds ids of the configs being harvested
+     * @return number of leases extended
+     */
+    public int heartbeat(Collection<Integer> configIds) {
+        int extended = 0;
+        for (Integer configId : configIds) {
+            extended += entityManager.createNativeQuery(
+                    "UPDATE harvestlease SET expires = now() + make_interval(secs => ?1) WHERE configid = ?2 AND owner = ?3")
+                    .setParameter(1, leaseSeconds)
+                    .setParameter(2, configId)
+                    .setParameter(3, OWNER)
+                    .executeUpdate();
+        }
+        return extended;
+    }
+
+    /**
+     * Takes over expired leases of other instances. The leases are reset,
+     * so the recovered harvests can be claimed again right away.
+     * @param limit maximum number of leases to recover
+     * @return the configs whose harvest was orphaned
+     */
+    @SuppressWarnings("unchecked")
+    public List<Orphan> recoverExpired(int limit) {
+        List<Object[]> rows = entityManager.createNativeQuery(
+                "UPDATE harvestlease SET owner = NULL, expires = NULL, slot = NULL" +
+                " WHERE configid IN (SELECT configid FROM harvestlease WHERE owner IS NOT NULL AND expires < now()" +
+                " ORDER BY expires LIMIT ?1 FOR UPDATE SKIP LOCKED)" +
+                " RETURNING configid, type")
+                .setParameter(1, limit)
+                .getResultList();
+        return rows.stream()
+                .map(row -> new Orphan(((Number) row[0]).intValue(), HarvesterType.valueOf((String) row[1])))
+                .collect(Collectors.toList());
+    }
+
+    public static class Orphan {
+        private final int configId;
+        private final HarvesterType type;
+
+        public Orphan(int configId, HarvesterType type) {
+            this.configId = configId;
+            this.type = type;
+        }
+
+        public int getConfigId() {
+            return configId;
+        }
+
+        public HarvesterType getType() {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
+import dk.dbc.saturn.entity.HarvesterSchedule;
+import dk.dbc.saturn.entity.Schedulable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the next fire time of every enabled harvester config in a min-heap,
+ * so the scheduler only has to look at the configs which are actually due.
+ * Re-planning a config leaves its old heap entry behind as a stale entry,
+ * which is skipped when it reaches the top of the heap.
+ */
+@ApplicationScoped
+public class HarvestPlan {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestPlan.class);
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparing(Entry::getDue));
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Clock clock;
+    @Inject
+    RunScheduleBean runScheduleBean;
+
+    public HarvestPlan() {
+        this(Clock.systemUTC());
+    }
+
+    public HarvestPlan(Clock clock) {
+        this.clock = clock;
+    }
+
+    public HarvestPlan(Clock clock, RunScheduleBean runScheduleBean) {
+        this(clock);
+        this.runScheduleBean = runScheduleBean;
+    }
+
+    /**
+     * Computes the next fire time of a config from its schedule and last harvest
+     * and updates the plan. Disabled configs and configs with an invalid schedule
+     * are removed from the plan.
+     * @param config harvester config
+     */
+    public void replan(AbstractHarvesterConfigEntity config) {
+        replan(config, HarvesterType.of(config.getClass()));
+    }
+
+    /**
+     * Re-plans a config from its scheduling projection, see {@link #replan(AbstractHarvesterConfigEntity)}
+     * @param schedule scheduling projection of a harvester config
+     */
+    public void replan(HarvesterSchedule schedule) {
+        replan(schedule, schedule.getType());
+    }
+
+    private void replan(Schedulable config, HarvesterType type) {
+        if (!config.isEnabled()) {
+            remove(config.getId());
+            return;
+        }
+        try {
+            Instant due = runScheduleBean.nextFireTime(config, clock.instant());
+            if (due.equals(Instant.MAX)) remove(config.getId());
+            else plan(config.getId(), type, due);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to plan harvester {} with schedule \"{}\"", config.getId(), config.getSchedule());
+            remove(config.getId());
+        }
+    }
+
+    /**
+     * Plans a config to fire at the given time, replacing any earlier plan for it
+     * @param configId harvester config id
+     * @param type harvester type
+     * @param due next fire time
+     */
+    public void plan(int configId, HarvesterType type, Instant due) {
+        lock.lock();
+        try {
+            Entry current = entries.get(configId);
+            if (current != null && current.type == type && current.due.equals(due)) return;
+            Entry entry = new Entry(configId, type, due);
+            entries.put(configId, entry);
+            queue.add(entry);
+            compact();
+            if (queue.peek() == entry) changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(int configId) {
+        lock.lock();
+        try {
+            entries.remove(configId);
+            compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every config which is not in the given set of ids
+     * @param configIds ids of existing configs
+     */
+    public void retainAll(Set<Integer> configIds) {
+        lock.lock();
+        try {
+            entries.keySet().retainAll(configIds);
+            compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes all entries which are due at the given time out of the plan
+     * @param now point in time
+     * @return due entries, earliest first
+     */
+    public List<Entry> pollDue(Instant now) {
+        lock.lock();
+        try {
+            List<Entry> due = new ArrayList<>();
+            Entry head;
+            while ((head = peekValid()) != null && !head.due.isAfter(now)) {
+                queue.poll();
+                entries.remove(head.configId);
+                due.add(head);
+            }
+            return due;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the earliest entry is due, or until the maximum wait has passed
+     * @param maxWait maximum time to wait
+     * @return due entries, empty if nothing became due within the maximum wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Entry> awaitDue(Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        lock.lock();
+        try {
+            while (true) {
+                Instant now = clock.instant();
+                List<Entry> due = pollDue(now);
+                long remaining = deadline - System.nanoTime();
+                if (!due.isEmpty() || remaining <= 0) return due;
+                Entry head = peekValid();
+                long wait = remaining;
+                if (head != null && Duration.between(now, head.due).compareTo(Duration.ofNanos(remaining)) < 0) {
+                    wait = Duration.between(now, head.due).toNanos();
+                }
+                changed.awaitNanos(Math.max(wait, TimeUnit.MILLISECONDS.toNanos(1)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Optional<Instant> nextDue() {
+        lock.lock();
+        try {
+            return Optional.ofNullable(peekValid()).map(Entry::getDue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param configId harvester config id
+     * @return next fire time of a config, empty if it is not planned
+     */
+    public Optional<Instant> dueOf(int configId) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(entries.get(configId)).map(Entry::getDue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry peekValid() {
+        Entry head;
+        while ((head = queue.peek()) != null && entries.get(head.configId) != head) {
+            queue.poll();
+        }
+        return head;
+    }
+
+    private void compact() {
+        // drop stale entries when they start to dominate the heap
+        if (queue.size() > 2 * entries.size() + 16) {
+            queue.removeIf(entry -> entries.get(entry.configId) != entry);
+        }
+    }
+
+    public static class Entry {
+        private final int configId;
+        private final HarvesterType type;
+        private final Instant due;
+
+        public Entry(int configId, HarvesterType type, Instant due) {
+            this.configId = configId;
+            this.type = type;
+            this.due = due;
+        }
+
+        public int getConfigId() {
+            return configId;
+        }
+
+        public HarvesterType getType() {
+            return type;
+        }
+
+        public Instant getDue() {
+            return due;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "configId=" + configId +
+                    ", type=" + type +
+                    ", due=" + due +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Database record of the files of a harvest run whose jobs have been created.
+ * Every file is committed on its own together with the seqno of its config,
+ * so a failed harvest which is retried only sends the files which were not
+ * sent by the attempts before it.
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class HarvestedFiles {
+    @PersistenceContext(unitName = "saturn_PU")
+    EntityManager entityManager;
+
+    /**
+     * Records that the job of a file was created, moves the seqno of the
+     * config up, and forgets the files of earlier runs
+     * @param type harvester type
+     * @param configId harvester config id
+     * @param run start of the first attempt of the harvest run
+     * @param fileHarvest file
+     * @param jobId id of the created job
+     * @param seqno seqno the config is moved up to, the highest seqno of the files
+     *              sent so far in the run, left as is if null
+     */
+    public void record(HarvesterType type, int configId, Instant run, FileHarvest fileHarvest, int jobId, Integer seqno) {
+        entityManager.createNativeQuery("INSERT INTO harvestedfile (configid, run, filename, seqno, bytes, jobid, sent)" +
+                " VALUES (?1, ?2, ?3, CAST(?4 AS INTEGER), CAST(?5 AS BIGINT), ?6, ?7) ON CONFLICT DO NOTHING")
+                .setParameter(1, configId)
+                .setParameter(2, runOf(run))
+                .setParameter(3, fileHarvest.getFilename())
+                .setParameter(4, fileHarvest.getSeqno())
+                .setParameter(5, fileHarvest.getSize() == null ? null : fileHarvest.getSize().longValue())
+                .setParameter(6, jobId)
+                .setParameter(7, Timestamp.from(Instant.now()))
+                .executeUpdate();
+        if (seqno != null) {
+            entityManager.createNativeQuery("UPDATE " + HarvesterConfigRepository.tableOf(type) +
+                    " SET seqno = ?1 WHERE id = ?2 AND (seqno IS NULL OR seqno < ?1)")
+                    .setParameter(1, seqno)
+                    .setParameter(2, configId)
+                    .executeUpdate();
+        }
+        entityManager.createNativeQuery("DELETE FROM harvestedfile WHERE configid = ?1 AND run < ?2")
+                .setParameter(1, configId)
+                .setParameter(2, runOf(run))
+                .executeUpdate();
+    }
+
+    /**
+     * @param configId harvester config id
+     * @param run start of the first attempt of the harvest run
+     * @return names of the files of the run whose jobs have been created
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> sent(int configId, Instant run) {
+        List<String> rows = entityManager.createNativeQuery(
+                "SELECT filename FROM harvestedfile WHERE configid = ?1 AND run = ?2")
+                .setParameter(1, configId)
+                .setParameter(2, runOf(run))
+                .getResultList();
+        return new HashSet<>(rows);
+    }
+
+    /**
+     * Runs are looked up by their start, which is kept at the precision of the database
+     */
+    private static Timestamp runOf(Instant run) {
+        return Timestamp.from(run.truncatedTo(ChronoUnit.MILLIS));
+    }
+}
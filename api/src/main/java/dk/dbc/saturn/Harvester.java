@@ -1,14 +1,14 @@
 package dk.dbc.saturn;
 
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
 import dk.dbc.saturn.job.JobSenderBean;
 import jakarta.ejb.EJB;
 import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
 import jakarta.inject.Inject;
-import net.jodah.failsafe.Failsafe;
-import net.jodah.failsafe.FailsafeException;
 import net.jodah.failsafe.RetryPolicy;
-import net.jodah.failsafe.event.ExecutionAttemptedEvent;
 import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.eclipse.microprofile.metrics.Tag;
 import org.slf4j.Logger;
@@ -18,13 +18,29 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Harvests the configs of one type. Listing and transferring files can keep a
+ * harvest busy with a remote server for a long time, so harvests run outside
+ * of any transaction, and the config is read and its state written back in
+ * short transactions of their own by {@link HarvesterConfigRepository}.
+ */
 @Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public abstract class Harvester<T extends AbstractHarvesterConfigEntity> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Harvester.class);
-    private static final RetryPolicy<?> RETRY_FULL_JOB = new RetryPolicy<>().withMaxRetries(12).withDelay(Duration.ofMinutes(15));
+    static final int MAX_RETRIES = 12;
+    static final Duration RETRY_DELAY = Duration.ofMinutes(15);
+    private static final Comparator<FileHarvest> SEND_ORDER = Comparator
+            .comparing(FileHarvest::getSeqno, Comparator.nullsLast(Comparator.<Integer>naturalOrder()))
+            .thenComparing(FileHarvest::getFilename);
     private Tag TAG_OK = new Tag("status", "success");
     private Tag TAG_FAIL = new Tag("status", "failed");
     @EJB
@@ -33,12 +49,26 @@ public abstract class Harvester<T extends AbstractHarvesterConfigEntity> {
     private JobSenderBean jobSenderBean;
     @EJB
     private ProgressTrackerBean trackerBean;
+    @EJB
+    private HarvestedFiles harvestedFiles;
     @Inject
     private RunScheduleBean runScheduleBean;
     @Inject
     private MetricRegistry metricRegistry;
     @Inject
     private RunningTasks runningTasks;
+    @Inject
+    private HarvestPlan harvestPlan;
+    @Inject
+    private HostPermits hostPermits;
+    @Inject
+    HostBreakers hostBreakers;
+    @Inject
+    private AdaptivePolling adaptivePolling;
+    @Inject
+    private HarvestLanes harvestLanes;
+    @Inject
+    WarmConnections warmConnections;
 
 
     protected Harvester() {
@@ -51,60 +81,141 @@ public abstract class Harvester<T extends AbstractHarvesterConfigEntity> {
         this.runningTasks = runningTasks;
     }
 
-    public void runHarvest(Class<T> clazz, int configId) {
-        runHarvest(clazz, configId, false);
+    public Duration runHarvest(Class<T> clazz, int configId) {
+        return runHarvest(clazz, configId, false, false);
     }
 
-    public void runHarvest(Class<T> clazz, int configId, boolean runNow) {
-        runningTasks.run(configId, c -> {
+    /**
+     * Makes an attempt at harvesting a config. A failed attempt is not retried
+     * here, the caller is told when to retry instead, so no thread is kept
+     * waiting between attempts.
+     * @param clazz harvester config type
+     * @param configId harvester config id
+     * @param runNow run even if the config is not due
+     * @param retry this is a retry of a failed attempt
+     * @return delay before the next attempt, or null if the harvest is done
+     * @throws RunningTasks.AlreadyRunningException if a harvest of the config is already running
+     */
+    public Duration runHarvest(Class<T> clazz, int configId, boolean runNow, boolean retry) {
+        AtomicReference<Duration> retryDelay = new AtomicReference<>();
+        boolean ran = runningTasks.run(configId, c -> {
             T config = harvesterConfigRepository.getHarvesterConfig(clazz, configId);
-            if (!runNow && runScheduleBean.shouldSkip(config)) return;
-            ProgressTrackerBean.Progress progress = trackerBean.add(config.getId());
+            if (!runNow && !retry && runScheduleBean.shouldSkip(config)) return;
+            ProgressTrackerBean.Progress progress = retry ? trackerBean.get(config.getId()) : null;
+            if (progress == null) {
+                progress = trackerBean.add(config.getId());
+            } else {
+                // aborted while the retry was about to start
+                if (progress.isAbort()) return;
+                progress.retry();
+            }
             try {
-                Failsafe.with(RETRY_FULL_JOB.copy()
-                                .abortIf(e -> progress.isAbort())
-                                .onFailedAttempt(e -> failedHarvestAttempt(e, config, progress)))
-                        .run(() -> runHarvest(config, progress));
-            } catch (FailsafeException e) {
-                if(e.getCause() instanceof InterruptedException) {
+                runHarvest(config, progress, runNow);
+            } catch (InterruptedException e) {
+                LOGGER.info("Harvester {} was stopped by user", config.getId());
+            } catch (Exception e) {
+                if (progress.isAbort()) {
                     LOGGER.info("Harvester {} was stopped by user", config.getId());
+                } else if (e instanceof CircuitOpenException || progress.failedAttempt() <= MAX_RETRIES) {
+                    // an open circuit did not let the harvest ask its host, so only failed probes count as failed attempts
+                    failedHarvestAttempt(e, config, progress);
+                    retryDelay.set(retryDelay(config));
+                    return;
                 } else {
                     metricRegistry.counter("harvests", TAG_FAIL, new Tag("id", Integer.toString(config.getId()))).inc();
-                    if (progress != null) progress.failed("Failed");
+                    progress.failed("Failed");
                     LOGGER.error("Error while harvesting: {}", config.getId(), e);
                 }
             }
+            harvestPlan.replan(config);
         });
+        if (!ran) throw new RunningTasks.AlreadyRunningException(configId);
+        return retryDelay.get();
     }
 
-    private void failedHarvestAttempt(ExecutionAttemptedEvent<?> e, T config, ProgressTrackerBean.Progress progress) {
+    /**
+     * Waits at least until the circuit of the host lets a probe through
+     */
+    private Duration retryDelay(T config) {
+        Duration untilProbe = hostBreakers.retryAfter(hostOf(config));
+        return untilProbe.compareTo(RETRY_DELAY) > 0 ? untilProbe : RETRY_DELAY;
+    }
+
+    private void failedHarvestAttempt(Exception e, T config, ProgressTrackerBean.Progress progress) {
         progress.setMessage("Failed, waiting for retry");
-        LOGGER.warn("Harvesting {} failed, waiting for retry", config.getId(), e.getLastFailure());
+        LOGGER.warn("Harvesting {} failed, waiting for retry", config.getId(), e);
     }
 
-    private void runHarvest (T config, ProgressTrackerBean.Progress progress) throws HarvestException {
+    private void runHarvest (T config, ProgressTrackerBean.Progress progress, boolean runNow) throws HarvestException, InterruptedException {
         LOGGER.info("Starting harvesting task: {}", config);
         progress.init(Set.of());
-        Set<FileHarvest> fileHarvests = listFiles(config);
+        Set<FileHarvest> fileHarvests;
+        String host = hostOf(config);
+        if (!hostBreakers.allowRequest(host)) {
+            throw new CircuitOpenException(host);
+        }
+        // a pre-warmed connection brings the permit it was opened with
+        HostPermits.Permit warmed = warmConnections.takePermit(config.getId());
+        try (HostPermits.Permit permit = warmed != null ? warmed : hostPermits.acquire(host)) {
+            fileHarvests = listFiles(config);
+            hostBreakers.success(host);
+            adaptivePolling.listed(config.getId(), Instant.now());
+        } catch (HarvestException | RuntimeException e) {
+            hostBreakers.failure(host);
+            throw e;
+        }
+        if (!fileHarvests.isEmpty() && progress.getFailedAttempts() > 0) {
+            fileHarvests = withoutSent(config, progress.getStartTime(), fileHarvests);
+        }
         if (!fileHarvests.isEmpty()) {
             progress.init(fileHarvests);
-            harvest(config, fileHarvests);
+            harvest(config, fileHarvests, progress.getStartTime());
             LOGGER.info("Done harvesting {}", config.getName());
             progress.done(config.getId(), metricRegistry);
             metricRegistry.counter("harvests", TAG_OK, new Tag("id", Integer.toString(config.getId()))).inc();
+            recordArrival(config, fileHarvests);
         } else {
             LOGGER.info("No files to harvest for {}", config.getName());
             progress.noFiles();
         }
-        config.setLastHarvested(Date.from(Instant.now()));
+        // a scheduled harvest which is catching up on missed fire times only counts for one of them
+        Instant now = Instant.now();
+        Instant caughtUpUntil = runNow ? null : runScheduleBean.caughtUpUntil(config, now);
+        config.setCaughtUpUntil(caughtUpUntil == null ? null : Date.from(caughtUpUntil));
+        config.setLastHarvested(Date.from(now));
+        harvesterConfigRepository.saveHarvestState(config, !fileHarvests.isEmpty());
+    }
+
+    private void recordArrival(T config, Set<FileHarvest> fileHarvests) {
+        try {
+            List<Number> sizes = fileHarvests.stream().map(FileHarvest::getSize).filter(Objects::nonNull).collect(Collectors.toList());
+            adaptivePolling.arrived(config.getId(), sizes.isEmpty() ? null : sizes.stream().mapToLong(Number::longValue).sum());
+            harvestLanes.arrived(config.getId());
+        } catch (RuntimeException e) {
+            // only used to learn when to poll and how large harvests are, the harvest itself went fine
+            LOGGER.warn("Unable to record arrival of files for harvester {}", config.getId(), e);
+        }
     }
 
-    public void harvest(T config, Set<FileHarvest> fileHarvests) throws HarvestException {
+    /**
+     * Sends the files of a harvest, each file is recorded as sent as soon as
+     * its job is created, see {@link HarvestedFiles}
+     * @param config harvester config
+     * @param fileHarvests files to send
+     * @param run start of the first attempt of the harvest run
+     * @throws HarvestException if a file could not be sent
+     */
+    public void harvest(T config, Set<FileHarvest> fileHarvests, Instant run) throws HarvestException {
         try (HarvesterMDC mdc = new HarvesterMDC(config)) {
             LOGGER.info("Starting harvest of {}", config.getName());
-            jobSenderBean.send(fileHarvests, config.getAgency(), config.getTransfile(), config.getId());
-            config.setSeqno(fileHarvests.stream()
-                    .map(FileHarvest::getSeqno)
+            // the seqno recorded with the files must not pass a file which is not sent yet
+            Set<FileHarvest> ordered = fileHarvests.stream()
+                    .sorted(SEND_ORDER)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            jobSenderBean.send(ordered, config.getAgency(), config.getTransfile(), config.getId(), hostOf(config), config.getAgency(),
+                    transfersInParallel(config) ? config.getTransferParallelism() : 1, checkpoint(config, run));
+            // the seqno of the config includes the files sent by earlier attempts of the run
+            config.setSeqno(Stream.concat(Stream.of(config.getSeqno()), fileHarvests.stream().map(FileHarvest::getSeqno))
                     .filter(Objects::nonNull)
                     .max(Comparator.comparing(Integer::valueOf))
                     .orElse(0));
@@ -112,6 +223,128 @@ public abstract class Harvester<T extends AbstractHarvesterConfigEntity> {
         }
     }
 
+    /**
+     * Leaves out the files which earlier attempts of the harvest run already sent
+     */
+    private Set<FileHarvest> withoutSent(T config, Instant run, Set<FileHarvest> fileHarvests) throws HarvestException {
+        Set<String> sent;
+        try {
+            sent = harvestedFiles.sent(config.getId(), run);
+        } catch (RuntimeException e) {
+            // sending everything again would create duplicate jobs
+            throw new HarvestException("Unable to look up the files already sent by harvester " + config.getId(), e);
+        }
+        Set<FileHarvest> remaining = fileHarvests.stream()
+                .filter(fileHarvest -> !sent.contains(fileHarvest.getFilename()))
+                .collect(Collectors.toSet());
+        int skipped = fileHarvests.size() - remaining.size();
+        if (skipped > 0) {
+            LOGGER.info("Resuming harvest of {}, {} of {} files were already sent", config.getName(), skipped, fileHarvests.size());
+            metricRegistry.counter("harvest_checkpoint_skipped_files", typeTag(config)).inc(skipped);
+        }
+        // the files share their connection, which is closed with the last of them
+        if (remaining.isEmpty()) fileHarvests.forEach(FileHarvest::close);
+        return remaining;
+    }
+
+    private JobSenderBean.Checkpoint checkpoint(T config, Instant run) {
+        HarvesterType type = HarvesterType.of(config.getClass());
+        return new JobSenderBean.Checkpoint() {
+            @Override
+            public void jobCreated(FileHarvest fileHarvest, int jobId, Integer seqno) throws HarvestException {
+                try {
+                    harvestedFiles.record(type, config.getId(), run, fileHarvest, jobId, seqno);
+                } catch (RuntimeException e) {
+                    throw new HarvestException("Unable to record file " + fileHarvest.getFilename() + " of harvester " + config.getId() + " as sent", e);
+                }
+            }
+
+            @Override
+            public void retransferred(long bytes) {
+                metricRegistry.counter("harvest_retransferred_bytes", typeTag(config)).inc(bytes);
+            }
+        };
+    }
+
+    /**
+     * @param config harvester config
+     * @return true if the files of a harvest of the config are transferred in parallel
+     */
+    protected static boolean transfersInParallel(AbstractHarvesterConfigEntity config) {
+        return config.getTransferParallelism() != null && config.getTransferParallelism() > 1;
+    }
+
+    /**
+     * @param retryPolicy retry policy of requests to the host of a config
+     * @param config harvester config
+     * @return a copy of the retry policy which stops retrying once the circuit of the host has opened
+     */
+    protected <R> RetryPolicy<R> untilCircuitOpens(RetryPolicy<R> retryPolicy, T config) {
+        String host = hostOf(config);
+        return retryPolicy.copy().abortIf((result, failure) -> hostBreakers.getState(host) == HostBreakers.State.OPEN);
+    }
+
+    private static Tag typeTag(AbstractHarvesterConfigEntity config) {
+        HarvesterType type = HarvesterType.of(config.getClass());
+        return new Tag("type", type == null ? "unknown" : type.name());
+    }
+
+    /**
+     * Opens the connection to the source of a config ahead of a scheduled
+     * harvest, see {@link WarmConnections}
+     * @param clazz harvester config type
+     * @param configId harvester config id
+     * @param due fire time the connection is opened for
+     */
+    public void prewarm(Class<T> clazz, int configId, Instant due) {
+        T config = harvesterConfigRepository.getHarvesterConfig(clazz, configId);
+        if (!config.isEnabled() || runScheduleBean.shouldSkip(config)) return;
+        String host = hostOf(config);
+        // a pre-warm must not use up the probe of a half-open circuit
+        if (hostBreakers.getState(host) != HostBreakers.State.CLOSED) return;
+        // nor make a running harvest of the host wait for a connection
+        HostPermits.Permit permit = hostPermits.tryAcquire(host);
+        if (permit == null) {
+            LOGGER.debug("No free connection to {} for pre-warming harvester {}", host, configId);
+            return;
+        }
+        try {
+            warm(config, due, permit);
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens and logs in to the source of a config, and leaves the connection
+     * in {@link WarmConnections} for the harvest at the given fire time
+     * @param config harvester config
+     * @param due fire time
+     * @param permit connection permit of the host, which the connection holds until it is used or closed
+     */
+    protected void warm(T config, Instant due, HostPermits.Permit permit) {
+        // harvesters which do not log in to their source have nothing to pre-warm
+        permit.close();
+    }
+
     public abstract Set<FileHarvest> listFiles(T config) throws HarvestException;
+
+    /**
+     * @param config harvester config
+     * @return the remote host connections are limited by, or null if not limited
+     */
+    public String hostOf(T config) {
+        return null;
+    }
+
+    /**
+     * A harvest which did not ask its host, since the circuit of the host was open
+     */
+    private static class CircuitOpenException extends HarvestException {
+        private CircuitOpenException(String host) {
+            super("Circuit is open for host " + host + ", skipping listing");
+        }
+    }
 }
 
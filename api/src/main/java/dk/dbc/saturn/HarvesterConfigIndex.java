@@ -0,0 +1,212 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HarvesterSchedule;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.DependsOn;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the scheduling projection of all enabled harvester
+ * configs, so the dispatcher can make its decisions without going to the
+ * database.
+ * <p>
+ * The index is kept current by notifications from database triggers on the
+ * harvester tables (see V17__notify_harvester_config_changes.sql), which are
+ * received on a connection of the jdbc/saturn/listener pool of its own, so
+ * the connection it holds for as long as it works is not taken from the pool
+ * of the application. Every time the connection is (re)established the index
+ * is reloaded from scratch, since notifications sent while no one was
+ * listening are lost. Until then, lookups fall through to the database.
+ * <p>
+ * Reloads and changes are applied one at a time, so a reload does not put
+ * back the state of a config from before a change which was applied while it
+ * read the configs.
+ */
+@Startup
+@Singleton
+@DependsOn("DatabaseMigrator")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class HarvesterConfigIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvesterConfigIndex.class);
+    static final String CHANNEL = "harvester_config";
+    private static final int POLL_MILLIS = 10_000;
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(10);
+    private final Map<Integer, HarvesterSchedule> schedules = new ConcurrentHashMap<>();
+    private volatile boolean listening = false;
+    private Thread listener;
+    @Resource(lookup = "jdbc/saturn/listener")
+    DataSource dataSource;
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    ManagedThreadFactory threadFactory;
+    @EJB
+    HarvesterConfigRepository harvesterConfigRepository;
+    @Inject
+    HarvestPlan harvestPlan;
+    @Inject
+    RunScheduleBean runScheduleBean;
+    @Inject
+    MetricRegistry metricRegistry;
+
+    public HarvesterConfigIndex() {
+    }
+
+    public HarvesterConfigIndex(HarvesterConfigRepository harvesterConfigRepository, HarvestPlan harvestPlan, RunScheduleBean runScheduleBean, MetricRegistry metricRegistry) {
+        this.harvesterConfigRepository = harvesterConfigRepository;
+        this.harvestPlan = harvestPlan;
+        this.runScheduleBean = runScheduleBean;
+        this.metricRegistry = metricRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        metricRegistry.gauge("harvest_config_index_size", this::size);
+        listener = threadFactory.newThread(this::listen);
+        listener.setName("harvester-config-listener");
+        listener.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        listening = false;
+        if (listener != null) listener.interrupt();
+    }
+
+    /**
+     * Get the scheduling projection of a harvester config, from the index if
+     * it is kept current, otherwise from the database
+     * @param type harvester type
+     * @param id harvester config id
+     * @return scheduling projection, or null if the config does not exist or is disabled
+     */
+    public HarvesterSchedule getSchedule(HarvesterType type, int id) {
+        if (!listening) return harvesterConfigRepository.getSchedule(type, id);
+        HarvesterSchedule schedule = schedules.get(id);
+        return schedule != null && schedule.getType() == type ? schedule : null;
+    }
+
+    /**
+     * Reloads the index and re-plans every config from the database
+     */
+    public synchronized void resync() {
+        List<HarvesterSchedule> enabled = harvesterConfigRepository.listSchedules();
+        Map<Integer, HarvesterSchedule> loaded = new ConcurrentHashMap<>();
+        for (HarvesterSchedule schedule : enabled) {
+            loaded.put(schedule.getId(), schedule);
+            harvestPlan.replan(schedule);
+        }
+        schedules.keySet().retainAll(loaded.keySet());
+        schedules.putAll(loaded);
+        // disabled configs are not listed, and are dropped from the plan
+        harvestPlan.retainAll(loaded.keySet());
+        LOGGER.info("Loaded {} harvester configs into the config index", loaded.size());
+    }
+
+    /**
+     * @return scheduling projections of the configs whose connection is opened ahead of their harvests
+     */
+    public List<HarvesterSchedule> getPrewarmed() {
+        return schedules.values().stream()
+                .filter(schedule -> schedule.getPrewarmSeconds() != null && schedule.getPrewarmSeconds() > 0)
+                .collect(Collectors.toList());
+    }
+
+    public boolean isListening() {
+        return listening;
+    }
+
+    public int size() {
+        return schedules.size();
+    }
+
+    /**
+     * Updates the index from the current state of a changed config
+     * @param payload notification payload, &lt;type&gt;:&lt;id&gt;
+     */
+    synchronized void changed(String payload) {
+        int separator = payload.indexOf(':');
+        HarvesterType type = separator < 0 ? null : HarvesterType.of(payload.substring(0, separator));
+        if (type == null) {
+            LOGGER.warn("Ignoring harvester config notification \"{}\"", payload);
+            return;
+        }
+        int id = Integer.parseInt(payload.substring(separator + 1));
+        metricRegistry.counter("harvest_config_notifications").inc();
+        HarvesterSchedule schedule = harvesterConfigRepository.getSchedule(type, id);
+        if (schedule == null || !schedule.isEnabled()) {
+            schedules.remove(id);
+            harvestPlan.remove(id);
+            runScheduleBean.forget(id);
+        } else {
+            schedules.put(id, schedule);
+            harvestPlan.replan(schedule);
+        }
+    }
+
+    private void listen() {
+        while (!Thread.currentThread().isInterrupted()) {
+            // held for as long as it works, see the class comment
+            try (Connection connection = dataSource.getConnection()) {
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                // changes made before LISTEN took effect are picked up by the resync
+                resync();
+                listening = true;
+                LOGGER.info("Listening for harvester config changes");
+                while (!Thread.currentThread().isInterrupted()) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_MILLIS);
+                    if (notifications == null) continue;
+                    for (PGNotification notification : notifications) {
+                        try {
+                            changed(notification.getParameter());
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Unable to update harvester config index for \"{}\"", notification.getParameter(), e);
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) break;
+                LOGGER.warn("Lost connection for harvester config changes, reconnecting in {}s", RECONNECT_DELAY.toSeconds(), e);
+                metricRegistry.counter("harvest_config_listener_reconnects").inc();
+            } finally {
+                listening = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.info("Harvester config listener stopped");
+    }
+}
@@ -6,27 +6,39 @@
 package dk.dbc.saturn;
 
 import dk.dbc.invariant.InvariantUtil;
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
+import dk.dbc.saturn.entity.HarvesterSchedule;
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import dk.dbc.saturn.entity.MisfirePolicy;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
 import jakarta.ejb.Stateless;
 import jakarta.ejb.TransactionAttribute;
 import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
 import jakarta.ws.rs.core.UriBuilder;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.sql.Timestamp;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Stateless
 public class HarvesterConfigRepository {
     @PersistenceContext(unitName = "saturn_PU")
     EntityManager entityManager;
+    @Inject
+    HarvestPlan harvestPlan;
+    @Inject
+    RunScheduleBean runScheduleBean;
 
     /**
      * list harvester configs
@@ -86,6 +98,87 @@ public class HarvesterConfigRepository {
         return result;
     }
 
+    /**
+     * List the scheduling projection of all enabled harvester configs of all
+     * types, without loading the full entities
+     * @return scheduling projections
+     */
+    @SuppressWarnings("unchecked")
+    public List<HarvesterSchedule> listSchedules() {
+        List<Object[]> rows = entityManager.createNativeQuery(
+                "SELECT id, 'FTP', schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency, caughtupuntil FROM ftpharvester WHERE enabled" +
+                " UNION ALL SELECT id, 'SFTP', schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency, caughtupuntil FROM sftpharvester WHERE enabled" +
+                " UNION ALL SELECT id, 'HTTP', schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, CAST(NULL AS INTEGER), agency, caughtupuntil FROM httpharvester WHERE enabled")
+                .getResultList();
+        return rows.stream()
+                .map(row -> toSchedule(row, HarvesterType.valueOf((String) row[1])))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the scheduling projection of a harvester config
+     * @param type harvester type
+     * @param id harvester config id
+     * @return scheduling projection, or null if no config with the given id is found
+     */
+    @SuppressWarnings("unchecked")
+    public HarvesterSchedule getSchedule(HarvesterType type, int id) {
+        List<Object[]> rows = entityManager.createNativeQuery(
+                "SELECT id, ?1, schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, " + prewarmColumnOf(type) +
+                ", agency, caughtupuntil FROM " + tableOf(type) + " WHERE id = ?2")
+                .setParameter(1, type.name())
+                .setParameter(2, id)
+                .getResultList();
+        return rows.isEmpty() ? null : toSchedule(rows.get(0), type);
+    }
+
+    /**
+     * Writes the state a harvest leaves a config in, without holding a
+     * transaction open while the harvest runs
+     * @param config harvester config, as harvested
+     * @param harvested true if files were harvested, and the seqno of the config moved along
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void saveHarvestState(AbstractHarvesterConfigEntity config, boolean harvested) {
+        HarvesterType type = HarvesterType.of(config.getClass());
+        // the seqno is left alone by harvests without files, so an edit made meanwhile is kept
+        Date caughtUpUntil = config.getCaughtUpUntil();
+        Query query = entityManager.createNativeQuery("UPDATE " + tableOf(type) +
+                " SET lastharvested = ?2, caughtupuntil = CAST(?3 AS TIMESTAMP WITH TIME ZONE)" + (harvested ? ", seqno = ?4" : "") + " WHERE id = ?1")
+                .setParameter(1, config.getId())
+                .setParameter(2, Timestamp.from(config.getLastHarvested().toInstant()))
+                .setParameter(3, caughtUpUntil == null ? null : Timestamp.from(caughtUpUntil.toInstant()));
+        if (harvested) query.setParameter(4, config.getSeqno());
+        query.executeUpdate();
+    }
+
+    static String tableOf(HarvesterType type) {
+        switch (type) {
+            case FTP: return "ftpharvester";
+            case SFTP: return "sftpharvester";
+            case HTTP: return "httpharvester";
+            default: throw new IllegalArgumentException(String.format("unknown type: %s", type));
+        }
+    }
+
+    /**
+     * Only harvesters which log in to their source can have their connection pre-warmed
+     */
+    private static String prewarmColumnOf(HarvesterType type) {
+        return type == HarvesterType.HTTP ? "CAST(NULL AS INTEGER)" : "prewarmseconds";
+    }
+
+    private static HarvesterSchedule toSchedule(Object[] row, HarvesterType type) {
+        return new HarvesterSchedule(((Number) row[0]).intValue(), type, (String) row[2], (Boolean) row[3],
+                row[4] == null ? null : new Date(((Date) row[4]).getTime()),
+                row[5] == null ? null : ((Number) row[5]).intValue(),
+                row[6] == null ? null : MisfirePolicy.valueOf((String) row[6]),
+                row[7] == null ? null : ((Number) row[7]).intValue(),
+                row[8] == null ? null : ((Number) row[8]).intValue(),
+                (String) row[9],
+                row[10] == null ? null : new Date(((Date) row[10]).getTime()));
+    }
+
     /**
      * This is a work-around method to get the type of a given harvester config.
      * Since the database doesn't have the same class hierarchy that the java
@@ -148,12 +241,17 @@ public class HarvesterConfigRepository {
         final T originalEntity = entityManager.find(
                 InvariantUtil.checkNotNullOrThrow(type, "type"),
                 entity.getId());
+        final T saved;
         if (originalEntity == null) {
             entityManager.persist(entity);
-            return entity;
+            saved = entity;
+        } else {
+            entityManager.detach(originalEntity);
+            saved = entityManager.merge(entity);
         }
-        entityManager.detach(originalEntity);
-        return entityManager.merge(entity);
+        runScheduleBean.evict(saved.getId());
+        harvestPlan.replan(saved);
+        return saved;
     }
 
     /**
@@ -167,6 +265,17 @@ public class HarvesterConfigRepository {
         T entity = entityManager.find(type, id);
         if(entity != null) {
             entityManager.remove(entity);
+            entityManager.createNativeQuery("DELETE FROM harvestlease WHERE configid = ?1")
+                    .setParameter(1, id)
+                    .executeUpdate();
+            entityManager.createNativeQuery("DELETE FROM harvestarrival WHERE configid = ?1")
+                    .setParameter(1, id)
+                    .executeUpdate();
+            entityManager.createNativeQuery("DELETE FROM harvestedfile WHERE configid = ?1")
+                    .setParameter(1, id)
+                    .executeUpdate();
+            runScheduleBean.forget(id);
+            harvestPlan.remove(id);
         } else {
             throw new IllegalArgumentException(
                 String.format("no entity with id %s found", id));
@@ -0,0 +1,213 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Circuit breakers for remote hosts, shared by all harvesters.
+ * <p>
+ * A breaker opens when a number of consecutive requests to a host have failed,
+ * and stays open for a backoff period which doubles every time the breaker
+ * opens again, with some random jitter so configs on the same host do not
+ * all come back at once. When the period is over, the breaker is half-open
+ * and lets a single probe through. If the probe succeeds the breaker closes,
+ * otherwise it opens again.
+ */
+@ApplicationScoped
+public class HostBreakers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostBreakers.class);
+    /** a half-open breaker lets a new probe through if the previous one never reported back */
+    private static final Duration PROBE_TIMEOUT = Duration.ofMinutes(30);
+    private static final double JITTER = 0.2;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+    private DoubleSupplier random = () -> ThreadLocalRandom.current().nextDouble();
+    @Inject
+    MetricRegistry metricRegistry;
+    @Inject
+    @ConfigProperty(name = "HOST_BREAKER_FAILURE_THRESHOLD", defaultValue = "3")
+    int failureThreshold;
+    @Inject
+    @ConfigProperty(name = "HOST_BREAKER_BACKOFF_SECONDS", defaultValue = "60")
+    int backoffSeconds;
+    @Inject
+    @ConfigProperty(name = "HOST_BREAKER_MAX_BACKOFF_SECONDS", defaultValue = "3600")
+    int maxBackoffSeconds;
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    public HostBreakers() {
+    }
+
+    public HostBreakers(int failureThreshold, Duration backoff, Duration maxBackoff, Clock clock, DoubleSupplier random, MetricRegistry metricRegistry) {
+        this.failureThreshold = failureThreshold;
+        this.backoffSeconds = (int) backoff.toSeconds();
+        this.maxBackoffSeconds = (int) maxBackoff.toSeconds();
+        this.clock = clock;
+        this.random = random;
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Asks whether a request to a host may be made. A half-open breaker only
+     * allows a single probe, whose result must be reported with {@link #success}
+     * or {@link #failure}.
+     * @param host remote host, requests are always allowed if null
+     * @return true if the request may be made
+     */
+    public boolean allowRequest(String host) {
+        if (host == null) return true;
+        String key = key(host);
+        boolean allowed = breaker(key).allowRequest(clock.instant());
+        if (!allowed) metricRegistry.counter("host_breaker_rejected", new Tag("host", key)).inc();
+        return allowed;
+    }
+
+    public void success(String host) {
+        if (host == null) return;
+        breaker(key(host)).success();
+    }
+
+    public void failure(String host) {
+        if (host == null) return;
+        String key = key(host);
+        if (breaker(key).failure(clock.instant())) {
+            metricRegistry.counter("host_breaker_opened", new Tag("host", key)).inc();
+        }
+    }
+
+    public State getState(String host) {
+        if (host == null) return State.CLOSED;
+        Breaker breaker = breakers.get(key(host));
+        return breaker == null ? State.CLOSED : breaker.getState(clock.instant());
+    }
+
+    /**
+     * @param host remote host
+     * @return time until the breaker of the host lets a probe through, zero if it is not open
+     */
+    public Duration retryAfter(String host) {
+        if (host == null) return Duration.ZERO;
+        Breaker breaker = breakers.get(key(host));
+        if (breaker == null) return Duration.ZERO;
+        Duration remaining = breaker.retryAfter(clock.instant());
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    /**
+     * Closes the breaker of a host, for use when the host is known to be back
+     * @param host remote host
+     */
+    public void reset(String host) {
+        Breaker breaker = breakers.get(key(host));
+        if (breaker != null) breaker.success();
+    }
+
+    /**
+     * @return state, consecutive failures and time of the next probe per host
+     */
+    public Map<String, Map<String, Object>> getStatus() {
+        Instant now = clock.instant();
+        Map<String, Map<String, Object>> status = new TreeMap<>();
+        breakers.forEach((host, breaker) -> status.put(host, breaker.getStatus(now)));
+        return status;
+    }
+
+    private Breaker breaker(String key) {
+        return breakers.computeIfAbsent(key, k -> {
+            Breaker breaker = new Breaker(k);
+            metricRegistry.gauge("host_breaker_state", () -> breaker.getState(clock.instant()).ordinal(), new Tag("host", k));
+            return breaker;
+        });
+    }
+
+    private static String key(String host) {
+        return host.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private class Breaker {
+        private final String host;
+        private int failures = 0;
+        private int opened = 0;
+        private Instant openUntil = null;
+        private Instant probeStarted = null;
+
+        private Breaker(String host) {
+            this.host = host;
+        }
+
+        private synchronized boolean allowRequest(Instant now) {
+            if (openUntil == null) return true;
+            if (now.isBefore(openUntil)) return false;
+            if (probeStarted != null && now.isBefore(probeStarted.plus(PROBE_TIMEOUT))) return false;
+            probeStarted = now;
+            LOGGER.info("Probing host {}", host);
+            return true;
+        }
+
+        private synchronized void success() {
+            if (openUntil != null) LOGGER.info("Host {} is available again, closing circuit", host);
+            failures = 0;
+            opened = 0;
+            openUntil = null;
+            probeStarted = null;
+        }
+
+        /**
+         * @return true if the breaker was opened by this failure
+         */
+        private synchronized boolean failure(Instant now) {
+            failures++;
+            if (openUntil == null && failures < failureThreshold) return false;
+            // requests that were started before the breaker opened do not prolong it
+            if (openUntil != null && now.isBefore(openUntil)) return false;
+            opened++;
+            long backoff = Math.min((long) backoffSeconds << Math.min(opened - 1, 30), maxBackoffSeconds);
+            double jitter = 1 + JITTER * (2 * random.getAsDouble() - 1);
+            openUntil = now.plusMillis((long) (backoff * 1000 * jitter));
+            probeStarted = null;
+            LOGGER.warn("Host {} failed {} times in a row, opening circuit until {}", host, failures, openUntil);
+            return true;
+        }
+
+        private synchronized State getState(Instant now) {
+            if (openUntil == null) return State.CLOSED;
+            return now.isBefore(openUntil) ? State.OPEN : State.HALF_OPEN;
+        }
+
+        private synchronized Duration retryAfter(Instant now) {
+            return openUntil == null ? Duration.ZERO : Duration.between(now, openUntil);
+        }
+
+        private synchronized Map<String, Object> getStatus(Instant now) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", getState(now));
+            status.put("failures", failures);
+            status.put("openUntil", openUntil == null ? null : openUntil.toString());
+            return status;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of concurrent connections to each remote host.
+ * Limits are configured as a comma separated list of host=limit pairs,
+ * hosts which are not listed get the default limit.
+ */
+@ApplicationScoped
+public class HostPermits {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostPermits.class);
+    private final Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+    private final Map<String, Integer> limits = new HashMap<>();
+    @Inject
+    MetricRegistry metricRegistry;
+    @Inject
+    @ConfigProperty(name = "HOST_CONNECTION_LIMIT", defaultValue = "4")
+    int defaultLimit;
+    @Inject
+    @ConfigProperty(name = "HOST_CONNECTION_LIMITS", defaultValue = "")
+    Set<String> hostLimits;
+
+    public HostPermits() {
+    }
+
+    public HostPermits(int defaultLimit, Map<String, Integer> limits, MetricRegistry metricRegistry) {
+        this.defaultLimit = defaultLimit;
+        this.metricRegistry = metricRegistry;
+        limits.forEach((host, limit) -> this.limits.put(key(host), limit));
+    }
+
+    @PostConstruct
+    public void init() {
+        if (hostLimits == null) return;
+        for (String hostLimit : hostLimits) {
+            String[] parts = hostLimit.split("=");
+            try {
+                limits.put(key(parts[0]), Integer.parseInt(parts[1].trim()));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ignoring invalid host connection limit \"{}\"", hostLimit);
+            }
+        }
+        LOGGER.info("Host connection limits {}, default {}", limits, defaultLimit);
+    }
+
+    /**
+     * Waits for a connection permit for a host. The permit must be closed
+     * when the connection is closed.
+     * @param host remote host, no permit is needed if null
+     * @return permit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Permit acquire(String host) throws InterruptedException {
+        if (host == null) return () -> {};
+        String key = key(host);
+        Semaphore semaphore = semaphores.computeIfAbsent(key, this::newSemaphore);
+        Instant start = Instant.now();
+        semaphore.acquire();
+        metricRegistry.timer("host_permit_wait", new Tag("host", key)).update(Duration.between(start, Instant.now()));
+        return permitOf(semaphore);
+    }
+
+    /**
+     * Takes a connection permit for a host if one is free, without waiting
+     * @param host remote host, no permit is needed if null
+     * @return permit, or null if all permits of the host are in use
+     */
+    public Permit tryAcquire(String host) {
+        if (host == null) return () -> {};
+        Semaphore semaphore = semaphores.computeIfAbsent(key(host), this::newSemaphore);
+        return semaphore.tryAcquire() ? permitOf(semaphore) : null;
+    }
+
+    public int getLimit(String host) {
+        return limits.getOrDefault(key(host), defaultLimit);
+    }
+
+    public int getInUse(String host) {
+        Semaphore semaphore = semaphores.get(key(host));
+        return semaphore == null ? 0 : getLimit(host) - semaphore.availablePermits();
+    }
+
+    private Semaphore newSemaphore(String key) {
+        metricRegistry.gauge("host_permits_in_use", () -> getInUse(key), new Tag("host", key));
+        return new Semaphore(getLimit(key), true);
+    }
+
+    private static Permit permitOf(Semaphore semaphore) {
+        // a permit may be closed both by its connection and by the one who took it
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) semaphore.release();
+        };
+    }
+
+    private static String key(String host) {
+        return host.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -104,6 +104,12 @@ public class HttpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
         return resumable;
     }
 
+    @Override
+    public boolean isConcurrent() {
+        // requests of the shared client do not interfere with each other
+        return true;
+    }
+
     public String getUrl() {
         return url;
     }
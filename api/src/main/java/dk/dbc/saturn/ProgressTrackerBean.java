@@ -17,6 +17,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static dk.dbc.saturn.DateTimeUtil.DK_ZONE;
+import static dk.dbc.saturn.DateTimeUtil.LOCAL_DATE_TIME_FORMATTER;
+
 @Singleton
 public class ProgressTrackerBean {
     private static final Map<Integer, Progress> progressMap = new ConcurrentHashMap<>();
@@ -41,9 +44,12 @@ public class ProgressTrackerBean {
         private Set<FileHarvest> harvests;
         private String message = null;
         private final Instant startTime = Instant.now();
-        private boolean abort = false;
+        private volatile boolean abort = false;
         private boolean done = false;
-        private final Thread thread;
+        private final AtomicInteger failedAttempts = new AtomicInteger(0);
+        private volatile Instant nextAttempt = null;
+        private volatile Runnable cancelRetry = null;
+        private volatile Thread thread;
 
         public Progress() {
             thread = Thread.currentThread();
@@ -79,7 +85,52 @@ public class ProgressTrackerBean {
             abort = true;
             done = true;
             setMessage("Aborted");
-            thread.interrupt();
+            Runnable cancel = cancelRetry;
+            if (cancel != null) cancel.run();
+            Thread worker = thread;
+            if (worker != null) worker.interrupt();
+        }
+
+        /**
+         * Registers a failed attempt
+         * @return number of failed attempts so far
+         */
+        public int failedAttempt() {
+            return failedAttempts.incrementAndGet();
+        }
+
+        /**
+         * Marks the harvest as waiting for a retry, no thread is working on it meanwhile
+         * @param nextAttempt time of the next attempt
+         * @param cancelRetry cancels the scheduled retry if the harvest is aborted
+         */
+        public void waitForRetry(Instant nextAttempt, Runnable cancelRetry) {
+            this.nextAttempt = nextAttempt;
+            this.cancelRetry = cancelRetry;
+            // the worker thread moves on to other harvests, so it must not be interrupted by an abort
+            thread = null;
+            setMessage("Failed, waiting for retry at " + LOCAL_DATE_TIME_FORMATTER.format(nextAttempt.atZone(DK_ZONE).withNano(0)));
+        }
+
+        /**
+         * Resumes the harvest on the current thread after waiting for a retry
+         */
+        public void retry() {
+            thread = Thread.currentThread();
+            nextAttempt = null;
+            cancelRetry = null;
+            harvests = null;
+            currentFiles.set(0);
+            setMessage(null);
+        }
+
+        public int getFailedAttempts() {
+            return failedAttempts.get();
+        }
+
+        public String getNextAttempt() {
+            Instant next = nextAttempt;
+            return next == null ? null : LOCAL_DATE_TIME_FORMATTER.format(next.atZone(DK_ZONE).withNano(0));
         }
 
         public boolean isAbort() {
@@ -107,6 +158,14 @@ public class ProgressTrackerBean {
             return harvests.stream().map(FileHarvest::getBytesTransferred).filter(Objects::nonNull).mapToLong(Number::longValue).sum();
         }
 
+        /**
+         * @return start of the first attempt, which identifies the harvest run across its retries
+         */
+        @JsonIgnore
+        public Instant getStartTime() {
+            return startTime;
+        }
+
         @JsonIgnore
         public Duration getAge() {
             return Duration.between(startTime, Instant.now());
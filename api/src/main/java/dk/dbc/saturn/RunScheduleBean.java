@@ -5,20 +5,50 @@
 
 package dk.dbc.saturn;
 
-import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
+import com.cronutils.model.CronType;
+import com.cronutils.model.definition.CronDefinitionBuilder;
+import com.cronutils.model.time.ExecutionTime;
+import com.cronutils.parser.CronParser;
+import dk.dbc.saturn.entity.MisfirePolicy;
+import dk.dbc.saturn.entity.Schedulable;
 import dk.dbc.util.RunSchedule;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class RunScheduleBean {
+    private static final CronParser CRON_PARSER = new CronParser(CronDefinitionBuilder.instanceDefinitionFor(CronType.UNIX));
+    static final int DEFAULT_MISFIRE_LIMIT = 24;
+    private final Map<Integer, CompiledSchedule> schedules = new ConcurrentHashMap<>();
+    /** fire times passed over without listing the source, which count as harvested, see {@link AdaptivePolling} */
+    private final Map<Integer, Instant> polled = new ConcurrentHashMap<>();
+
     @Inject
     @ConfigProperty(name = "TIMEZONE", defaultValue = "Europe/Copenhagen")
     String timezone;
+    @Inject
+    @ConfigProperty(name = "HARVEST_JITTER_SECONDS", defaultValue = "0")
+    int jitterSeconds;
+    @Inject
+    @ConfigProperty(name = "HARVEST_MISFIRE_THRESHOLD_SECONDS", defaultValue = "300")
+    int misfireThresholdSeconds = 300;
 
     public RunScheduleBean() {}
 
@@ -26,16 +56,281 @@ public class RunScheduleBean {
         this.timezone = timezone;
     }
 
+    public RunScheduleBean(String timezone, int jitterSeconds) {
+        this.timezone = timezone;
+        this.jitterSeconds = jitterSeconds;
+    }
+
     public RunSchedule newRunScheduleFrom(String expression) throws IllegalArgumentException {
         return new RunSchedule(expression)
                 .withTimezone(ZoneId.of(timezone));
     }
 
-    public <T extends AbstractHarvesterConfigEntity> boolean shouldRun(T config) {
-        return newRunScheduleFrom(config.getSchedule()).isSatisfiedBy(new Date(), config.getLastHarvested());
+    /**
+     * Tells whether a config is due now, which it is from its next fire time,
+     * see {@link #nextFireTime(Schedulable, Instant)}, so a harvest planned for
+     * that time is never turned away when it runs
+     * @param config harvester config
+     * @return true if the config is due
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> boolean shouldRun(T config) throws IllegalArgumentException {
+        return isDue(config, Instant.now());
     }
 
-    public <T extends AbstractHarvesterConfigEntity> boolean shouldSkip(T config) {
-        return !shouldRun(config);
+    public <T extends Schedulable> boolean shouldSkip(T config) {
+        return shouldSkip(config, Instant.now());
+    }
+
+    /**
+     * @param config harvester config
+     * @param now current time
+     * @return true if the config is not due at the given time
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> boolean shouldSkip(T config, Instant now) throws IllegalArgumentException {
+        return !isDue(config, now);
+    }
+
+    /**
+     * Finds the configs which are due at a given point in time, using the
+     * cached schedules. Configs with an invalid schedule are never due.
+     * @param instant point in time
+     * @param configs harvester configs
+     * @return the due configs, in the order they were given
+     */
+    public <T extends Schedulable> List<T> dueAt(Instant instant, Collection<T> configs) {
+        return configs.stream()
+                .filter(config -> {
+                    try {
+                        return isDue(config, instant);
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the time at which a config is next due, based on its schedule and last harvest.
+     * A config which has never been harvested is due right away.
+     * If the first fire time after the last harvest was missed by more than
+     * HARVEST_MISFIRE_THRESHOLD_SECONDS, the config is due right away, unless
+     * its {@link MisfirePolicy} is to skip the missed fire times, in which case
+     * it is due at the first fire time which is not missed.
+     * The fire times of a config are delayed by its jitter, see {@link #jitterOf(int)}.
+     * @param config harvester config
+     * @param now current time
+     * @return next fire time
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> Instant nextFireTime(T config, Instant now) throws IllegalArgumentException {
+        Date lastHarvested = lastHarvestedOf(config);
+        if (lastHarvested == null) return now;
+        Instant next = nextFireTimeAfter(config, lastHarvested.toInstant());
+        if (config.getMisfirePolicy() == MisfirePolicy.SKIP && isMissed(next, now)) {
+            return nextFireTimeAfter(config, now.minusSeconds(misfireThresholdSeconds));
+        }
+        return next;
+    }
+
+    /**
+     * Tells whether a config is behind its schedule, and would catch up on
+     * missed fire times if it ran now
+     * @param config harvester config
+     * @param now current time
+     * @return true if a fire time was missed, and the config does not skip missed fire times
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> boolean isMisfire(T config, Instant now) throws IllegalArgumentException {
+        Date lastHarvested = lastHarvestedOf(config);
+        if (lastHarvested == null || config.getMisfirePolicy() == MisfirePolicy.SKIP) return false;
+        return isMissed(nextFireTimeAfter(config, lastHarvested.toInstant()), now);
+    }
+
+    /**
+     * Finds the missed fire time a scheduled harvest of a config has caught
+     * up to. A config with {@link MisfirePolicy#RUN_ALL} which is more than
+     * one fire time behind has caught up to the fire time it ran for, and its
+     * schedule counts from there, so the next fire time is due right away,
+     * until it has caught up. Its last harvest is the time it actually ran.
+     * @param config harvester config, as it was before this harvest
+     * @param now time the harvest finished
+     * @return fire time the harvest ran for, or null if the config is not behind
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> Instant caughtUpUntil(T config, Instant now) throws IllegalArgumentException {
+        Date lastHarvested = lastHarvestedOf(config);
+        if (lastHarvested == null || config.getMisfirePolicy() != MisfirePolicy.RUN_ALL) return null;
+        List<Instant> behind = fireTimesBetween(config, lastHarvested.toInstant(), now, misfireLimitOf(config));
+        return behind.size() > 1 ? behind.get(0) : null;
+    }
+
+    /**
+     * Finds the first fire time of a config after the given instant, which
+     * is a time that satisfies the schedule of the config delayed by its jitter
+     * @param config harvester config
+     * @param after instant to search from
+     * @return next fire time, or {@link Instant#MAX} if the schedule never fires again
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> Instant nextFireTimeAfter(T config, Instant after) throws IllegalArgumentException {
+        Duration jitter = jitterOf(config.getId());
+        Instant next = nextFireTime(compiled(config), after.minus(jitter));
+        return next.equals(Instant.MAX) ? next : next.plus(jitter);
+    }
+
+    /**
+     * Finds the delay of the fire times of a config, which spreads configs with
+     * the same schedule over a window of HARVEST_JITTER_SECONDS seconds.
+     * The delay is derived from the config id, so it is the same every time and
+     * on every instance. The window must be shorter than the interval of the schedules.
+     * @param configId harvester config id
+     * @return delay
+     */
+    public Duration jitterOf(int configId) {
+        if (jitterSeconds <= 0) return Duration.ZERO;
+        // spread consecutive ids over the window, plain modulo would keep them in order
+        int hash = configId * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return Duration.ofSeconds(Math.floorMod(hash, jitterSeconds));
+    }
+
+    /**
+     * Finds the first time after the given instant that satisfies a cron expression
+     * @param expression cron expression
+     * @param after instant to search from
+     * @return next fire time, or {@link Instant#MAX} if the expression never fires again
+     * @throws IllegalArgumentException if the expression is not a valid cron expression
+     */
+    public Instant nextFireTime(String expression, Instant after) throws IllegalArgumentException {
+        return nextFireTime(new CompiledSchedule(expression), after);
+    }
+
+    /**
+     * Finds the scheduled slot a harvest due at the given time belongs to,
+     * which is the latest time at or before it that satisfies the schedule,
+     * not counting the jitter.
+     * All instances agree on the slot, even if they planned the harvest at
+     * slightly different times.
+     * @param config harvester config
+     * @param due time the harvest is due
+     * @return slot, or the due time itself if the schedule never fired before it
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public <T extends Schedulable> Instant slotOf(T config, Instant due) throws IllegalArgumentException {
+        // cron expressions have minute resolution, so this includes the due time itself
+        return compiled(config).executionTime.lastExecution(due.minus(jitterOf(config.getId())).plusSeconds(1).atZone(ZoneId.of(timezone)))
+                .map(ZonedDateTime::toInstant)
+                .orElse(due);
+    }
+
+    /**
+     * Drops the cached schedule of a config, must be called when the config is changed or deleted
+     * @param configId harvester config id
+     */
+    public void evict(int configId) {
+        schedules.remove(configId);
+    }
+
+    /**
+     * Records that the fire times of a config up to the given time were passed
+     * over without listing the source, so they are not taken for missed fire times.
+     * Only kept in memory, the last harvest of the config is left alone.
+     * @param configId harvester config id
+     * @param polledAt time the config counts as harvested until
+     */
+    public void markPolled(int configId, Instant polledAt) {
+        polled.merge(configId, polledAt, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    /**
+     * Drops everything kept about a config, must be called when the config is deleted or disabled
+     * @param configId harvester config id
+     */
+    public void forget(int configId) {
+        schedules.remove(configId);
+        polled.remove(configId);
+    }
+
+    public int cacheSize() {
+        return schedules.size();
+    }
+
+    private boolean isMissed(Instant fireTime, Instant now) {
+        return fireTime.isBefore(now.minusSeconds(misfireThresholdSeconds));
+    }
+
+    private static <T extends Schedulable> int misfireLimitOf(T config) {
+        Integer limit = config.getMisfireLimit();
+        return limit == null || limit < 1 ? DEFAULT_MISFIRE_LIMIT : limit;
+    }
+
+    /**
+     * Finds the latest fire times of a config after one instant and at or before another
+     * @return at most limit fire times, earliest first
+     */
+    private <T extends Schedulable> List<Instant> fireTimesBetween(T config, Instant after, Instant until, int limit) {
+        Duration jitter = jitterOf(config.getId());
+        ExecutionTime executionTime = compiled(config).executionTime;
+        Instant from = after.minus(jitter);
+        // walks back from the end, lastExecution is strictly before the given time
+        ZonedDateTime cursor = until.minus(jitter).plusSeconds(1).atZone(ZoneId.of(timezone));
+        Deque<Instant> fireTimes = new ArrayDeque<>();
+        while (fireTimes.size() < limit) {
+            Optional<ZonedDateTime> previous = executionTime.lastExecution(cursor);
+            if (previous.isEmpty() || !previous.get().toInstant().isAfter(from)) break;
+            fireTimes.addFirst(previous.get().toInstant().plus(jitter));
+            cursor = previous.get();
+        }
+        return new ArrayList<>(fireTimes);
+    }
+
+    /**
+     * Harvests are planned by their next fire time, so that is what tells whether they are due as well
+     */
+    private <T extends Schedulable> boolean isDue(T config, Instant instant) {
+        return !nextFireTime(config, instant).isAfter(instant);
+    }
+
+    /**
+     * The last harvest of a config, or the fire time it is catching up from, see
+     * {@link #caughtUpUntil}, or the last fire time it passed over without listing if that is later
+     */
+    private <T extends Schedulable> Date lastHarvestedOf(T config) {
+        Date lastHarvested = config.getMisfirePolicy() == MisfirePolicy.RUN_ALL && config.getCaughtUpUntil() != null
+                ? config.getCaughtUpUntil() : config.getLastHarvested();
+        Instant mark = polled.get(config.getId());
+        if (mark == null) return lastHarvested;
+        if (lastHarvested != null && !lastHarvested.toInstant().isBefore(mark)) {
+            // a harvest has run since, which supersedes the mark
+            polled.remove(config.getId(), mark);
+            return lastHarvested;
+        }
+        return Date.from(mark);
+    }
+
+    private Instant nextFireTime(CompiledSchedule schedule, Instant after) {
+        return schedule.executionTime.nextExecution(after.atZone(ZoneId.of(timezone)))
+                .map(ZonedDateTime::toInstant)
+                .orElse(Instant.MAX);
+    }
+
+    private <T extends Schedulable> CompiledSchedule compiled(T config) {
+        CompiledSchedule schedule = schedules.get(config.getId());
+        if (schedule != null && Objects.equals(schedule.expression, config.getSchedule())) return schedule;
+        schedule = new CompiledSchedule(config.getSchedule());
+        schedules.put(config.getId(), schedule);
+        return schedule;
+    }
+
+    private static class CompiledSchedule {
+        private final String expression;
+        private final ExecutionTime executionTime;
+
+        private CompiledSchedule(String expression) throws IllegalArgumentException {
+            this.expression = expression;
+            this.executionTime = ExecutionTime.forCron(CRON_PARSER.parse(expression));
+        }
     }
 }
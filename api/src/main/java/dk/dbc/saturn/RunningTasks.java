@@ -1,47 +1,133 @@
 package dk.dbc.saturn;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
 import jakarta.ejb.Singleton;
 import jakarta.inject.Inject;
 import org.eclipse.microprofile.metrics.MetricRegistry;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+/**
+ * Keeps track of harvest tasks which are waiting in the executor queue
+ * and tasks which are running, so a config is never queued or run twice.
+ * The maps are concurrent, so the container lock is not needed, and with the
+ * default write lock all harvests would be serialized by {@link #run}.
+ */
 @Singleton
+@Lock(LockType.READ)
 public class RunningTasks {
+    private final Map<Integer, Instant> pendingHarvestTasks = new ConcurrentHashMap<>();
     private final Map<Integer, Instant> runningHarvestTasks = new ConcurrentHashMap<>();
     @Inject
     private MetricRegistry metricRegistry;
 
+    public RunningTasks() {
+    }
+
+    public RunningTasks(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
     @PostConstruct
     public void init() {
         metricRegistry.gauge("running_tasks", this::size);
+        metricRegistry.gauge("pending_tasks", this::pendingSize);
         metricRegistry.gauge("longest_running_task", () -> getLongestRunningTask().toSeconds());
     }
 
-    public void run(Integer id, Consumer<Void> block) {
-        if(runningHarvestTasks.containsKey(id)) return;
-        runningHarvestTasks.put(id, Instant.now());
+    /**
+     * Registers a task as pending, unless the config is already pending or running
+     * @param id harvester config id
+     * @return true if the task should be submitted, false if it was coalesced with an existing task
+     */
+    public boolean enqueue(Integer id) {
+        Instant enqueued = Instant.now();
+        if (runningHarvestTasks.containsKey(id) || pendingHarvestTasks.putIfAbsent(id, enqueued) != null) {
+            metricRegistry.counter("coalesced_tasks").inc();
+            return false;
+        }
+        // a task which started running after the first look is no longer pending, so it is looked for again
+        if (runningHarvestTasks.containsKey(id)) {
+            pendingHarvestTasks.remove(id, enqueued);
+            metricRegistry.counter("coalesced_tasks").inc();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a pending task which was never submitted
+     * @param id harvester config id
+     */
+    public void cancel(Integer id) {
+        pendingHarvestTasks.remove(id);
+    }
+
+    /**
+     * Registers a task as pending again after it has run, used while a failed
+     * harvest waits for its retry, so it is not submitted twice meanwhile
+     * @param id harvester config id
+     */
+    public void requeue(Integer id) {
+        pendingHarvestTasks.put(id, Instant.now());
+    }
+
+    /**
+     * Runs a task, unless a task of the config is already running
+     * @param id harvester config id
+     * @param block the task
+     * @return true if the task was run, false if it bailed out because
+     * another task of the config is running
+     */
+    public boolean run(Integer id, Consumer<Void> block) {
+        // the task is running before it stops being pending, so a submission in between is coalesced
+        if (runningHarvestTasks.putIfAbsent(id, Instant.now()) != null) return false;
+        pendingHarvestTasks.remove(id);
         try {
             block.accept(null);
         } finally {
             runningHarvestTasks.remove(id);
         }
+        return true;
+    }
+
+    /**
+     * @param id harvester config id
+     * @return true if a harvest of the config is queued, running or waiting for a retry
+     */
+    public boolean isPending(Integer id) {
+        return pendingHarvestTasks.containsKey(id) || runningHarvestTasks.containsKey(id);
     }
 
     public int size() { return runningHarvestTasks.size(); }
 
+    public int pendingSize() { return pendingHarvestTasks.size(); }
+
     public Duration getLongestRunningTask() {
         Map<Integer, Instant> snapshot = new HashMap<>(runningHarvestTasks);
         Instant now = Instant.now();
+        // the longest running task is the one which started first
         return snapshot.values().stream()
-                .reduce((a, b) -> a.isAfter(b) ? a : b)
+                .min(Comparator.naturalOrder())
                 .map(i -> Duration.between(i, now))
                 .orElse(Duration.ZERO);
     }
+
+    /**
+     * Thrown when a task bailed out because another task of the config is
+     * running, the running task owns the lease of the config and releases it
+     */
+    public static class AlreadyRunningException extends IllegalStateException {
+        public AlreadyRunningException(int id) {
+            super("Harvester " + id + " is already running");
+        }
+    }
 }
@@ -5,8 +5,12 @@ import dk.dbc.commons.sftpclient.SFtpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class SFtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
     private static final Logger LOGGER = LoggerFactory.getLogger(
@@ -18,6 +22,7 @@ public class SFtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
     private final Status status;
     private final Number size;
     private final AtomicReference<ByteCountingInputStream> countingInputStream = new AtomicReference<>();
+    private Supplier<SFtpClient> connector;
 
     public SFtpFileHarvest(String dir, String filename, Integer seqno, SFtpClient sftpClient, Status status, Number size) {
         this.filename = filename;
@@ -28,6 +33,18 @@ public class SFtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
         this.size = size;
     }
 
+    /**
+     * Lets the file be fetched over a session of its own, instead of the
+     * session it was listed with, so it can be fetched at the same time as
+     * other files of the harvest
+     * @param connector opens a new session with the source
+     * @return this file
+     */
+    public SFtpFileHarvest withConnector(Supplier<SFtpClient> connector) {
+        this.connector = connector;
+        return this;
+    }
+
     @Override
     public String getFilename() {
         return filename;
@@ -52,11 +69,38 @@ public class SFtpFileHarvest implements Comparable<FileHarvest>, FileHarvest {
     @JsonIgnore
     public ByteCountingInputStream getContent() {
         LOGGER.info("Trying to get: {}", filename);
-        ByteCountingInputStream stream = new ByteCountingInputStream(sftpClient.getContent(filename));
+        ByteCountingInputStream stream = new ByteCountingInputStream(connector == null ? sftpClient.getContent(filename) : getConnected());
         countingInputStream.set(stream);
         return stream;
     }
 
+    @Override
+    public boolean isConcurrent() {
+        return connector != null;
+    }
+
+    /**
+     * Fetches the file over a new session, which is closed with the stream
+     */
+    private InputStream getConnected() {
+        SFtpClient client = connector.get();
+        try {
+            return new FilterInputStream(client.getContent(filename)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        client.close();
+                    }
+                }
+            };
+        } catch (RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
     @Override
     public Integer getSeqno() {
         return seqno;
@@ -10,6 +10,7 @@ import com.jcraft.jsch.JSch;
 import dk.dbc.commons.sftpclient.SFTPConfig;
 import dk.dbc.commons.sftpclient.SFtpClient;
 import dk.dbc.proxy.ProxyBean;
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
 import dk.dbc.util.Stopwatch;
 import jakarta.annotation.PostConstruct;
@@ -23,12 +24,15 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @LocalBean
 @Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
     private static final Logger LOGGER = LoggerFactory.getLogger(SFtpHarvesterBean.class);
     @EJB
@@ -45,7 +49,6 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
         JSch.setConfig("server_host_key", jschServerHostKey);
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Set<FileHarvest> listFiles(SFtpHarvesterConfig sFtpHarvesterConfig) {
         final SeqnoMatcher seqnoMatcher = new SeqnoMatcher(sFtpHarvesterConfig);
         final Stopwatch stopwatch = new Stopwatch();
@@ -57,8 +60,9 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
                 sFtpHarvesterConfig.getFilesPattern());
         LOGGER.info("None proxied hosts {}", String.join(", ", nonProxiedHosts != null ? nonProxiedHosts : Set.of()));
         Set<FileHarvest> fileHarvests = new HashSet<>();
-        SFTPConfig config = makeConfig(sFtpHarvesterConfig);
-        try (SFtpClient sftpClient = new SFtpClient(config, proxyBean.getProxy(), nonProxiedHosts != null ? nonProxiedHosts : Set.of())) {
+        // files transferred in parallel each need a session of their own
+        Supplier<SFtpClient> connector = transfersInParallel(sFtpHarvesterConfig) ? () -> login(sFtpHarvesterConfig) : null;
+        try (SFtpClient sftpClient = connect(sFtpHarvesterConfig)) {
             for (ChannelSftp.LsEntry lsEntry : sftpClient.ls(sFtpHarvesterConfig.getFilesPattern())) {
                 String filename = lsEntry.getFilename();
                 if (filename != null && !filename.isEmpty() && seqnoMatcher.shouldFetch(filename.trim())) {
@@ -75,7 +79,8 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
                             filename,
                             seqnoMatcher.getSeqno(),
                             sftpClient,
-                            FileHarvest.Status.AWAITING_DOWNLOAD, lsEntry.getAttrs().getSize());
+                            FileHarvest.Status.AWAITING_DOWNLOAD, lsEntry.getAttrs().getSize())
+                            .withConnector(connector);
                     fileHarvests.add(fileHarvest);
 
                 }
@@ -90,7 +95,6 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
         }
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Set<FileHarvest> listAllFiles(SFtpHarvesterConfig sFtpHarvesterConfig) {
         final SeqnoMatcher seqnoMatcher = new SeqnoMatcher(sFtpHarvesterConfig);
         final FileNameMatcher fileNameMatcher = new FileNameMatcher(sFtpHarvesterConfig.getFilesPattern());
@@ -130,6 +134,22 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
         }
     }
 
+    @Override
+    protected void warm(SFtpHarvesterConfig sFtpHarvesterConfig, Instant due, HostPermits.Permit permit) {
+        warmConnections.warm(sFtpHarvesterConfig.getId(), HarvesterType.SFTP, due, permit,
+                () -> login(sFtpHarvesterConfig), SFtpClient::close);
+    }
+
+    private SFtpClient connect(SFtpHarvesterConfig sFtpHarvesterConfig) {
+        return warmConnections.connect(sFtpHarvesterConfig.getId(), HarvesterType.SFTP, SFtpClient.class,
+                // the server may have dropped an idle session, which shows on the first command
+                () -> login(sFtpHarvesterConfig), sftpClient -> sftpClient.pwd() != null);
+    }
+
+    private SFtpClient login(SFtpHarvesterConfig sFtpHarvesterConfig) {
+        return new SFtpClient(makeConfig(sFtpHarvesterConfig), proxyBean.getProxy(), nonProxiedHosts != null ? nonProxiedHosts : Set.of());
+    }
+
     private SFTPConfig makeConfig(SFtpHarvesterConfig sFtpHarvesterConfig) {
         SFTPConfig config = new SFTPConfig()
                 .withHost(sFtpHarvesterConfig.getHost())
@@ -141,4 +161,9 @@ public class SFtpHarvesterBean extends Harvester<SFtpHarvesterConfig> {
         else config.withPrivateKey(sFtpHarvesterConfig.getPrivateKey()).withPublicKey(sFtpHarvesterConfig.getPublicKey());
         return config;
     }
+
+    @Override
+    public String hostOf(SFtpHarvesterConfig sFtpHarvesterConfig) {
+        return sFtpHarvesterConfig.getHost();
+    }
 }
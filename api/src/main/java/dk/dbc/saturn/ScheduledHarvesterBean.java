@@ -5,32 +5,59 @@
 
 package dk.dbc.saturn;
 
+import dk.dbc.saturn.HarvestLanes.Lane;
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
+import dk.dbc.saturn.entity.HarvesterSchedule;
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import jakarta.ejb.DependsOn;
 import jakarta.ejb.EJB;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
 import jakarta.ejb.Schedule;
 import jakarta.ejb.Singleton;
 import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedScheduledExecutorService;
 import jakarta.enterprise.concurrent.ManagedThreadFactory;
 import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.eclipse.microprofile.metrics.Tag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Plans and dispatches the harvests.
+ * <p>
+ * The bean uses a read lock, with the default container write lock a slow
+ * resync would hold up the lease heartbeat, pre-warming, releases of held
+ * harvests and manual runs. Its state is kept in concurrent collections, or
+ * in the plan, the queue and the executor which guard their own state,
+ * the catch-up slots are only used by the dispatcher thread, and the leases
+ * taken by pre-warms are claimed and handed over under their own lock.
+ */
 @Startup
 @Singleton
-@DependsOn("ProxyBean")
+@Lock(LockType.READ)
+@DependsOn({"ProxyBean", "HarvesterConfigIndex"})
 public class ScheduledHarvesterBean {
     private static final Logger LOGGER = LoggerFactory.getLogger(ScheduledHarvesterBean.class);
     @EJB
@@ -41,13 +68,55 @@ public class ScheduledHarvesterBean {
     private SFtpHarvesterBean sftpHarvesterBean;
     @EJB
     private HarvesterConfigRepository harvesterConfigRepository;
+    @EJB
+    private HarvesterConfigIndex configIndex;
+    @EJB
+    private HarvestLeases harvestLeases;
     @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
     private ManagedThreadFactory threadFactory;
-    private ThreadPoolExecutor executorService;
+    private HarvestExecutor executorService;
+    private FairShareQueue fairShareQueue;
+    @Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+    private ManagedScheduledExecutorService retryExecutor;
+    @EJB
+    private ProgressTrackerBean progressTrackerBean;
     @Inject
     private MetricRegistry metricRegistry;
     @Inject
     private RunScheduleBean runScheduleBean;
+    @Inject
+    private HarvestPlan harvestPlan;
+    @Inject
+    private RunningTasks runningTasks;
+    @Inject
+    private AdaptivePolling adaptivePolling;
+    @Inject
+    private WarmConnections warmConnections;
+    @Inject
+    private AgencyShares agencyShares;
+    @Inject
+    private HarvestLanes harvestLanes;
+    @Inject
+    @ConfigProperty(name = "HARVEST_PLAN_MAX_SLEEP_SECONDS", defaultValue = "60")
+    int maxSleepSeconds;
+    @Inject
+    @ConfigProperty(name = "HARVEST_POOL_SIZE", defaultValue = "8")
+    int poolSize;
+    @Inject
+    @ConfigProperty(name = "HARVEST_LEASES_ENABLED", defaultValue = "false")
+    boolean leasesEnabled;
+    @Inject
+    @ConfigProperty(name = "HARVEST_CATCHUP_PER_MINUTE", defaultValue = "10")
+    int catchUpPerMinute;
+    private final Set<Integer> leases = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, ScheduledFuture<?>> retries = new ConcurrentHashMap<>();
+    /** slots leased ahead of their harvest by a pre-warm, per config */
+    private final Map<Integer, Instant> prewarmLeases = new ConcurrentHashMap<>();
+    private Thread dispatcher;
+    /** release times given to deferred overdue harvests, per config, only used by the dispatcher */
+    private final Map<Integer, Instant> catchUpSlots = new HashMap<>();
+    /** the earliest time the next overdue harvest without a slot may be released, only used by the dispatcher */
+    private Instant catchUpTail = Instant.MIN;
 
     public ScheduledHarvesterBean() {
     }
@@ -59,38 +128,473 @@ public class ScheduledHarvesterBean {
         this.harvesterConfigRepository = harvesterConfigRepository;
     }
 
+    public ScheduledHarvesterBean(HTTPHarvesterBean httpHarvesterBean, FtpHarvesterBean ftpHarvesterBean, SFtpHarvesterBean sftpHarvesterBean, HarvesterConfigRepository harvesterConfigRepository,
+                                  HarvesterConfigIndex configIndex, HarvestPlan harvestPlan) {
+        this(httpHarvesterBean, ftpHarvesterBean, sftpHarvesterBean, harvesterConfigRepository);
+        this.configIndex = configIndex;
+        this.harvestPlan = harvestPlan;
+    }
+
     @PostConstruct
     public void init() {
         // For some reason we need to touch the MDC context initially
         // to get any MDC logging at all???
         MDC.clear();
-        executorService = new ThreadPoolExecutor(1, 16, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executorService = HarvestExecutor.pooled(poolSize, threadFactory);
+        fairShareQueue = new FairShareQueue(executorService, agencyShares, harvestLanes);
+        LOGGER.info("Harvesting with {} concurrent tasks", poolSize);
+        try {
+            harvestLanes.checkReservations(poolSize);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("{}, the lanes below the reservations get one slot each", e.getMessage());
+        }
         metricRegistry.gauge("harvest_scheduler_threads", executorService::getActiveCount, new Tag("status", "active"));
         metricRegistry.gauge("harvest_scheduler_threads", executorService::getCompletedTaskCount, new Tag("status", "completedTasks"));
-        metricRegistry.gauge("harvest_scheduler_threads", executorService::getPoolSize, new Tag("status", "poolSize"));
-        metricRegistry.gauge("harvest_scheduler_threads", executorService::getMaximumPoolSize, new Tag("status", "maxPoolSize"));
+        metricRegistry.gauge("harvest_scheduler_threads", executorService::getThreadCount, new Tag("status", "poolSize"));
+        metricRegistry.gauge("harvest_scheduler_threads", executorService::getConcurrency, new Tag("status", "maxPoolSize"));
+        metricRegistry.gauge("harvest_scheduler_queue", () -> fairShareQueue.size() + executorService.getQueueSize());
+        for (Lane lane : Lane.values()) {
+            metricRegistry.gauge("harvest_lane_queued", () -> fairShareQueue.size(lane), laneTag(lane));
+            metricRegistry.gauge("harvest_lane_running", () -> fairShareQueue.getRunning(lane), laneTag(lane));
+        }
+        metricRegistry.gauge("harvest_plan_size", harvestPlan::size);
+        metricRegistry.gauge("harvest_leases_held", leases::size);
+        metricRegistry.gauge("harvest_retries_waiting", retries::size);
+        metricRegistry.gauge("harvest_prewarm_connections", warmConnections::size);
+        harvest();
+        dispatcher = threadFactory.newThread(this::dispatch);
+        dispatcher.setName("harvest-dispatcher");
+        dispatcher.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (dispatcher != null) dispatcher.interrupt();
+        if (executorService != null) executorService.shutdownNow();
     }
 
-    @Schedule(minute = "*", hour = "*", second = "*/20")
+    /**
+     * Reloads the config index and re-plans every config from the database.
+     * The index is kept current by change notifications, this only serves as
+     * a safety net for notifications which were lost.
+     */
+    @Schedule(minute = "*/10", hour = "*")
     public void harvest() {
         try {
-            harvesterConfigRepository.list(FtpHarvesterConfig.class, 0, 0).forEach(c -> doHarvest(ftpHarvesterBean, c));
-            harvesterConfigRepository.list(SFtpHarvesterConfig.class, 0, 0).forEach(c -> doHarvest(sftpHarvesterBean, c));
-            harvesterConfigRepository.list(HttpHarvesterConfig.class, 0, 0).forEach(c -> doHarvest(httpHarvesterBean, c));
+            configIndex.resync();
+        } catch (Exception e) {
+            LOGGER.error("caught unexpected exception while planning harvests", e);
+        }
+    }
+
+    /**
+     * Extends the leases of the running harvests, and takes over harvests
+     * orphaned by instances which stopped without releasing their leases
+     */
+    @Schedule(second = "*/20", minute = "*", hour = "*")
+    public void heartbeat() {
+        if (!leasesEnabled) return;
+        try {
+            harvestLeases.heartbeat(Set.copyOf(leases));
+            for (HarvestLeases.Orphan orphan : harvestLeases.recoverExpired(poolSize)) {
+                LOGGER.info("Recovering orphaned harvest of harvester {}", orphan.getConfigId());
+                metricRegistry.counter("harvest_leases_recovered").inc();
+                harvestPlan.plan(orphan.getConfigId(), orphan.getType(), Instant.now());
+            }
+        } catch (Exception e) {
+            LOGGER.error("caught unexpected exception while renewing harvest leases", e);
+        }
+    }
+
+    /**
+     * Starts harvests which were held back by an hourly byte quota of their
+     * agency, once the hour is over
+     */
+    @Schedule(minute = "*", hour = "*")
+    public void releaseHeld() {
+        fairShareQueue.drain();
+    }
+
+    /**
+     * Opens the connections of configs with a pre-warm setting shortly before
+     * their next fire time, and closes pre-warmed connections which were not used.
+     * Only fire times which will list the source are pre-warmed.
+     */
+    @Schedule(second = "*/5", minute = "*", hour = "*")
+    public void prewarm() {
+        try {
+            warmConnections.expire();
+            Instant now = Instant.now();
+            expirePrewarmLeases(now);
+            for (HarvesterSchedule schedule : configIndex.getPrewarmed()) {
+                Instant due = harvestPlan.dueOf(schedule.getId()).orElse(null);
+                int prewarmSeconds = Math.min(schedule.getPrewarmSeconds(), WarmConnections.MAX_PREWARM_SECONDS);
+                if (due == null || now.isBefore(due.minusSeconds(prewarmSeconds))) continue;
+                if (runningTasks.isPending(schedule.getId()) || runScheduleBean.shouldSkip(schedule)
+                        || !adaptivePolling.shouldPoll(schedule, due)) continue;
+                if (!warmConnections.claim(schedule.getId(), due)) continue;
+                // logging in takes a while, so it is done off the timer thread
+                retryExecutor.submit(() -> prewarm(schedule, due));
+            }
         } catch (Exception e) {
-            LOGGER.error("caught unexpected exception while harvesting", e);
+            LOGGER.error("caught unexpected exception while pre-warming connections", e);
         }
     }
 
+    private void prewarm(HarvesterSchedule schedule, Instant due) {
+        try {
+            if (leasesEnabled) {
+                // the instance which pre-warms a slot is the one to harvest it
+                Instant slot = runScheduleBean.slotOf(schedule, due);
+                synchronized (prewarmLeases) {
+                    if (!harvestLeases.claim(schedule.getId(), schedule.getType(), slot)) return;
+                    leases.add(schedule.getId());
+                    prewarmLeases.put(schedule.getId(), slot);
+                }
+            }
+            switch (schedule.getType()) {
+                case FTP:
+                    ftpHarvesterBean.prewarm(FtpHarvesterConfig.class, schedule.getId(), due);
+                    break;
+                case SFTP:
+                    sftpHarvesterBean.prewarm(SFtpHarvesterConfig.class, schedule.getId(), due);
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // the harvest connects on its own
+            LOGGER.warn("Unable to pre-warm connection of harvester {}", schedule.getId(), e);
+            metricRegistry.counter("harvest_prewarm_failed", typeTag(schedule.getType())).inc();
+        }
+    }
+
+    /**
+     * Releases the leases taken by pre-warms whose harvest never came, e.g.
+     * because the config was changed in the meantime
+     */
+    private void expirePrewarmLeases(Instant now) {
+        prewarmLeases.forEach((configId, slot) -> {
+            if (now.isAfter(slot.plus(WarmConnections.UNUSED_AFTER)) && prewarmLeases.remove(configId, slot)) {
+                releaseLease(configId);
+            }
+        });
+    }
+
+    /**
+     * Releases the lease taken by a pre-warm of a config, if the harvest it was taken for is not going to run
+     */
+    private void releasePrewarmLease(int configId) {
+        if (prewarmLeases.remove(configId) != null) releaseLease(configId);
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<HarvestPlan.Entry> due = harvestPlan.awaitDue(Duration.ofSeconds(maxSleepSeconds));
+                if (!due.isEmpty()) tick(due);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOGGER.error("caught unexpected exception while dispatching harvests", e);
+            }
+        }
+        LOGGER.info("Harvest dispatcher stopped");
+    }
+
+    private void tick(List<HarvestPlan.Entry> due) {
+        Instant start = Instant.now();
+        // harvests due at the same time, spread by HARVEST_JITTER_SECONDS
+        metricRegistry.histogram("harvest_dispatch_batch").update(due.size());
+        Map<HarvesterType, Duration> dispatchTimes = new EnumMap<>(HarvesterType.class);
+        for (HarvestPlan.Entry entry : due) {
+            Instant dispatchStart = Instant.now();
+            try {
+                dispatch(entry);
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to dispatch harvester {}, trying again later", entry.getConfigId(), e);
+                harvestPlan.plan(entry.getConfigId(), entry.getType(), Instant.now().plusSeconds(maxSleepSeconds));
+            }
+            dispatchTimes.merge(entry.getType(), Duration.between(dispatchStart, Instant.now()), Duration::plus);
+        }
+        // the share of the tick spent on each type, and the tick as a whole
+        dispatchTimes.forEach((type, time) -> metricRegistry.timer("harvest_scheduler_tick", typeTag(type)).update(time));
+        metricRegistry.timer("harvest_scheduler_tick", new Tag("type", "all")).update(Duration.between(start, Instant.now()));
+    }
+
+    /**
+     * Dispatches a due harvest based on the scheduling projection of its
+     * config from the config index, the full config is only loaded by the
+     * harvester when it starts
+     */
+    private void dispatch(HarvestPlan.Entry entry) {
+        HarvesterSchedule schedule = configIndex.getSchedule(entry.getType(), entry.getConfigId());
+        if (schedule == null || !schedule.isEnabled()) {
+            harvestPlan.remove(entry.getConfigId());
+            releasePrewarmLease(entry.getConfigId());
+            catchUpSlots.remove(entry.getConfigId());
+            return;
+        }
+        Instant now = Instant.now();
+        if (!runScheduleBean.shouldSkip(schedule)) {
+            if (!adaptivePolling.shouldPoll(schedule, entry.getDue())) {
+                // no files are expected at this time, the fire time counts as polled
+                metricRegistry.counter("harvest_listings_saved", typeTag(schedule.getType())).inc();
+                adaptivePolling.skipped(schedule.getId());
+                runScheduleBean.markPolled(schedule.getId(), now);
+                releasePrewarmLease(schedule.getId());
+                catchUpSlots.remove(schedule.getId());
+                harvestPlan.plan(schedule.getId(), schedule.getType(), runScheduleBean.nextFireTimeAfter(schedule, now));
+                return;
+            }
+            if (runScheduleBean.isMisfire(schedule, now)) {
+                // overdue harvests are released gradually, so after a restart
+                // or an outage they do not all start at the same moment
+                Instant slot = catchUpSlotOf(schedule, now);
+                if (slot != null) {
+                    harvestPlan.plan(schedule.getId(), schedule.getType(), slot);
+                    return;
+                }
+            } else {
+                catchUpSlots.remove(schedule.getId());
+            }
+            if (submit(schedule.getId(), schedule.getType(), schedule.getAgency(), harvestLanes.laneOf(schedule.getId()), runScheduleBean.slotOf(schedule, entry.getDue()),
+                    attempt(schedule.getType(), schedule.getId(), false))) {
+                // time from the config became due until its harvest was enqueued
+                metricRegistry.timer("harvest_schedule_lateness", typeTag(schedule.getType())).update(Duration.between(entry.getDue(), Instant.now()));
+            }
+        } else {
+            releasePrewarmLease(schedule.getId());
+            catchUpSlots.remove(schedule.getId());
+        }
+        // plan the next slot right away, the harvester re-plans from
+        // the actual time of harvest when it is done
+        harvestPlan.plan(schedule.getId(), schedule.getType(), runScheduleBean.nextFireTimeAfter(schedule, now));
+    }
+
+    /**
+     * Lets overdue harvests through at a rate of HARVEST_CATCHUP_PER_MINUTE.
+     * An overdue harvest which may not be released now is given a slot of its
+     * own after the slots already given out, so each deferred harvest is
+     * planned and counted once, instead of all of them waking up together.
+     * @param schedule overdue config
+     * @param now current time
+     * @return time to release the harvest at, or null if it may be released now
+     */
+    private Instant catchUpSlotOf(HarvesterSchedule schedule, Instant now) {
+        if (catchUpPerMinute <= 0) return null;
+        Instant slot = catchUpSlots.get(schedule.getId());
+        if (slot != null) {
+            if (now.isBefore(slot)) return slot;
+            catchUpSlots.remove(schedule.getId());
+            return null;
+        }
+        Duration interval = Duration.ofMillis(60_000L / catchUpPerMinute);
+        if (!now.isBefore(catchUpTail)) {
+            catchUpTail = now.plus(interval);
+            return null;
+        }
+        slot = catchUpTail;
+        catchUpTail = catchUpTail.plus(interval);
+        catchUpSlots.put(schedule.getId(), slot);
+        metricRegistry.counter("harvest_catchup_deferred", typeTag(schedule.getType())).inc();
+        return slot;
+    }
+
     public <T extends AbstractHarvesterConfigEntity> void runNow(Class<T> clazz, int configId) {
-        if(clazz == FtpHarvesterConfig.class) executorService.submit(() -> ftpHarvesterBean.runHarvest((Class<FtpHarvesterConfig>) clazz, configId, true));
-        if(clazz == SFtpHarvesterConfig.class) executorService.submit(() -> sftpHarvesterBean.runHarvest((Class<SFtpHarvesterConfig>) clazz, configId, true));
-        if(clazz == HttpHarvesterConfig.class) executorService.submit(() -> httpHarvesterBean.runHarvest((Class<HttpHarvesterConfig>) clazz, configId, true));
+        HarvesterType type = HarvesterType.of(clazz);
+        if (type == null) return;
+        // the index leaves out disabled configs, which may be run by hand as well
+        HarvesterSchedule schedule = harvesterConfigRepository.getSchedule(type, configId);
+        // a manual run is a slot of its own, and does not wait behind scheduled harvests
+        submit(configId, type, schedule == null ? null : schedule.getAgency(), Lane.INTERACTIVE, Instant.now(), attempt(type, configId, true));
+    }
+
+    private Attempt attempt(HarvesterType type, int configId, boolean runNow) {
+        switch (type) {
+            case FTP:
+                return retry -> ftpHarvesterBean.runHarvest(FtpHarvesterConfig.class, configId, runNow, retry);
+            case SFTP:
+                return retry -> sftpHarvesterBean.runHarvest(SFtpHarvesterConfig.class, configId, runNow, retry);
+            case HTTP:
+                return retry -> httpHarvesterBean.runHarvest(HttpHarvesterConfig.class, configId, runNow, retry);
+            default:
+                throw new IllegalArgumentException("Unknown harvester type " + type);
+        }
     }
 
     public <T extends AbstractHarvesterConfigEntity> void doHarvest(Harvester<T> harvester, T config) {
+        doHarvest(harvester, config, Instant.now());
+    }
+
+    /**
+     * Submits a harvest if the config is due
+     * @param harvester harvester for the config type
+     * @param config harvester config
+     * @param due time the harvest was planned for
+     */
+    public <T extends AbstractHarvesterConfigEntity> void doHarvest(Harvester<T> harvester, T config, Instant due) {
         if(!config.isEnabled() || runScheduleBean.shouldSkip(config)) return;
-            //noinspection unchecked
-        executorService.submit(() -> harvester.runHarvest((Class<T>) config.getClass(), config.getId()));
+        Instant slot = runScheduleBean.slotOf(config, due);
+        //noinspection unchecked
+        submit(config.getId(), HarvesterType.of(config.getClass()), config.getAgency(), harvestLanes.laneOf(config.getId()), slot,
+                retry -> harvester.runHarvest((Class<T>) config.getClass(), config.getId(), false, retry));
+    }
+
+    /**
+     * Changes the number of concurrent harvests
+     * @param size new pool size
+     * @throws IllegalArgumentException if size is less than one, or leaves no slot for bulk transfers
+     */
+    public void setPoolSize(int size) throws IllegalArgumentException {
+        if (size < 1) throw new IllegalArgumentException("Pool size must be at least 1, was " + size);
+        harvestLanes.checkReservations(size);
+        LOGGER.info("Changing harvest pool size from {} to {}", executorService.getConcurrency(), size);
+        executorService.setConcurrency(size);
+        fairShareQueue.drain();
+    }
+
+    public Map<String, Number> getPoolStatus() {
+        Map<String, Number> status = new LinkedHashMap<>();
+        status.put("poolSize", executorService.getConcurrency());
+        status.put("threads", executorService.getThreadCount());
+        status.put("active", executorService.getActiveCount());
+        status.put("queued", fairShareQueue.size() + executorService.getQueueSize());
+        for (Lane lane : Lane.values()) {
+            status.put(lane.name().toLowerCase() + "Queued", fairShareQueue.size(lane));
+            status.put(lane.name().toLowerCase() + "Running", fairShareQueue.getRunning(lane));
+        }
+        status.put("completedTasks", executorService.getCompletedTaskCount());
+        status.put("waitingForRetry", retries.size());
+        return status;
+    }
+
+    /**
+     * @return true if the harvest was enqueued, false if it is already queued,
+     * running, or leased by another instance
+     */
+    private boolean submit(int configId, HarvesterType type, String agency, Lane lane, Instant slot, Attempt attempt) {
+        if (!runningTasks.enqueue(configId)) {
+            LOGGER.debug("Harvester {} is already queued or running", configId);
+            return false;
+        }
+        try {
+            if (leasesEnabled && !claimLease(configId, type, slot)) {
+                LOGGER.debug("Harvester {} is leased by another instance", configId);
+                metricRegistry.counter("harvest_leases_lost").inc();
+                runningTasks.cancel(configId);
+                return false;
+            }
+            if (leasesEnabled) leases.add(configId);
+        } catch (RuntimeException e) {
+            runningTasks.cancel(configId);
+            throw e;
+        }
+        execute(configId, type, agency, lane, attempt, false);
+        return true;
+    }
+
+    /**
+     * Runs an attempt on the executor, when the lane of the harvest and the
+     * agency of the config get their turn. If the attempt fails, the retry is scheduled as a delayed task,
+     * the config stays pending and keeps its lease until the harvest is done.
+     */
+    private void execute(int configId, HarvesterType type, String agency, Lane lane, Attempt attempt, boolean retry) {
+        Instant enqueued = Instant.now();
+        fairShareQueue.submit(lane, agency, () -> {
+            Duration queueWait = Duration.between(enqueued, Instant.now());
+            metricRegistry.timer("harvest_scheduler_queue_wait", typeTag(type)).update(queueWait);
+            metricRegistry.timer("harvest_lane_queue_wait", laneTag(lane)).update(queueWait);
+            // the concurrency curve, sampled every time a harvest starts
+            metricRegistry.histogram("harvest_concurrency").update(executorService.getActiveCount());
+            Duration retryDelay = null;
+            boolean duplicate = false;
+            try {
+                retryDelay = attempt.run(retry);
+            } catch (RunningTasks.AlreadyRunningException e) {
+                // the lease belongs to the harvest which is running, and is released when it is done
+                LOGGER.debug("Harvester {} is already running", configId);
+                duplicate = true;
+            } finally {
+                if (!duplicate && (retryDelay == null || !scheduleRetry(configId, type, agency, lane, attempt, retryDelay))) {
+                    done(configId);
+                }
+            }
+        });
+    }
+
+    private boolean scheduleRetry(int configId, HarvesterType type, String agency, Lane lane, Attempt attempt, Duration delay) {
+        try {
+            runningTasks.requeue(configId);
+            ScheduledFuture<?> future = retryExecutor.schedule(() -> {
+                retries.remove(configId);
+                execute(configId, type, agency, lane, attempt, true);
+            }, delay.toMillis(), TimeUnit.MILLISECONDS);
+            retries.put(configId, future);
+            metricRegistry.counter("harvest_retries_scheduled").inc();
+            ProgressTrackerBean.Progress progress = progressTrackerBean.get(configId);
+            if (progress != null) {
+                progress.waitForRetry(Instant.now().plus(delay), () -> {
+                    if (future.cancel(false)) {
+                        retries.remove(configId);
+                        done(configId);
+                    }
+                });
+            }
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to schedule retry of harvester {}", configId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Claims the lease of a config for a slot, which a pre-warm may already have done
+     */
+    private boolean claimLease(int configId, HarvesterType type, Instant slot) {
+        // a pre-warm claiming its lease at the same time must be done before it is looked for
+        synchronized (prewarmLeases) {
+            Instant prewarmed = prewarmLeases.remove(configId);
+            if (slot.equals(prewarmed)) return true;
+            // the config is still leased by this instance for the slot of the pre-warm
+            if (prewarmed != null) releaseLease(configId);
+            return harvestLeases.claim(configId, type, slot);
+        }
+    }
+
+    private void done(int configId) {
+        runningTasks.cancel(configId);
+        releaseLease(configId);
+    }
+
+    private void releaseLease(int configId) {
+        if (!leasesEnabled) return;
+        leases.remove(configId);
+        try {
+            harvestLeases.release(configId);
+        } catch (RuntimeException e) {
+            // the lease expires on its own, as it is no longer renewed
+            LOGGER.warn("Unable to release lease of harvester {}", configId, e);
+        }
+    }
+
+    private static Tag typeTag(HarvesterType type) {
+        return new Tag("type", type == null ? "unknown" : type.name());
+    }
+
+    private static Tag laneTag(Lane lane) {
+        return new Tag("lane", lane.name());
+    }
+
+    /**
+     * One attempt at a harvest
+     */
+    @FunctionalInterface
+    private interface Attempt {
+        /**
+         * @param retry true if an earlier attempt failed
+         * @return delay before the next attempt, or null if the harvest is done
+         */
+        Duration run(boolean retry);
     }
 }
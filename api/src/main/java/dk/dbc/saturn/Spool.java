@@ -0,0 +1,221 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local disk space files are downloaded to once, so a failed upload to the
+ * file store is retried from the local copy instead of from the source.
+ * <p>
+ * The spool is enabled by setting HARVEST_SPOOL_DIR. The space taken by
+ * spooled files is limited by HARVEST_SPOOL_MAX_BYTES, a file which does not
+ * fit, or whose size is not known up front, is sent straight from its source
+ * as before. Spooled files are deleted as soon as they have been sent.
+ * Spool files left behind by an earlier run of the instance are deleted at
+ * startup, and whatever else takes up room in the directory counts against
+ * the quota, so the directory must not be shared between instances.
+ * <p>
+ * A spooled file is downloaded in full before it is uploaded, so it does not
+ * get the overlap of source and file store which HARVEST_TRANSFER_BUFFERS gives
+ * a file sent straight from its source.
+ */
+@ApplicationScoped
+public class Spool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Spool.class);
+    /** bytes copied from the source between checks of the quota */
+    private static final long CHUNK = 8 * 1024 * 1024;
+    private final AtomicLong used = new AtomicLong();
+    @Inject
+    MetricRegistry metricRegistry;
+    @Inject
+    @ConfigProperty(name = "HARVEST_SPOOL_DIR")
+    Optional<String> dir = Optional.empty();
+    @Inject
+    @ConfigProperty(name = "HARVEST_SPOOL_MAX_BYTES", defaultValue = "10737418240")
+    long maxBytes;
+
+    public Spool() {
+    }
+
+    public Spool(Path dir, long maxBytes, MetricRegistry metricRegistry) {
+        this.dir = Optional.ofNullable(dir).map(Path::toString);
+        this.maxBytes = maxBytes;
+        this.metricRegistry = metricRegistry;
+        init();
+    }
+
+    @PostConstruct
+    public void init() {
+        dir.ifPresent(directory -> used.set(sweep(Path.of(directory))));
+        metricRegistry.gauge("harvest_spool_bytes", used::get);
+        LOGGER.info("Spool directory {}, quota {} bytes, {} bytes in use", dir.orElse("none"), maxBytes, used.get());
+    }
+
+    /**
+     * Deletes the spool files of an earlier run
+     * @return bytes still taken up in the directory
+     */
+    private static long sweep(Path directory) {
+        if (!Files.isDirectory(directory)) return 0;
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith("saturn") && name.endsWith(".spool") && Files.deleteIfExists(file)) {
+                        LOGGER.info("Deleted spool file {} left behind by an earlier run", file);
+                        continue;
+                    }
+                    if (Files.isRegularFile(file)) bytes += Files.size(file);
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to sweep spool file {}", file, e);
+                    bytes += sizeOf(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to sweep spool directory {}", directory, e);
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir.isPresent();
+    }
+
+    /**
+     * Reserves room for a file in the spool
+     * @param size size the source reports for the file, null if not known
+     * @return empty spooled file, or null if the spool is disabled or the file does not fit
+     * @throws IOException if the spool file could not be created
+     */
+    public Spooled reserve(Number size) throws IOException {
+        if (dir.isEmpty()) return null;
+        // one byte more than the size, so the end of the source is found without reserving more
+        long bytes = size == null ? 0 : size.longValue() + 1;
+        if (size == null || !take(bytes)) {
+            metricRegistry.counter("harvest_spool_misses").inc();
+            return null;
+        }
+        try {
+            Path directory = Files.createDirectories(Path.of(dir.get()));
+            return new Spooled(Files.createTempFile(directory, "saturn", ".spool"), bytes);
+        } catch (IOException | RuntimeException e) {
+            used.addAndGet(-bytes);
+            throw e;
+        }
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    private boolean take(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > maxBytes) return false;
+            if (used.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    /**
+     * A file in the spool, deleted and its room given back when closed
+     */
+    public class Spooled implements AutoCloseable {
+        private final Path path;
+        private long reserved;
+        private long size = 0;
+        private boolean replayed = false;
+
+        private Spooled(Path path, long reserved) {
+            this.path = path;
+            this.reserved = reserved;
+        }
+
+        /**
+         * Copies a source into the spool file, replacing what an earlier
+         * attempt copied
+         * @param source stream of the file
+         * @return false if the file turned out larger than the room left in the spool
+         * @throws IOException if the source could not be read or the spool file not written
+         */
+        public boolean fill(InputStream source) throws IOException {
+            ReadableByteChannel channel = Channels.newChannel(source);
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (true) {
+                    if (position >= reserved) {
+                        if (!take(CHUNK)) {
+                            metricRegistry.counter("harvest_spool_misses").inc();
+                            return false;
+                        }
+                        reserved += CHUNK;
+                    }
+                    long wanted = Math.min(CHUNK, reserved - position);
+                    long count = file.transferFrom(channel, position, wanted);
+                    position += count;
+                    // less than wanted is only transferred at the end of the source
+                    if (count < wanted) break;
+                }
+                size = position;
+                return true;
+            }
+        }
+
+        /**
+         * @return stream of the spooled file, every stream but the first counts as a hit
+         * @throws IOException if the spool file could not be read
+         */
+        public InputStream open() throws IOException {
+            if (replayed) {
+                metricRegistry.counter("harvest_spool_hits").inc();
+                metricRegistry.counter("harvest_spool_hit_bytes").inc(size);
+            }
+            replayed = true;
+            return Files.newInputStream(path);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete spool file {}", path, e);
+            }
+            used.addAndGet(-reserved);
+        }
+    }
+}
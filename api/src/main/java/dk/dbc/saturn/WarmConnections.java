@@ -0,0 +1,197 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Connections to sources which were opened and logged in to shortly before a
+ * scheduled harvest, so the harvest does not have to wait for the login.
+ * <p>
+ * A connection is handed to the first harvest of its config which asks for
+ * one. Connections which are not used within {@link #UNUSED_AFTER} of the fire
+ * time they were opened for, e.g. because the harvest was skipped, are closed.
+ * A pre-warmed connection holds a connection permit of its host, which is
+ * handed over to the harvest, see {@link #takePermit}.
+ */
+@ApplicationScoped
+public class WarmConnections {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmConnections.class);
+    static final Duration UNUSED_AFTER = Duration.ofMinutes(2);
+    /** the longest a connection is opened ahead of its fire time, longer idle connections are dropped by the sources */
+    public static final int MAX_PREWARM_SECONDS = 300;
+    private final Map<Integer, Warm<?>> connections = new ConcurrentHashMap<>();
+    /** the fire time a connection was last opened for, per config */
+    private final Map<Integer, Instant> warmedFor = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+    @Inject
+    MetricRegistry metricRegistry;
+
+    public WarmConnections() {
+    }
+
+    public WarmConnections(MetricRegistry metricRegistry, Clock clock) {
+        this.metricRegistry = metricRegistry;
+        this.clock = clock;
+    }
+
+    /**
+     * Claims the pre-warming of a config for a fire time
+     * @param configId harvester config id
+     * @param due fire time
+     * @return false if a connection was already opened for this fire time
+     */
+    public boolean claim(int configId, Instant due) {
+        return !due.equals(warmedFor.put(configId, due));
+    }
+
+    /**
+     * Opens a connection for the harvest of a config at the given fire time,
+     * replacing any connection opened earlier
+     * @param configId harvester config id
+     * @param type harvester type
+     * @param due fire time
+     * @param permit connection permit of the host, closed along with the connection
+     * @param connect opens and logs in to the source
+     * @param close closes a connection
+     * @param <C> connection type
+     */
+    public <C> void warm(int configId, HarvesterType type, Instant due, HostPermits.Permit permit, Supplier<C> connect, Consumer<C> close) {
+        Instant start = clock.instant();
+        C connection = connect.get();
+        Duration connectTime = Duration.between(start, clock.instant());
+        metricRegistry.timer("harvest_connect_time", typeTag(type)).update(connectTime);
+        LOGGER.info("Pre-warmed connection of harvester {} for {} in {} ms", configId, due, connectTime.toMillis());
+        Warm<?> previous = connections.put(configId, new Warm<>(type, connection, close, connectTime, due, permit));
+        if (previous != null) discard(configId, previous);
+    }
+
+    /**
+     * Gets a connection for a harvest, the pre-warmed one if it is still usable
+     * @param configId harvester config id
+     * @param type harvester type
+     * @param connectionType connection type
+     * @param connect opens and logs in to the source, if there is no usable pre-warmed connection
+     * @param usable checks that a pre-warmed connection was not closed by the source in the meantime
+     * @param <C> connection type
+     * @return connection
+     */
+    public <C> C connect(int configId, HarvesterType type, Class<C> connectionType, Supplier<C> connect, Predicate<C> usable) {
+        Warm<?> warm = connections.remove(configId);
+        if (warm != null) {
+            if (connectionType.isInstance(warm.connection) && isUsable(connectionType.cast(warm.connection), usable)) {
+                // the harvest started without waiting for the login
+                metricRegistry.timer("harvest_prewarm_saved", typeTag(type)).update(warm.connectTime);
+                return connectionType.cast(warm.connection);
+            }
+            LOGGER.info("Pre-warmed connection of harvester {} is no longer usable", configId);
+            discard(configId, warm);
+        }
+        Instant start = clock.instant();
+        C connection = connect.get();
+        metricRegistry.timer("harvest_connect_time", typeTag(type)).update(Duration.between(start, clock.instant()));
+        return connection;
+    }
+
+    /**
+     * Takes the connection permit of the pre-warmed connection of a config.
+     * A harvest must take it before it waits for a permit of its own, or it
+     * would wait for the permit held by its own connection.
+     * @param configId harvester config id
+     * @return permit, or null if there is no pre-warmed connection
+     */
+    public HostPermits.Permit takePermit(int configId) {
+        Warm<?> warm = connections.get(configId);
+        return warm == null ? null : warm.permit.getAndSet(null);
+    }
+
+    /**
+     * Closes the connections which were not used for the fire time they were
+     * opened for, and forgets the fire times which are long gone
+     */
+    public void expire() {
+        Instant now = clock.instant();
+        connections.forEach((configId, warm) -> {
+            if (now.isAfter(warm.due.plus(UNUSED_AFTER)) && connections.remove(configId, warm)) {
+                LOGGER.info("Closing unused pre-warmed connection of harvester {}", configId);
+                discard(configId, warm);
+            }
+        });
+        warmedFor.entrySet().removeIf(entry -> now.isAfter(entry.getValue().plus(UNUSED_AFTER)));
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    int claimed() {
+        return warmedFor.size();
+    }
+
+    private static <C> boolean isUsable(C connection, Predicate<C> usable) {
+        try {
+            return usable.test(connection);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void discard(int configId, Warm<?> warm) {
+        metricRegistry.counter("harvest_prewarm_unused", typeTag(warm.type)).inc();
+        try {
+            warm.close();
+        } catch (RuntimeException e) {
+            LOGGER.debug("Unable to close pre-warmed connection of harvester {}", configId, e);
+        }
+    }
+
+    private static Tag typeTag(HarvesterType type) {
+        return new Tag("type", type.name());
+    }
+
+    private static class Warm<C> {
+        private final HarvesterType type;
+        private final C connection;
+        private final Consumer<C> close;
+        private final Duration connectTime;
+        private final Instant due;
+        private final AtomicReference<HostPermits.Permit> permit;
+
+        private Warm(HarvesterType type, C connection, Consumer<C> close, Duration connectTime, Instant due, HostPermits.Permit permit) {
+            this.type = type;
+            this.connection = connection;
+            this.close = close;
+            this.connectTime = connectTime;
+            this.due = due;
+            this.permit = new AtomicReference<>(permit);
+        }
+
+        private void close() {
+            try {
+                close.accept(connection);
+            } finally {
+                HostPermits.Permit held = permit.getAndSet(null);
+                if (held != null) held.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn.api;
+
+import dk.dbc.saturn.AdaptivePolling;
+import dk.dbc.saturn.AgencyShares;
+import dk.dbc.saturn.HostBreakers;
+import dk.dbc.saturn.ScheduledHarvesterBean;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Stateless;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+@Stateless
+@Path("admin")
+public class AdminApi {
+    private static final String POOL_ENDPOINT = "pool";
+    private static final String POOL_SIZE_ENDPOINT = "pool/size/{size}";
+    private static final String BREAKERS_ENDPOINT = "breakers";
+    private static final String BREAKER_RESET_ENDPOINT = "breakers/{host}/reset";
+    private static final String POLLING_ENDPOINT = "polling";
+    private static final String AGENCIES_ENDPOINT = "agencies";
+
+    @EJB
+    ScheduledHarvesterBean scheduledHarvesterBean;
+    @Inject
+    HostBreakers hostBreakers;
+    @Inject
+    AdaptivePolling adaptivePolling;
+    @Inject
+    AgencyShares agencyShares;
+
+    /**
+     * get status of the harvest pool
+     * @return 200 OK with pool size, active threads and queue length
+     */
+    @GET
+    @Path(POOL_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPoolStatus() {
+        return Response.ok(scheduledHarvesterBean.getPoolStatus()).build();
+    }
+
+    /**
+     * resize the harvest pool
+     * @param size number of concurrent harvests
+     * @return 200 OK with the new pool status
+     *         400 Bad Request if the size is less than one, or leaves no slot for bulk transfers
+     */
+    @POST
+    @Path(POOL_SIZE_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response setPoolSize(@PathParam("size") int size) {
+        try {
+            scheduledHarvesterBean.setPoolSize(size);
+            return Response.ok(scheduledHarvesterBean.getPoolStatus()).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * get the circuit breaker state of the remote hosts
+     * @return 200 OK with state, consecutive failures and time of the next probe per host
+     */
+    @GET
+    @Path(BREAKERS_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getBreakers() {
+        return Response.ok(hostBreakers.getStatus()).build();
+    }
+
+    /**
+     * close the circuit breaker of a remote host
+     * @param host remote host
+     * @return 200 OK with the circuit breaker state of all hosts
+     */
+    @POST
+    @Path(BREAKER_RESET_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resetBreaker(@PathParam("host") String host) {
+        hostBreakers.reset(host);
+        return Response.ok(hostBreakers.getStatus()).build();
+    }
+
+    /**
+     * get the learned arrival windows of the harvester configs
+     * @return 200 OK with arrival window and number of saved listings per config
+     */
+    @GET
+    @Path(POLLING_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPolling() {
+        return Response.ok(adaptivePolling.getStatus()).build();
+    }
+
+    /**
+     * get the fair share state of the agencies
+     * @return 200 OK with weight, running and queued harvests, bytes transferred this hour and quotas per agency
+     */
+    @GET
+    @Path(AGENCIES_ENDPOINT)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getAgencies() {
+        return Response.ok(agencyShares.getStatus()).build();
+    }
+}
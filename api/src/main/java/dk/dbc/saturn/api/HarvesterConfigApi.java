@@ -19,8 +19,11 @@ import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
+import dk.dbc.saturn.job.JobSenderBean;
 import jakarta.ejb.EJB;
 import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
@@ -143,7 +146,7 @@ public class HarvesterConfigApi {
      * add http harvester config entity to database
      * @param harvesterConfigString http harvester config as json data
      * @return 200 OK on successful creation of the entity
-     *         400 Bad Request on invalid json content
+     *         400 Bad Request on invalid json content or transfer parallelism
      */
     @POST
     @Path(HTTP_ADD_ENDPOINT)
@@ -158,7 +161,7 @@ public class HarvesterConfigApi {
      * add ftp harvester config entity to database
      * @param harvesterConfigString ftp harvester config as json data
      * @return 200 OK on successful creation of the entity
-     *         400 Bad Request on invalid json content
+     *         400 Bad Request on invalid json content or transfer parallelism
      */
     @POST
     @Path(FTP_ADD_ENDPOINT)
@@ -173,7 +176,7 @@ public class HarvesterConfigApi {
      * add sftp harvester config entity to database
      * @param harvesterConfigString sftp harvester config as json data
      * @return 200 OK on successful creation of the entity
-     *         400 Bad Request on invalid json content
+     *         400 Bad Request on invalid json content or transfer parallelism
      */
     @POST
     @Path(SFTP_ADD_ENDPOINT)
@@ -225,6 +228,7 @@ public class HarvesterConfigApi {
      *         404 Not Found if no config with the given id is found
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     @Path(HTTP_TEST_SINGLE_CONFIG_ENDPOINT)
     @Produces(MediaType.APPLICATION_JSON)
     public Response testHttpHarvesterConfig(@PathParam("id") int id) throws JSONBException, HarvestException {
@@ -278,6 +282,7 @@ public class HarvesterConfigApi {
      *         404 Not Found if no config with the given id is found
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     @Path(FTP_TEST_SINGLE_CONFIG_ENDPOINT)
     @Produces(MediaType.APPLICATION_JSON)
     public Response testFtpHarvesterConfig(@PathParam("id") int id) throws JSONBException {
@@ -295,6 +300,7 @@ public class HarvesterConfigApi {
      *         404 Not Found if no config with the given id is found
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     @Path(SFTP_TEST_SINGLE_CONFIG_ENDPOINT)
     @Produces(MediaType.APPLICATION_JSON)
     public Response testSFtpHarvesterConfig(@PathParam("id") int id) throws JSONBException {
@@ -329,6 +335,12 @@ public class HarvesterConfigApi {
     private <T extends AbstractHarvesterConfigEntity> Response addHarvesterConfig(Class<T> type, String harvesterConfigString, UriInfo uriInfo) {
         try {
             T harvesterConfig = jsonbContext.unmarshall(harvesterConfigString, type);
+            Integer transferParallelism = harvesterConfig.getTransferParallelism();
+            if (transferParallelism != null && (transferParallelism < 1 || transferParallelism > JobSenderBean.MAX_TRANSFER_PARALLELISM)) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("transferParallelism must be between 1 and " + JobSenderBean.MAX_TRANSFER_PARALLELISM)
+                    .build();
+            }
             URI uri = harvesterConfigRepository.add(type, harvesterConfig, uriInfo.getAbsolutePathBuilder());
             return Response.created(uri).build();
         } catch (JSONBException e) {
@@ -23,4 +23,8 @@ public enum HarvesterType {
         if (name == null) return null;
         return MAP.get(name.toUpperCase());
     }
+
+    public static HarvesterType of(Class<? extends AbstractHarvesterConfigEntity> configClass) {
+        return Stream.of(values()).filter(t -> t.configClass == configClass).findFirst().orElse(null);
+    }
 }
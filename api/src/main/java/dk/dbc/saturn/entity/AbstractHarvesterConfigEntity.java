@@ -8,6 +8,8 @@ package dk.dbc.saturn.entity;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import dk.dbc.saturn.ProgressTrackerBean;
 import jakarta.persistence.Column;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
@@ -22,7 +24,7 @@ import java.util.Objects;
 
 @JsonIgnoreProperties(value={ "progress", "running" }, allowGetters=true)
 @MappedSuperclass
-public abstract class AbstractHarvesterConfigEntity {
+public abstract class AbstractHarvesterConfigEntity implements Schedulable {
     @Id
     @SequenceGenerator(
         name = "harvesterconfig_id_seq",
@@ -52,6 +54,16 @@ public abstract class AbstractHarvesterConfigEntity {
 
     private Boolean gzip;
 
+    @Enumerated(EnumType.STRING)
+    private MisfirePolicy misfirePolicy = MisfirePolicy.RUN_ONCE;
+
+    private Integer misfireLimit;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date caughtUpUntil;
+
+    private Integer transferParallelism;
+
     @Transient
     private ProgressTrackerBean.Progress progress;
 
@@ -141,6 +153,41 @@ public abstract class AbstractHarvesterConfigEntity {
         this.gzip = Objects.requireNonNullElse(gzip, false);
     }
 
+    public MisfirePolicy getMisfirePolicy() {
+        return misfirePolicy;
+    }
+
+    public void setMisfirePolicy(MisfirePolicy misfirePolicy) {
+        this.misfirePolicy = Objects.requireNonNullElse(misfirePolicy, MisfirePolicy.RUN_ONCE);
+    }
+
+    public Integer getMisfireLimit() {
+        return misfireLimit;
+    }
+
+    public void setMisfireLimit(Integer misfireLimit) {
+        this.misfireLimit = misfireLimit;
+    }
+
+    public Date getCaughtUpUntil() {
+        return caughtUpUntil;
+    }
+
+    public void setCaughtUpUntil(Date caughtUpUntil) {
+        this.caughtUpUntil = caughtUpUntil;
+    }
+
+    /**
+     * @return number of files of a harvest transferred at the same time, one at a time if null
+     */
+    public Integer getTransferParallelism() {
+        return transferParallelism;
+    }
+
+    public void setTransferParallelism(Integer transferParallelism) {
+        this.transferParallelism = transferParallelism;
+    }
+
     public ProgressTrackerBean.Progress getProgress() {
         return progress;
     }
@@ -168,12 +215,16 @@ public abstract class AbstractHarvesterConfigEntity {
                 Objects.equals(seqnoExtract, that.seqnoExtract) &&
                 Objects.equals(agency, that.agency) &&
                 Objects.equals(enabled, that.enabled) &&
-                Objects.equals(gzip, that.gzip);
+                Objects.equals(gzip, that.gzip) &&
+                misfirePolicy == that.misfirePolicy &&
+                Objects.equals(misfireLimit, that.misfireLimit) &&
+                Objects.equals(caughtUpUntil, that.caughtUpUntil) &&
+                Objects.equals(transferParallelism, that.transferParallelism);
     }
 
     @Override
     public int hashCode() {
         return Objects.hash(id, name, schedule, lastHarvested,
-                transfile, seqno, seqnoExtract, agency, enabled, gzip);
+                transfile, seqno, seqnoExtract, agency, enabled, gzip, misfirePolicy, misfireLimit, caughtUpUntil, transferParallelism);
     }
 }
@@ -11,6 +11,8 @@ import jakarta.persistence.NamedQueries;
 import jakarta.persistence.NamedQuery;
 import jakarta.persistence.Table;
 
+import java.util.Objects;
+
 @Entity
 @Table(name = "ftpharvester")
 @NamedQueries({
@@ -49,6 +51,8 @@ public class FtpHarvesterConfig extends AbstractHarvesterConfigEntity {
     private String dir;
     @Column(name = "filespattern")
     private String filesPattern;
+    @Column(name = "prewarmseconds")
+    private Integer prewarmSeconds;
 
     public String getHost() {
         return host;
@@ -98,6 +102,17 @@ public class FtpHarvesterConfig extends AbstractHarvesterConfigEntity {
         this.filesPattern = filesPattern;
     }
 
+    /**
+     * @return seconds before a scheduled harvest the connection is opened, null if it is opened when the harvest starts
+     */
+    public Integer getPrewarmSeconds() {
+        return prewarmSeconds;
+    }
+
+    public void setPrewarmSeconds(Integer prewarmSeconds) {
+        this.prewarmSeconds = prewarmSeconds;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -111,7 +126,8 @@ public class FtpHarvesterConfig extends AbstractHarvesterConfigEntity {
             && username.equals(that.username)
             && password.equals(that.username)
             && dir.equals(that.dir)
-            && filesPattern.equals(that.filesPattern);
+            && filesPattern.equals(that.filesPattern)
+            && Objects.equals(prewarmSeconds, that.prewarmSeconds);
     }
 
     @Override
@@ -123,6 +139,7 @@ public class FtpHarvesterConfig extends AbstractHarvesterConfigEntity {
         result = 31 * result + password.hashCode();
         result = 31 * result + dir.hashCode();
         result = 31 * result + filesPattern.hashCode();
+        result = 31 * result + Objects.hashCode(prewarmSeconds);
         return result;
     }
 
@@ -135,6 +152,7 @@ public class FtpHarvesterConfig extends AbstractHarvesterConfigEntity {
                 ", username='" + username + '\'' +
                 ", dir='" + dir + '\'' +
                 ", filesPattern='" + filesPattern + '\'' +
+                ", prewarmSeconds=" + prewarmSeconds +
                 "} " + super.toString();
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn.entity;
+
+import dk.dbc.saturn.api.HarvesterType;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Scheduling projection of a harvester config, read without loading the
+ * full entity with its credentials, keys and headers
+ */
+public class HarvesterSchedule implements Schedulable {
+    private final int id;
+    private final HarvesterType type;
+    private final String schedule;
+    private final Boolean enabled;
+    private final Date lastHarvested;
+    private final Integer seqno;
+    private final MisfirePolicy misfirePolicy;
+    private final Integer misfireLimit;
+    private final Integer prewarmSeconds;
+    private final String agency;
+    private final Date caughtUpUntil;
+
+    public HarvesterSchedule(int id, HarvesterType type, String schedule, Boolean enabled, Date lastHarvested, Integer seqno) {
+        this(id, type, schedule, enabled, lastHarvested, seqno, MisfirePolicy.RUN_ONCE, null, null, null, null);
+    }
+
+    public HarvesterSchedule(int id, HarvesterType type, String schedule, Boolean enabled, Date lastHarvested, Integer seqno,
+                             MisfirePolicy misfirePolicy, Integer misfireLimit, Integer prewarmSeconds, String agency, Date caughtUpUntil) {
+        this.id = id;
+        this.type = type;
+        this.schedule = schedule;
+        this.enabled = enabled;
+        this.lastHarvested = lastHarvested;
+        this.seqno = seqno;
+        this.misfirePolicy = misfirePolicy == null ? MisfirePolicy.RUN_ONCE : misfirePolicy;
+        this.misfireLimit = misfireLimit;
+        this.prewarmSeconds = prewarmSeconds;
+        this.agency = agency;
+        this.caughtUpUntil = caughtUpUntil;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    public HarvesterType getType() {
+        return type;
+    }
+
+    @Override
+    public String getSchedule() {
+        return schedule;
+    }
+
+    @Override
+    public Boolean isEnabled() {
+        return enabled != null && enabled;
+    }
+
+    @Override
+    public Date getLastHarvested() {
+        return lastHarvested;
+    }
+
+    public Integer getSeqno() {
+        return seqno;
+    }
+
+    @Override
+    public MisfirePolicy getMisfirePolicy() {
+        return misfirePolicy;
+    }
+
+    @Override
+    public Integer getMisfireLimit() {
+        return misfireLimit;
+    }
+
+    /**
+     * @return seconds before a fire time the connection to the source is opened, null if it is not
+     */
+    public Integer getPrewarmSeconds() {
+        return prewarmSeconds;
+    }
+
+    public String getAgency() {
+        return agency;
+    }
+
+    @Override
+    public Date getCaughtUpUntil() {
+        return caughtUpUntil;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HarvesterSchedule that = (HarvesterSchedule) o;
+        return id == that.id && type == that.type && Objects.equals(schedule, that.schedule) &&
+                Objects.equals(enabled, that.enabled) && Objects.equals(lastHarvested, that.lastHarvested) &&
+                Objects.equals(seqno, that.seqno) && misfirePolicy == that.misfirePolicy &&
+                Objects.equals(misfireLimit, that.misfireLimit) && Objects.equals(prewarmSeconds, that.prewarmSeconds) &&
+                Objects.equals(agency, that.agency) && Objects.equals(caughtUpUntil, that.caughtUpUntil);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, type, schedule, enabled, lastHarvested, seqno, misfirePolicy, misfireLimit, prewarmSeconds, agency, caughtUpUntil);
+    }
+
+    @Override
+    public String toString() {
+        return "HarvesterSchedule{" +
+                "id=" + id +
+                ", type=" + type +
+                ", schedule='" + schedule + '\'' +
+                ", enabled=" + enabled +
+                ", lastHarvested=" + lastHarvested +
+                ", seqno=" + seqno +
+                ", misfirePolicy=" + misfirePolicy +
+                ", misfireLimit=" + misfireLimit +
+                ", prewarmSeconds=" + prewarmSeconds +
+                ", agency='" + agency + '\'' +
+                ", caughtUpUntil=" + caughtUpUntil +
+                '}';
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn.entity;
+
+/**
+ * What to do about the scheduled runs of a harvester config which were
+ * missed, because saturn was down or the harvest queue was too long
+ */
+public enum MisfirePolicy {
+    /** run once for all the missed slots, then continue with the schedule */
+    RUN_ONCE,
+    /** skip the missed slots and wait for the next one */
+    SKIP,
+    /** run once for every missed slot, but at most for the latest misfireLimit of them */
+    RUN_ALL
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn.entity;
+
+import java.util.Date;
+
+/**
+ * The parts of a harvester config that are needed to schedule it
+ */
+public interface Schedulable {
+    int getId();
+
+    String getSchedule();
+
+    Date getLastHarvested();
+
+    Boolean isEnabled();
+
+    MisfirePolicy getMisfirePolicy();
+
+    /**
+     * @return maximum number of missed slots to run with {@link MisfirePolicy#RUN_ALL}, null for the default
+     */
+    Integer getMisfireLimit();
+
+    /**
+     * @return the missed fire time a config with {@link MisfirePolicy#RUN_ALL} has caught up to,
+     *         which its schedule counts from instead of its last harvest, null if it is not catching up
+     */
+    Date getCaughtUpUntil();
+}
@@ -12,18 +12,30 @@ import dk.dbc.dataio.filestore.service.connector.FileStoreServiceConnector;
 import dk.dbc.dataio.jobstore.types.JobInfoSnapshot;
 import dk.dbc.dataio.jobstore.types.JobInputStream;
 import dk.dbc.httpclient.HttpClient;
+import dk.dbc.saturn.AgencyShares;
+import dk.dbc.saturn.BufferRing;
 import dk.dbc.saturn.ByteCountingInputStream;
 import dk.dbc.saturn.FileHarvest;
 import dk.dbc.saturn.HarvestException;
+import dk.dbc.saturn.HostBreakers;
+import dk.dbc.saturn.HostPermits;
 import dk.dbc.saturn.ProgressTrackerBean;
+import dk.dbc.saturn.Spool;
 import dk.dbc.util.Stopwatch;
+import jakarta.annotation.Resource;
+import jakarta.enterprise.concurrent.ManagedExecutorDefinition;
 import jakarta.ejb.LocalBean;
 import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.client.Client;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.RetryPolicy;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.glassfish.jersey.apache.connector.ApacheClientProperties;
 import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
@@ -34,26 +46,89 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Sends harvested files to the file store and creates their jobs in the job
+ * store. Nothing here touches the database, so transfers run outside of any
+ * transaction.
+ * <p>
+ * The files of a harvest are sent one at a time, unless the config asks for
+ * more, in which case they are uploaded by an executor of their own while the
+ * calling thread creates their jobs. Either way the jobs are created in the
+ * order of the files, and connections to the source are limited by
+ * {@link HostPermits}.
+ * <p>
+ * If HARVEST_TRANSFER_BUFFERS is set, every file is read ahead from its source
+ * through a {@link BufferRing} of that many buffers of HARVEST_TRANSFER_BUFFER_BYTES
+ * bytes, so a slow file store does not stall the source and the other way round.
+ * The ring is closed, which stops its reading thread, before the source and
+ * its {@link HostPermits.Permit}.
+ * Files which are not resumable can be downloaded to a local {@link Spool}
+ * first, so a failed upload is retried without downloading the file again.
+ */
 @LocalBean
 @Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+@ManagedExecutorDefinition(name = JobSenderBean.TRANSFER_EXECUTOR, maxAsync = JobSenderBean.MAX_HTTP_CONNECTIONS)
 public class JobSenderBean {
     private static final Logger LOGGER = LoggerFactory.getLogger(JobSenderBean.class);
-    private static final int MAX_HTTP_CONNECTIONS = 100;
+    static final String TRANSFER_EXECUTOR = "java:app/concurrent/TransferExecutor";
+    static final int MAX_HTTP_CONNECTIONS = 100;
+    /**
+     * Most files of a harvest sent at the same time, whatever the config asks for
+     */
+    public static final int MAX_TRANSFER_PARALLELISM = 16;
+    private static final Duration GIVEN_UP_UPLOADS_WAIT = Duration.ofMinutes(1);
     private final RetryPolicy<?> retryPolicy;
     @Inject
     private ProgressTrackerBean progressTrackerBean;
     private FileStoreServiceConnector fileStore;
     @Inject
     private JobStoreServiceConnectorBean jobStore;
+    @Inject
+    private HostPermits hostPermits;
+    @Inject
+    private HostBreakers hostBreakers;
+    @Inject
+    private AgencyShares agencyShares;
+    @Inject
+    private Spool spool;
+    // uploads in parallel do not take threads from the default executor, nor more than there are connections to the file store
+    @Resource(lookup = TRANSFER_EXECUTOR)
+    private ExecutorService executor;
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    private ThreadFactory threadFactory;
+    @Inject
+    private MetricRegistry metricRegistry;
+    @Inject
+    @ConfigProperty(name = "HARVEST_TRANSFER_BUFFERS", defaultValue = "0")
+    int transferBuffers;
+    @Inject
+    @ConfigProperty(name = "HARVEST_TRANSFER_BUFFER_BYTES", defaultValue = "262144")
+    int transferBufferBytes;
 
     private static final String APPLICATION_ID = "saturn";
 
@@ -73,29 +148,84 @@ public class JobSenderBean {
         fileStore = new FileStoreServiceConnector(client, System.getenv("FILESTORE_URL"));
     }
 
-    public JobSenderBean(ProgressTrackerBean progressTrackerBean, FileStoreServiceConnector fileStore, JobStoreServiceConnectorBean jobStore, int retries) {
+    public JobSenderBean(ProgressTrackerBean progressTrackerBean, FileStoreServiceConnector fileStore, JobStoreServiceConnectorBean jobStore, MetricRegistry metricRegistry, int retries) {
+        // the default HOST_CONNECTION_LIMIT
+        this(progressTrackerBean, fileStore, jobStore, new HostPermits(4, Map.of(), metricRegistry), new Spool(), metricRegistry, retries);
+    }
+
+    public JobSenderBean(ProgressTrackerBean progressTrackerBean, FileStoreServiceConnector fileStore, JobStoreServiceConnectorBean jobStore, HostPermits hostPermits, Spool spool,
+                         MetricRegistry metricRegistry, int retries) {
+        // the default HARVEST_TRANSFER_BUFFERS
+        this(progressTrackerBean, fileStore, jobStore, hostPermits, spool, 0, metricRegistry, retries);
+    }
+
+    public JobSenderBean(ProgressTrackerBean progressTrackerBean, FileStoreServiceConnector fileStore, JobStoreServiceConnectorBean jobStore, HostPermits hostPermits, Spool spool,
+                         int transferBuffers, MetricRegistry metricRegistry, int retries) {
         this.progressTrackerBean = progressTrackerBean;
         this.fileStore = fileStore;
         this.jobStore = jobStore;
+        this.hostPermits = hostPermits;
+        this.metricRegistry = metricRegistry;
+        // the defaults of HOST_BREAKER_FAILURE_THRESHOLD, HOST_BREAKER_BACKOFF_SECONDS and HOST_BREAKER_MAX_BACKOFF_SECONDS, without jitter
+        this.hostBreakers = new HostBreakers(3, Duration.ofMinutes(1), Duration.ofHours(1), Clock.systemUTC(), () -> 0.5, metricRegistry);
+        this.agencyShares = new AgencyShares(Map.of(), Map.of(), Map.of(), 0, Clock.systemUTC(), metricRegistry);
+        this.spool = spool;
+        this.executor = Executors.newCachedThreadPool();
+        this.threadFactory = Executors.defaultThreadFactory();
+        this.transferBuffers = transferBuffers;
+        // the default HARVEST_TRANSFER_BUFFER_BYTES
+        this.transferBufferBytes = 262144;
         retryPolicy = new RetryPolicy<>().withMaxRetries(retries).withDelay(Duration.ofMillis(1));
     }
 
+    public void send(Set<FileHarvest> files, String filenamePrefix, String transfileTemplate, Integer configId) throws HarvestException {
+        send(files, filenamePrefix, transfileTemplate, configId, null);
+    }
+
+    public void send(Set<FileHarvest> files, String filenamePrefix, String transfileTemplate, Integer configId, String host) throws HarvestException {
+        send(files, filenamePrefix, transfileTemplate, configId, host, null, Checkpoint.NONE);
+    }
+
+    public void send(Set<FileHarvest> files, String filenamePrefix, String transfileTemplate, Integer configId, String host, String agency, Checkpoint checkpoint) throws HarvestException {
+        send(files, filenamePrefix, transfileTemplate, configId, host, agency, 1, checkpoint);
+    }
+
     /**
      * send files to filestore and create the job in jobstore
      * @param files map of filenames and corresponding input streams
      * @param filenamePrefix prefix for data files and transfile
      * @param transfileTemplate transfile content template
+     * @param host remote host the files are fetched from, connections to it are limited by {@link HostPermits}
+     * @param agency agency the transferred bytes are accounted to and paced for by {@link AgencyShares}, none if null
+     * @param parallelism number of files sent at the same time, at most {@link #MAX_TRANSFER_PARALLELISM}, files which
+     *                    cannot be fetched concurrently, see {@link FileHarvest#isConcurrent()}, are sent one at a time
+     * @param checkpoint told about every file as soon as its job is created, jobs are created in iteration order
      */
-    public void send(Set<FileHarvest> files, String filenamePrefix, String transfileTemplate, Integer configId) throws HarvestException {
+    public void send(Set<FileHarvest> files, String filenamePrefix, String transfileTemplate, Integer configId, String host, String agency,
+                     int parallelism, Checkpoint checkpoint) throws HarvestException {
         final Stopwatch stopwatch = new Stopwatch();
         try {
             String transfileName = String.format("%s.%s.trans", filenamePrefix, APPLICATION_ID);
             ProgressTrackerBean.Progress progress = progressTrackerBean.get(configId);
             long totalBytes = files.stream().map(FileHarvest::getSize).filter(Objects::nonNull).mapToLong(Number::longValue).sum();
             progress.setTotalBytes(totalBytes);
-            for (FileHarvest fileHarvest : files) {
+            List<FileHarvest> ordered = new ArrayList<>(files);
+            // there is no point in more transfers than connections to the host
+            int workers = Math.min(parallelism, MAX_TRANSFER_PARALLELISM);
+            if (host != null) workers = Math.min(workers, hostPermits.getLimit(host));
+            if (workers > 1 && ordered.size() > 1 && ordered.stream().allMatch(FileHarvest::isConcurrent)) {
+                sendInParallel(ordered, host, workers, progress, checkpoint,
+                        (fileHarvest, sources) -> upload(fileHarvest, host, agency, checkpoint, sources),
+                        (fileHarvest, fileStoreId) -> addJob(transfileName, fileHarvest, transfileTemplate, fileStoreId));
+                return;
+            }
+            Integer seqno = null;
+            Sources sources = new Sources(host);
+            for (FileHarvest fileHarvest : ordered) {
                 if(progress.isAbort()) return;
-                createJob(transfileName, fileHarvest, transfileTemplate);
+                int jobId = addJob(transfileName, fileHarvest, transfileTemplate, upload(fileHarvest, host, agency, checkpoint, sources));
+                seqno = maxSeqno(seqno, fileHarvest);
+                checkpoint.jobCreated(fileHarvest, jobId, seqno);
                 progress.inc();
             }
         } finally {
@@ -103,12 +233,101 @@ public class JobSenderBean {
         }
     }
 
-    private int createJob(String transfileName, FileHarvest fileHarvest, String template) throws HarvestException {
+    /**
+     * Keeps up to a number of files uploading to the file store on the
+     * executor, while the calling thread creates their jobs in the order of
+     * the files as their uploads complete. Uploads which complete ahead of
+     * their turn wait in a buffer, which is bounded by the number of workers
+     * as well, so a slow file does not leave an unbounded number of uploads
+     * without a job.
+     * <p>
+     * The checkpoint and the progress are only touched by the calling thread.
+     * When a file fails no more files are started, the files before it still
+     * get their jobs, and the files uploaded after it are removed from the
+     * file store again, since their jobs would be out of order. An abort
+     * cancels the uploads in flight and closes their sources, since an
+     * upload blocked reading its source does not notice being interrupted.
+     * Uploads which complete after the files have been given up remove
+     * their files from the file store themselves, and they are waited for
+     * a while, so the harvest is not tried again while they are running.
+     */
+    private void sendInParallel(List<FileHarvest> files, String host, int workers, ProgressTrackerBean.Progress progress,
+                                Checkpoint checkpoint, Uploader uploader, JobAdder jobAdder) throws HarvestException {
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        Sources sources = new Sources(host);
+        Map<Future<String>, Integer> inFlight = new HashMap<>();
+        // file store ids of uploaded files waiting for the jobs of the files before them
+        Map<Integer, String> uploaded = new HashMap<>();
+        HarvestException failure = null;
+        // files from this position on do not get jobs
+        int failedAt = files.size();
+        int next = 0;
+        int nextJob = 0;
+        Integer seqno = null;
+        try {
+            while (true) {
+                while (failure == null && next < files.size() && inFlight.size() < workers && uploaded.size() < workers && !progress.isAbort()) {
+                    FileHarvest fileHarvest = files.get(next);
+                    int index = next++;
+                    inFlight.put(completionService.submit(() -> sources.upload(index, fileHarvest, uploader)), index);
+                }
+                if (inFlight.isEmpty() || progress.isAbort()) break;
+                // woken up now and then to notice an abort
+                Future<String> done = completionService.poll(1, TimeUnit.SECONDS);
+                if (done == null) continue;
+                int index = inFlight.remove(done);
+                try {
+                    uploaded.put(index, done.get());
+                } catch (ExecutionException e) {
+                    failedAt = Math.min(failedAt, index);
+                    if (failure == null) failure = e.getCause() instanceof HarvestException ? (HarvestException) e.getCause()
+                            : new HarvestException("Failed to create job for harvest " + files.get(index), e.getCause());
+                }
+                while (nextJob < failedAt && uploaded.containsKey(nextJob)) {
+                    FileHarvest fileHarvest = files.get(nextJob);
+                    try {
+                        int jobId = jobAdder.addJob(fileHarvest, uploaded.get(nextJob));
+                        uploaded.remove(nextJob);
+                        sources.jobCreated(nextJob);
+                        seqno = maxSeqno(seqno, fileHarvest);
+                        checkpoint.jobCreated(fileHarvest, jobId, seqno);
+                        progress.inc();
+                        nextJob++;
+                    } catch (HarvestException e) {
+                        failedAt = nextJob;
+                        if (failure == null) failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HarvestException("Interrupted while sending files", e);
+        } finally {
+            // only left in flight by an abort, the uploads which complete anyway remove their files themselves
+            inFlight.keySet().forEach(future -> future.cancel(true));
+            sources.close().forEach((index, fileStoreId) -> deleteFromFileStore(files.get(index), fileStoreId));
+            if (!sources.awaitUploads(GIVEN_UP_UPLOADS_WAIT)) {
+                LOGGER.warn("Uploads given up are still running, their files are removed from the file store when they complete");
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private String upload(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint, Sources sources) throws HarvestException {
+        try {
+            String fileStoreId = fileHarvest.isResumable() ? sendToFileStoreResume(fileHarvest, host, agency, checkpoint, sources)
+                    : sendToFileStore(fileHarvest, host, agency, checkpoint, sources);
+            LOGGER.info("Added file {} to file store with id {}", fileHarvest.getFilename(), fileStoreId);
+            return fileStoreId;
+        } catch (Exception e) {
+            throw new HarvestException("Failed to create job for harvest " + fileHarvest, e);
+        }
+    }
+
+    private int addJob(String transfileName, FileHarvest fileHarvest, String template, String fileStoreId) throws HarvestException {
         try {
             Map<Character, String> templateMap = JobSpecificationFactory.transfileLineToMap(template);
             templateMap.put('f', fileHarvest.getFilename());
-            String fileStoreId = fileHarvest.isResumable() ? sendToFileStoreResume(fileHarvest) : sendToFileStore(fileHarvest);
-            LOGGER.info("Added file {} to file store with id {}", fileHarvest.getFilename(), fileStoreId);
             JobSpecification specification = JobSpecificationFactory.createJobSpecification(templateMap, transfileName, fileStoreId, template.getBytes(StandardCharsets.UTF_8));
             JobInfoSnapshot job = jobStore.getConnector().addJob(new JobInputStream(specification, true, 0));
             LOGGER.info("Added job {} to job store", job.getJobId());
@@ -118,30 +337,348 @@ public class JobSenderBean {
         }
     }
 
-    public String sendToFileStore(FileHarvest fileHarvest) throws Exception {
+    private void deleteFromFileStore(FileHarvest fileHarvest, String fileStoreId) {
+        try {
+            fileStore.deleteFile(fileStoreId);
+            LOGGER.info("Removed file {} without a job from file store with id {}", fileHarvest.getFilename(), fileStoreId);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to remove file {} without a job from file store with id {}", fileHarvest.getFilename(), fileStoreId, e);
+        }
+    }
+
+    public String sendToFileStore(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint) throws Exception {
+        return sendToFileStore(fileHarvest, host, agency, checkpoint, new Sources(host));
+    }
+
+    private String sendToFileStore(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint, Sources sources) throws Exception {
+        try (Spool.Spooled spooled = spool.reserve(fileHarvest.getSize())) {
+            if (spooled != null && spool(fileHarvest, host, agency, checkpoint, spooled, sources)) {
+                return sendSpooled(fileHarvest, spooled);
+            }
+        }
         AtomicReference<String> ref = new AtomicReference<>();
-        Failsafe.with(retryPolicy).run(() -> {
-            try(InputStream is = fileHarvest.getContent()) {
+        Failsafe.with(retryPolicy(host)).run(() -> {
+            try(HostPermits.Permit permit = hostPermits.acquire(host); ByteCountingInputStream is = sources.open(fileHarvest)) {
                 LOGGER.info("Sending file {} to filestore with size {}", fileHarvest.getFilename(), FileUtils.byteCountToDisplaySize(fileHarvest.getSize()));
-                ref.set(fileStore.addFile(is));
+                try (InputStream content = readAhead(agencyShares.meter(agency, is))) {
+                    ref.set(fileStore.addFile(content));
+                } catch (Exception e) {
+                    // the file is sent again from the start, by the next try or by a retry of the harvest
+                    checkpoint.retransferred(is.getBytesRead());
+                    throw e;
+                }
             }
         });
         return ref.get();
     }
 
-    public String sendToFileStoreResume(FileHarvest fileHarvest) throws Exception {
-        String fileStoreId = fileStore.addFile(new ByteArrayInputStream(new byte[0]));
-        Failsafe.with(retryPolicy).run(() -> {
-            long size = fileStore.getByteSize(fileStoreId);
-            LOGGER.info("Sending resumable file {} to filestore resume at {}", size, fileHarvest.getFilename());
-            fileHarvest.setResumePoint(size);
-            try(ByteCountingInputStream content = fileHarvest.getContent().setCount(size)) {
-                fileStore.appendStream(fileStoreId, content);
-            } catch (Exception e) {
-                LOGGER.warn("Failed to send file {}", fileHarvest.getFilename(), e);
-                throw e;
+    /**
+     * Downloads a file into the spool, retried like any transfer from the source.
+     * The download is not read ahead, the upload only starts once it is done.
+     * @return false if the file did not fit in the spool after all
+     */
+    private boolean spool(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint, Spool.Spooled spooled, Sources sources) {
+        return Failsafe.with(retryPolicy(host)).get(() -> {
+            try (HostPermits.Permit permit = hostPermits.acquire(host); ByteCountingInputStream is = sources.open(fileHarvest)) {
+                LOGGER.info("Spooling file {} with size {}", fileHarvest.getFilename(), FileUtils.byteCountToDisplaySize(fileHarvest.getSize()));
+                try (InputStream content = agencyShares.meter(agency, is)) {
+                    return spooled.fill(content);
+                } catch (Exception e) {
+                    checkpoint.retransferred(is.getBytesRead());
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Uploads a spooled file, retries are read from the spool and do not touch the source
+     */
+    private String sendSpooled(FileHarvest fileHarvest, Spool.Spooled spooled) {
+        return Failsafe.with(retryPolicy(null)).get(() -> {
+            LOGGER.info("Sending spooled file {} to filestore with size {}", fileHarvest.getFilename(), FileUtils.byteCountToDisplaySize(spooled.getSize()));
+            try (InputStream content = spooled.open()) {
+                return fileStore.addFile(content);
             }
         });
-        return fileStoreId;
+    }
+
+    /**
+     * Sends a file which can be fetched from a given byte on, by appending to
+     * a file store entry created up front. A retry fetches the rest of the file
+     * only. If the source turns out not to resume after all, the entry is
+     * created again and the file is sent from the start. The entry is removed
+     * when the file cannot be sent.
+     */
+    public String sendToFileStoreResume(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint) throws Exception {
+        return sendToFileStoreResume(fileHarvest, host, agency, checkpoint, new Sources(host));
+    }
+
+    private String sendToFileStoreResume(FileHarvest fileHarvest, String host, String agency, Checkpoint checkpoint, Sources sources) throws Exception {
+        AtomicReference<String> fileStoreId = new AtomicReference<>(fileStore.addFile(new ByteArrayInputStream(new byte[0])));
+        // the bytes read from the source so far, some may not have made it to the file store
+        AtomicLong read = new AtomicLong();
+        try {
+            Failsafe.with(retryPolicy(host)).run(() -> {
+                long size = fileStore.getByteSize(fileStoreId.get());
+                if (size > 0 && !fileHarvest.isResumable()) {
+                    fileStore.deleteFile(fileStoreId.get());
+                    fileStoreId.set(fileStore.addFile(new ByteArrayInputStream(new byte[0])));
+                    size = 0;
+                }
+                if (read.get() > size) checkpoint.retransferred(read.get() - size);
+                read.set(size);
+                LOGGER.info("Sending resumable file {} to filestore resume at {}", fileHarvest.getFilename(), size);
+                fileHarvest.setResumePoint(size);
+                try (HostPermits.Permit permit = hostPermits.acquire(host); ByteCountingInputStream content = sources.open(fileHarvest).setCount(size)) {
+                    try (InputStream readAhead = readAhead(agencyShares.meter(agency, content))) {
+                        fileStore.appendStream(fileStoreId.get(), readAhead);
+                    } finally {
+                        read.set(content.getBytesRead());
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn("Failed to send file {}", fileHarvest.getFilename(), e);
+                    throw e;
+                }
+            });
+        } catch (RuntimeException e) {
+            deleteFromFileStore(fileHarvest, fileStoreId.get());
+            throw e;
+        }
+        return fileStoreId.get();
+    }
+
+    /**
+     * @param source stream of a file being transferred
+     * @return the stream read ahead through a {@link BufferRing}, or the stream itself if HARVEST_TRANSFER_BUFFERS is 0
+     */
+    private InputStream readAhead(InputStream source) {
+        if (transferBuffers <= 0) return source;
+        return new BufferRing(source, transferBuffers, transferBufferBytes, threadFactory,
+                metricRegistry.timer("harvest_transfer_stall", new Tag("side", "source")),
+                metricRegistry.timer("harvest_transfer_stall", new Tag("side", "sink")));
+    }
+
+    /**
+     * Follows the files of a harvest as they are sent
+     */
+    public interface Checkpoint {
+        Checkpoint NONE = (fileHarvest, jobId, seqno) -> {};
+
+        /**
+         * Called as soon as the job of a file has been created, always by the thread sending the harvest
+         * @param fileHarvest file
+         * @param jobId id of the created job
+         * @param seqno highest seqno of the files sent so far, since jobs are created in the
+         *              order of the files no file before it is left unsent
+         * @throws HarvestException if the file could not be recorded as sent, which fails the harvest
+         */
+        void jobCreated(FileHarvest fileHarvest, int jobId, Integer seqno) throws HarvestException;
+
+        /**
+         * Called when an attempt at sending a file failed, by the thread which sent the file
+         * @param bytes bytes of the file transferred by the failed attempt
+         */
+        default void retransferred(long bytes) {
+        }
+    }
+
+    private interface Uploader {
+        String upload(FileHarvest fileHarvest, Sources sources) throws HarvestException;
+    }
+
+    private interface IORead {
+        int read() throws IOException;
+    }
+
+    private interface JobAdder {
+        int addJob(FileHarvest fileHarvest, String fileStoreId) throws HarvestException;
+    }
+
+    /**
+     * The source streams of the files of a harvest being sent, and the file
+     * store ids of the files uploaded in parallel which have no job yet.
+     * Closing closes the streams still open, which fails uploads blocked
+     * reading their source, no more streams are opened after that, and
+     * uploads completing later remove their files from the file store.
+     * <p>
+     * Failing to open or read a source counts as a failed request to its
+     * host, see {@link HostBreakers}, and a source read to the end as a
+     * successful one. A file store failure says nothing about the host.
+     */
+    private class Sources {
+        private final String host;
+        private final Set<InputStream> open = ConcurrentHashMap.newKeySet();
+        private final Map<Integer, String> withoutJob = new HashMap<>();
+        private boolean closed;
+        private int running;
+
+        private Sources(String host) {
+            this.host = host;
+        }
+
+        /**
+         * Uploads a file, unless it has been given up before the upload started
+         * @return the file store id
+         */
+        String upload(int index, FileHarvest fileHarvest, Uploader uploader) throws HarvestException, InterruptedIOException {
+            synchronized (this) {
+                if (closed) throw givenUp(fileHarvest);
+                running++;
+            }
+            try {
+                return uploaded(index, fileHarvest, uploader.upload(fileHarvest, this));
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+
+        ByteCountingInputStream open(FileHarvest fileHarvest) throws IOException, HarvestException {
+            InputStream content;
+            try {
+                content = fileHarvest.getContent();
+            } catch (HarvestException | RuntimeException e) {
+                sourceFailed();
+                throw e;
+            }
+            ByteCountingInputStream is = new ByteCountingInputStream(content) {
+                @Override
+                public int read() throws IOException {
+                    return fromSource(() -> super.read());
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return fromSource(() -> super.read(b, off, len));
+                }
+
+                private int fromSource(IORead read) throws IOException {
+                    try {
+                        int r = read.read();
+                        if (r < 0) hostBreakers.success(host);
+                        return r;
+                    } catch (InterruptedIOException e) {
+                        // a read cut short by a closed read-ahead is no fault of the host
+                        throw e;
+                    } catch (IOException e) {
+                        sourceFailed();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    open.remove(this);
+                    super.close();
+                }
+            };
+            open.add(is);
+            if (isClosed()) {
+                is.close();
+                throw givenUp(fileHarvest);
+            }
+            return is;
+        }
+
+        /**
+         * Hands over the file store id of an uploaded file, unless its file has been given up
+         * @return the file store id
+         * @throws InterruptedIOException if the file has been given up, in which case it is removed from the file store
+         */
+        private String uploaded(int index, FileHarvest fileHarvest, String fileStoreId) throws InterruptedIOException {
+            synchronized (this) {
+                if (!closed) {
+                    withoutJob.put(index, fileStoreId);
+                    return fileStoreId;
+                }
+            }
+            deleteFromFileStore(fileHarvest, fileStoreId);
+            throw givenUp(fileHarvest);
+        }
+
+        private void sourceFailed() {
+            // the streams of files given up are closed here, which is no fault of the host
+            if (!isClosed()) hostBreakers.failure(host);
+        }
+
+        synchronized void jobCreated(int index) {
+            withoutJob.remove(index);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return file store ids, by the positions of their files, of the uploaded files which have no job
+         */
+        Map<Integer, String> close() {
+            Map<Integer, String> given;
+            synchronized (this) {
+                closed = true;
+                given = new HashMap<>(withoutJob);
+                withoutJob.clear();
+            }
+            for (InputStream is : open) {
+                try {
+                    is.close();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.debug("Unable to close source stream of a file given up", e);
+                }
+            }
+            return given;
+        }
+
+        /**
+         * Waits for the uploads running when closed, no upload starts after that
+         * @return true if they have all completed, false if the wait timed out
+         */
+        synchronized boolean awaitUploads(Duration timeout) {
+            // the calling thread is interrupted by an abort, which must not cut the wait short
+            boolean interrupted = Thread.interrupted();
+            try {
+                long deadline = System.nanoTime() + timeout.toNanos();
+                while (running > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) return false;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return true;
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        private InterruptedIOException givenUp(FileHarvest fileHarvest) {
+            return new InterruptedIOException("Sending file " + fileHarvest.getFilename() + " was given up");
+        }
+    }
+
+    /**
+     * @return the highest of a seqno and the seqno of a file, null if neither has one
+     */
+    private static Integer maxSeqno(Integer seqno, FileHarvest fileHarvest) {
+        Integer fileSeqno = fileHarvest.getSeqno();
+        return fileSeqno == null || seqno != null && seqno >= fileSeqno ? seqno : fileSeqno;
+    }
+
+    /**
+     * Stops retrying transfers from a host once its circuit has been opened,
+     * the harvest as a whole is retried when the host is probed again.
+     * Transfers interrupted by an abort are not retried either.
+     */
+    private RetryPolicy<Object> retryPolicy(String host) {
+        @SuppressWarnings("unchecked")
+        RetryPolicy<Object> policy = (RetryPolicy<Object>) retryPolicy.copy();
+        return policy.abortIf((result, failure) -> failure != null && (hostBreakers.getState(host) == HostBreakers.State.OPEN
+                || failure instanceof InterruptedException || failure instanceof InterruptedIOException
+                || Thread.currentThread().isInterrupted()));
     }
 }
@@ -5,6 +5,7 @@
 
 package dk.dbc.saturn.rest;
 
+import dk.dbc.saturn.api.AdminApi;
 import dk.dbc.saturn.api.ConfigFieldApi;
 import dk.dbc.saturn.api.HarvesterConfigApi;
 import dk.dbc.saturn.api.PasswordRepositoryApi;
@@ -30,6 +31,7 @@ public class Saturn extends Application {
         classes.add(HarvesterConfigApi.class);
         classes.add(ConfigFieldApi.class);
         classes.add(PasswordRepositoryApi.class);
+        classes.add(AdminApi.class);
     }
 
     @Override
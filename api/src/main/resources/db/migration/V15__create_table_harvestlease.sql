@@ -0,0 +1,14 @@
+-- Leases on harvester configs, so only one saturn instance at a time
+-- harvests a config. A lease is held while owner is set and expires is in
+-- the future, the owner extends it with heartbeats while harvesting.
+-- slot is the scheduled time of the latest claimed harvest, a config is
+-- never claimed twice for the same slot.
+CREATE TABLE harvestlease (
+    configid        INTEGER PRIMARY KEY,
+    type            TEXT NOT NULL,
+    owner           TEXT,
+    expires         TIMESTAMP WITH TIME ZONE,
+    slot            TIMESTAMP WITH TIME ZONE
+);
+
+CREATE INDEX harvestlease_owner_expires_idx ON harvestlease (expires) WHERE owner IS NOT NULL;
@@ -0,0 +1,4 @@
+-- Covering indexes for the scheduling projection, which only lists enabled configs
+CREATE INDEX ftpharvester_schedule_idx ON ftpharvester (id, schedule, lastharvested, seqno) WHERE enabled;
+CREATE INDEX sftpharvester_schedule_idx ON sftpharvester (id, schedule, lastharvested, seqno) WHERE enabled;
+CREATE INDEX httpharvester_schedule_idx ON httpharvester (id, schedule, lastharvested, seqno) WHERE enabled;
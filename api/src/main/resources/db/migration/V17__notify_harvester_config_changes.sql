@@ -0,0 +1,41 @@
+-- Notifies listeners on the harvester_config channel when the scheduling
+-- columns of a harvester config change. The payload is <type>:<id>, the
+-- listener reads the current state of the config itself, so notifications
+-- may be coalesced or arrive out of order.
+CREATE FUNCTION notify_harvester_config() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('harvester_config', TG_ARGV[0] || ':' || OLD.id);
+    ELSE
+        PERFORM pg_notify('harvester_config', TG_ARGV[0] || ':' || NEW.id);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER ftpharvester_insert_delete_notify AFTER INSERT OR DELETE ON ftpharvester
+    FOR EACH ROW EXECUTE PROCEDURE notify_harvester_config('FTP');
+CREATE TRIGGER ftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno ON ftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno)
+    EXECUTE PROCEDURE notify_harvester_config('FTP');
+
+CREATE TRIGGER sftpharvester_insert_delete_notify AFTER INSERT OR DELETE ON sftpharvester
+    FOR EACH ROW EXECUTE PROCEDURE notify_harvester_config('SFTP');
+CREATE TRIGGER sftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno ON sftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno)
+    EXECUTE PROCEDURE notify_harvester_config('SFTP');
+
+CREATE TRIGGER httpharvester_insert_delete_notify AFTER INSERT OR DELETE ON httpharvester
+    FOR EACH ROW EXECUTE PROCEDURE notify_harvester_config('HTTP');
+CREATE TRIGGER httpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno ON httpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno)
+    EXECUTE PROCEDURE notify_harvester_config('HTTP');
@@ -0,0 +1,39 @@
+-- Misfire policy of a harvester config, see dk.dbc.saturn.entity.MisfirePolicy.
+-- misfirelimit is the number of missed slots RUN_ALL catches up on.
+ALTER TABLE ftpharvester ADD COLUMN misfirepolicy TEXT DEFAULT 'RUN_ONCE' NOT NULL;
+ALTER TABLE ftpharvester ADD COLUMN misfirelimit INTEGER;
+ALTER TABLE sftpharvester ADD COLUMN misfirepolicy TEXT DEFAULT 'RUN_ONCE' NOT NULL;
+ALTER TABLE sftpharvester ADD COLUMN misfirelimit INTEGER;
+ALTER TABLE httpharvester ADD COLUMN misfirepolicy TEXT DEFAULT 'RUN_ONCE' NOT NULL;
+ALTER TABLE httpharvester ADD COLUMN misfirelimit INTEGER;
+
+-- the misfire policy is part of the scheduling projection, so changes to it are notified as well
+DROP TRIGGER ftpharvester_update_notify ON ftpharvester;
+CREATE TRIGGER ftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit ON ftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit)
+    EXECUTE PROCEDURE notify_harvester_config('FTP');
+
+DROP TRIGGER sftpharvester_update_notify ON sftpharvester;
+CREATE TRIGGER sftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit ON sftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit)
+    EXECUTE PROCEDURE notify_harvester_config('SFTP');
+
+DROP TRIGGER httpharvester_update_notify ON httpharvester;
+CREATE TRIGGER httpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit ON httpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit)
+    EXECUTE PROCEDURE notify_harvester_config('HTTP');
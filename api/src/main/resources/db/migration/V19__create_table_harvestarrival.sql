@@ -0,0 +1,8 @@
+-- Times at which harvests found new files, used to learn when the sources
+-- of the harvester configs publish. Only the latest weeks are kept.
+CREATE TABLE harvestarrival (
+    configid        INTEGER NOT NULL,
+    arrived         TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+CREATE INDEX harvestarrival_configid_arrived_idx ON harvestarrival (configid, arrived);
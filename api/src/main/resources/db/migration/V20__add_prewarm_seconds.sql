@@ -0,0 +1,28 @@
+-- Number of seconds before a scheduled harvest the connection to the source
+-- is opened, so the harvest does not wait for the login. NULL disables it.
+-- Only FTP and SFTP harvesters log in to their source.
+ALTER TABLE ftpharvester ADD COLUMN prewarmseconds INTEGER;
+ALTER TABLE sftpharvester ADD COLUMN prewarmseconds INTEGER;
+
+-- pre-warming is planned from the scheduling projection, so changes to it are notified as well
+DROP TRIGGER ftpharvester_update_notify ON ftpharvester;
+CREATE TRIGGER ftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds ON ftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit
+        OR OLD.prewarmseconds IS DISTINCT FROM NEW.prewarmseconds)
+    EXECUTE PROCEDURE notify_harvester_config('FTP');
+
+DROP TRIGGER sftpharvester_update_notify ON sftpharvester;
+CREATE TRIGGER sftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds ON sftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit
+        OR OLD.prewarmseconds IS DISTINCT FROM NEW.prewarmseconds)
+    EXECUTE PROCEDURE notify_harvester_config('SFTP');
@@ -0,0 +1,36 @@
+-- The agency of a config decides its share of the harvest slots, so it is
+-- part of the scheduling projection and changes to it are notified as well
+DROP TRIGGER ftpharvester_update_notify ON ftpharvester;
+CREATE TRIGGER ftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency ON ftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit
+        OR OLD.prewarmseconds IS DISTINCT FROM NEW.prewarmseconds
+        OR OLD.agency IS DISTINCT FROM NEW.agency)
+    EXECUTE PROCEDURE notify_harvester_config('FTP');
+
+DROP TRIGGER sftpharvester_update_notify ON sftpharvester;
+CREATE TRIGGER sftpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency ON sftpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit
+        OR OLD.prewarmseconds IS DISTINCT FROM NEW.prewarmseconds
+        OR OLD.agency IS DISTINCT FROM NEW.agency)
+    EXECUTE PROCEDURE notify_harvester_config('SFTP');
+
+DROP TRIGGER httpharvester_update_notify ON httpharvester;
+CREATE TRIGGER httpharvester_update_notify AFTER UPDATE OF schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, agency ON httpharvester
+    FOR EACH ROW WHEN (OLD.schedule IS DISTINCT FROM NEW.schedule
+        OR OLD.enabled IS DISTINCT FROM NEW.enabled
+        OR OLD.lastharvested IS DISTINCT FROM NEW.lastharvested
+        OR OLD.seqno IS DISTINCT FROM NEW.seqno
+        OR OLD.misfirepolicy IS DISTINCT FROM NEW.misfirepolicy
+        OR OLD.misfirelimit IS DISTINCT FROM NEW.misfirelimit
+        OR OLD.agency IS DISTINCT FROM NEW.agency)
+    EXECUTE PROCEDURE notify_harvester_config('HTTP');
@@ -0,0 +1,4 @@
+-- Size of the files found by each arrival, used to tell small harvests from
+-- bulk transfers before they start. NULL for arrivals recorded before this
+-- column existed, and for sources which do not report file sizes.
+ALTER TABLE harvestarrival ADD COLUMN bytes BIGINT;
@@ -0,0 +1,14 @@
+-- Files whose jobs have been created, recorded as soon as each job is, so a
+-- retried harvest continues with the first file not yet sent. A run is
+-- identified by the time its first attempt started, only the latest run of
+-- each config is kept.
+CREATE TABLE harvestedfile (
+    configid        INTEGER NOT NULL,
+    run             TIMESTAMP WITH TIME ZONE NOT NULL,
+    filename        TEXT NOT NULL,
+    seqno           INTEGER,
+    bytes           BIGINT,
+    jobid           INTEGER NOT NULL,
+    sent            TIMESTAMP WITH TIME ZONE NOT NULL,
+    PRIMARY KEY (configid, run, filename)
+);
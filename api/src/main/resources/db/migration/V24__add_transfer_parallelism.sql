@@ -0,0 +1,5 @@
+-- Number of files of a harvest which are transferred at the same time.
+-- NULL transfers the files one at a time.
+ALTER TABLE ftpharvester ADD COLUMN transferparallelism INTEGER;
+ALTER TABLE sftpharvester ADD COLUMN transferparallelism INTEGER;
+ALTER TABLE httpharvester ADD COLUMN transferparallelism INTEGER;
@@ -0,0 +1,9 @@
+-- The missed fire time a config with misfirepolicy RUN_ALL has caught up to,
+-- while it is behind. Its schedule counts from here instead of from
+-- lastharvested, which is left the time of the actual harvest.
+-- NULL when the config is not catching up.
+-- A harvest writes lastharvested along with it, so the notify triggers
+-- already fire when it changes.
+ALTER TABLE ftpharvester ADD COLUMN caughtupuntil TIMESTAMP WITH TIME ZONE;
+ALTER TABLE sftpharvester ADD COLUMN caughtupuntil TIMESTAMP WITH TIME ZONE;
+ALTER TABLE httpharvester ADD COLUMN caughtupuntil TIMESTAMP WITH TIME ZONE;
@@ -0,0 +1,14 @@
+-- The indexes of V16 only held id, schedule, lastharvested and seqno, while the
+-- scheduling projection has gained the misfire policy, the pre-warm time, the
+-- agency and the caught up time since. The indexes are recreated to hold all
+-- of its columns, so it can still be listed by index-only scans.
+-- httpharvester has no prewarmseconds column, its projection lists NULL instead.
+DROP INDEX ftpharvester_schedule_idx;
+DROP INDEX sftpharvester_schedule_idx;
+DROP INDEX httpharvester_schedule_idx;
+CREATE INDEX ftpharvester_schedule_idx ON ftpharvester (id)
+    INCLUDE (schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency, caughtupuntil) WHERE enabled;
+CREATE INDEX sftpharvester_schedule_idx ON sftpharvester (id)
+    INCLUDE (schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, prewarmseconds, agency, caughtupuntil) WHERE enabled;
+CREATE INDEX httpharvester_schedule_idx ON httpharvester (id)
+    INCLUDE (schedule, enabled, lastharvested, seqno, misfirepolicy, misfirelimit, agency, caughtupuntil) WHERE enabled;
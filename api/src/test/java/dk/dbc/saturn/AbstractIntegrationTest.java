@@ -26,6 +26,7 @@ import javax.sql.DataSource;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.ParseException;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
@@ -50,6 +51,8 @@ public abstract class AbstractIntegrationTest {
     public static EntityManager entityManager;
     public final static HarvesterConfigRepository HARVESTER_CONFIG_REPOSITORY = new HarvesterConfigRepository();
     public final static PasswordRepository PASSWORD_REPOSITORY = new PasswordRepository();
+    public final static HarvestLeases HARVEST_LEASES = new HarvestLeases();
+    public final static HarvestedFiles HARVESTED_FILES = new HarvestedFiles();
     public final static UriBuilder MOCKED_URI_BUILDER = mock(UriBuilder.class);
     public static final SFtpContainer SFTP_CONTAINER = new SFtpContainer(SFTP_IMAGE, "sftp", "sftp", "upload").withNetwork(network).go();
     public static final DBCServiceContainer SATURN_CONTAINER = makeSaturnContainer(network, "http://localhost");
@@ -61,7 +64,12 @@ public abstract class AbstractIntegrationTest {
         migrateDatabase(dataSource);
         entityManager = createEntityManager(SATURN_DB_CONTAINER, "saturnIT_PU");
         HARVESTER_CONFIG_REPOSITORY.entityManager = entityManager;
+        HARVESTER_CONFIG_REPOSITORY.runScheduleBean = new RunScheduleBean("Europe/Copenhagen");
+        HARVESTER_CONFIG_REPOSITORY.harvestPlan = new HarvestPlan(Clock.systemUTC(), HARVESTER_CONFIG_REPOSITORY.runScheduleBean);
         PASSWORD_REPOSITORY.entityManager = entityManager;
+        HARVEST_LEASES.entityManager = entityManager;
+        HARVEST_LEASES.leaseSeconds = 120;
+        HARVESTED_FILES.entityManager = entityManager;
         when(MOCKED_URI_BUILDER.path(anyString())).thenReturn(MOCKED_URI_BUILDER);
         when(MOCKED_URI_BUILDER.build()).thenReturn(new URI("location"));
     }
@@ -81,6 +89,9 @@ public abstract class AbstractIntegrationTest {
         HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM ftpharvester").executeUpdate();
         HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM sftpharvester").executeUpdate();
         HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM passwords").executeUpdate();
+        HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM harvestlease").executeUpdate();
+        HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM harvestarrival").executeUpdate();
+        HARVESTER_CONFIG_REPOSITORY.entityManager.createNativeQuery("DELETE FROM harvestedfile").executeUpdate();
         HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
     }
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HarvesterSchedule;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptivePollingTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:00:00Z");
+    private final HarvestArrivals harvestArrivals = mock(HarvestArrivals.class);
+    private final AdaptivePolling adaptivePolling = new AdaptivePolling(harvestArrivals, "UTC", 120, 30, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    @Test
+    public void learnWindow() {
+        AdaptivePolling.Window window = adaptivePolling.learn(arrivals("06:10", "06:00", "06:40", "06:25", "06:05"));
+
+        assertThat("window", window.toString(), is("05:30-07:10"));
+    }
+
+    @Test
+    public void learnWindowAroundMidnight() {
+        AdaptivePolling.Window window = adaptivePolling.learn(arrivals("23:50", "00:10", "23:55", "00:05", "00:00"));
+
+        assertThat("window", window.toString(), is("23:20-00:40"));
+        assertThat("contains 23:30", window.contains(23 * 60 + 30), is(true));
+        assertThat("contains 00:30", window.contains(30), is(true));
+        assertThat("contains 12:00", window.contains(12 * 60), is(false));
+    }
+
+    @Test
+    public void noWindowFromTooFewArrivals() {
+        assertThat(adaptivePolling.learn(arrivals("06:00", "06:10", "06:20")), is(nullValue()));
+    }
+
+    @Test
+    public void noWindowFromArrivalsSpreadOverTheDay() {
+        assertThat(adaptivePolling.learn(arrivals("00:00", "05:00", "10:00", "15:00", "20:00")), is(nullValue()));
+    }
+
+    @Test
+    public void sparsePollingOutsideWindow() {
+        when(harvestArrivals.since(eq(1), any(Instant.class))).thenReturn(arrivals("06:10", "06:00", "06:40", "06:25", "06:05"));
+        HarvesterSchedule schedule = schedule(1);
+
+        assertThat("first fire time", adaptivePolling.shouldPoll(schedule, at("12:00")), is(true));
+        assertThat("not listed yet", adaptivePolling.shouldPoll(schedule, at("12:15")), is(true));
+        adaptivePolling.listed(1, at("12:00"));
+        assertThat("within sparse interval", adaptivePolling.shouldPoll(schedule, at("12:15")), is(false));
+        assertThat("after sparse interval", adaptivePolling.shouldPoll(schedule, at("14:00")), is(true));
+        assertThat("inside window", adaptivePolling.shouldPoll(schedule, at("06:15")), is(true));
+    }
+
+    @Test
+    public void alwaysPollWithoutPattern() {
+        when(harvestArrivals.since(eq(2), any(Instant.class))).thenReturn(arrivals("06:00"));
+        HarvesterSchedule schedule = schedule(2);
+
+        assertThat("first fire time", adaptivePolling.shouldPoll(schedule, at("12:00")), is(true));
+        assertThat("next fire time", adaptivePolling.shouldPoll(schedule, at("12:15")), is(true));
+    }
+
+    private static HarvesterSchedule schedule(int id) {
+        return new HarvesterSchedule(id, HarvesterType.FTP, "*/15 * * * *", true, Date.from(NOW.minusSeconds(900)), null);
+    }
+
+    private static Instant at(String time) {
+        return Instant.parse("2024-03-01T" + time + ":00Z");
+    }
+
+    /** arrivals at the given times of day, one per day backwards from NOW */
+    private static List<Instant> arrivals(String... times) {
+        Instant[] arrivals = new Instant[times.length];
+        for (int i = 0; i < times.length; i++) {
+            arrivals[i] = at(times[i]).minusSeconds(86400L * (i + 1));
+        }
+        return List.of(arrivals);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class BufferRingTest {
+    private final Timer sourceStall = mock(Timer.class);
+    private final Timer sinkStall = mock(Timer.class);
+
+    @Test
+    public void sourceIsReadAheadUntilBuffersAreFull() throws IOException, InterruptedException {
+        byte[] content = new byte[10_000];
+        new Random(42).nextBytes(content);
+        ByteCountingInputStream source = new ByteCountingInputStream(new ByteArrayInputStream(content));
+
+        try (BufferRing ring = new BufferRing(source, 2, 1000, Executors.defaultThreadFactory(), sourceStall, sinkStall)) {
+            waitFor(() -> source.getBytesRead() == 2000);
+            assertThat("read ahead no further than the buffers", source.getBytesRead(), is(2000L));
+            assertThat("content", ring.readAllBytes(), is(content));
+        }
+        verify(sinkStall, atLeastOnce()).update(any(Duration.class));
+    }
+
+    @Test
+    public void sourceFailureIsRaisedToReader() throws IOException {
+        InputStream source = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ == 1500) throw new IOException("connection reset");
+                return 1;
+            }
+        };
+
+        try (BufferRing ring = new BufferRing(source, 2, 1000, Executors.defaultThreadFactory(), sourceStall, sinkStall)) {
+            assertThat("first buffer", ring.readNBytes(1000).length, is(1000));
+            ring.readAllBytes();
+            fail("Expected the failure of the source");
+        } catch (IOException e) {
+            assertThat("cause", e.getCause().getMessage(), is("connection reset"));
+        }
+    }
+
+    @Test
+    public void closeStopsTheReadingThreadAndLeavesTheSourceToTheCaller() throws IOException, InterruptedException {
+        AtomicInteger closes = new AtomicInteger();
+        ByteCountingInputStream source = new ByteCountingInputStream(new ByteArrayInputStream(new byte[10_000]) {
+            @Override
+            public void close() {
+                closes.incrementAndGet();
+            }
+        });
+
+        BufferRing ring = new BufferRing(source, 2, 1000, Executors.defaultThreadFactory(), sourceStall, sinkStall);
+        waitFor(() -> source.getBytesRead() == 2000);
+        ring.close();
+        ring.close();
+
+        assertThat("source not closed", closes.get(), is(0));
+        assertThat("nothing more read", source.getBytesRead(), is(2000L));
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.holds()) {
+            if (System.nanoTime() > deadline) fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+}
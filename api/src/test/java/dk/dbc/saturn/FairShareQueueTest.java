@@ -0,0 +1,180 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.HarvestLanes.Lane;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FairShareQueueTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:10:00Z");
+    private final Clock clock = mock(Clock.class);
+    private final HarvestExecutor executor = mock(HarvestExecutor.class);
+    private final List<Runnable> started = new ArrayList<>();
+    private final HarvestLanes harvestLanes = new HarvestLanes(mock(HarvestArrivals.class), 1, 1, 1000, Lane.BULK, clock);
+
+    public FairShareQueueTest() {
+        when(clock.instant()).thenReturn(NOW);
+        when(executor.getConcurrency()).thenReturn(2);
+        doAnswer(invocation -> started.add(invocation.getArgument(0))).when(executor).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void freeSlotGoesToAgencyWithSmallestShare() {
+        AgencyShares agencyShares = makeAgencyShares(Map.of(), Map.of(), Map.of());
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, "a", 3);
+        submit(queue, "b", 1);
+
+        assertThat("a started", status(agencyShares, "a", "running"), is(2));
+        assertThat("b queued", status(agencyShares, "b", "queued"), is(1));
+        assertThat("queued", queue.size(), is(2));
+
+        finish(0);
+        assertThat("b before a", status(agencyShares, "b", "running"), is(1));
+        assertThat("a waits", status(agencyShares, "a", "running"), is(1));
+
+        finish(1);
+        assertThat("a again", status(agencyShares, "a", "running"), is(1));
+        assertThat("queued", queue.size(), is(0));
+    }
+
+    @Test
+    public void weightedAgencyGetsMoreSlots() {
+        when(executor.getConcurrency()).thenReturn(0);
+        AgencyShares agencyShares = makeAgencyShares(Map.of("a", 3), Map.of(), Map.of());
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, "a", 4);
+        submit(queue, "b", 4);
+
+        when(executor.getConcurrency()).thenReturn(4);
+        queue.drain();
+        assertThat("a", status(agencyShares, "a", "running"), is(3));
+        assertThat("b", status(agencyShares, "b", "running"), is(1));
+    }
+
+    @Test
+    public void agencyIsHeldAtMaxRunning() {
+        AgencyShares agencyShares = makeAgencyShares(Map.of(), Map.of("a", 1), Map.of());
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, "a", 2);
+        submit(queue, null, 1);
+
+        assertThat("a", status(agencyShares, "a", "running"), is(1));
+        assertThat("held", status(agencyShares, "a", "held"), is(true));
+        assertThat("unknown agency", status(agencyShares, AgencyShares.UNKNOWN, "running"), is(1));
+
+        finish(0);
+        assertThat("released", status(agencyShares, "a", "running"), is(1));
+        assertThat("queued", queue.size(), is(0));
+        assertThat("running", queue.getRunning(), is(2));
+    }
+
+    @Test
+    public void agencyIsHeldUntilNextHourAfterMaxBytes() throws IOException {
+        AgencyShares agencyShares = makeAgencyShares(Map.of(), Map.of(), Map.of("a", 10L));
+        try (InputStream is = agencyShares.meter("a", new ByteArrayInputStream(new byte[20]))) {
+            assertThat("transferred", is.readAllBytes().length, is(20));
+        }
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, "a", 1);
+
+        assertThat("held", status(agencyShares, "a", "held"), is(true));
+        assertThat("queued", queue.size(), is(1));
+
+        when(clock.instant()).thenReturn(NOW.plusSeconds(3000));
+        queue.drain();
+        assertThat("started next hour", status(agencyShares, "a", "running"), is(1));
+        assertThat("bytes this hour", status(agencyShares, "a", "bytesThisHour"), is(0L));
+    }
+
+    @Test
+    public void interactiveAndSmallHarvestsDoNotWaitBehindBulk() {
+        when(executor.getConcurrency()).thenReturn(4);
+        AgencyShares agencyShares = makeAgencyShares(Map.of(), Map.of(), Map.of());
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, Lane.BULK, "a", 4);
+
+        assertThat("bulk is bounded", queue.getRunning(Lane.BULK), is(2));
+        assertThat("bulk queued", queue.size(Lane.BULK), is(2));
+
+        submit(queue, Lane.SMALL, "a", 2);
+        assertThat("small uses its reserved slot", queue.getRunning(Lane.SMALL), is(1));
+        assertThat("small queued", queue.size(Lane.SMALL), is(1));
+
+        submit(queue, Lane.INTERACTIVE, "a", 1);
+        assertThat("interactive uses its reserved slot", queue.getRunning(Lane.INTERACTIVE), is(1));
+
+        finish(0);
+        assertThat("small before bulk", queue.getRunning(Lane.SMALL), is(2));
+        assertThat("bulk", queue.getRunning(Lane.BULK), is(1));
+        assertThat("bulk still queued", queue.size(Lane.BULK), is(2));
+    }
+
+    @Test
+    public void reservedSlotsAreNotUsedByLowerLanes() {
+        when(executor.getConcurrency()).thenReturn(3);
+        AgencyShares agencyShares = makeAgencyShares(Map.of(), Map.of(), Map.of());
+        FairShareQueue queue = new FairShareQueue(executor, agencyShares, harvestLanes);
+        submit(queue, Lane.SMALL, "a", 3);
+        submit(queue, Lane.BULK, "b", 1);
+
+        assertThat("small", queue.getRunning(Lane.SMALL), is(2));
+        assertThat("bulk does not take the slot reserved for interactive runs", queue.getRunning(Lane.BULK), is(0));
+        assertThat("running", queue.getRunning(), is(2));
+
+        submit(queue, Lane.INTERACTIVE, "c", 1);
+        assertThat("interactive", queue.getRunning(Lane.INTERACTIVE), is(1));
+        assertThat("queued", queue.size(), is(2));
+    }
+
+    private void submit(FairShareQueue queue, String agency, int count) {
+        submit(queue, Lane.INTERACTIVE, agency, count);
+    }
+
+    private void submit(FairShareQueue queue, Lane lane, String agency, int count) {
+        for (int i = 0; i < count; i++) {
+            queue.submit(lane, agency, () -> {});
+        }
+    }
+
+    /**
+     * Runs a task handed to the executor, which ends it and frees its slot
+     */
+    private void finish(int index) {
+        started.get(index).run();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T status(AgencyShares agencyShares, String agency, String key) {
+        return (T) agencyShares.getStatus().get(agency).get(key);
+    }
+
+    private AgencyShares makeAgencyShares(Map<String, Integer> weights, Map<String, Integer> maxRunning, Map<String, Long> maxBytesPerHour) {
+        MetricRegistry metricRegistry = mock(MetricRegistry.class);
+        when(metricRegistry.counter(anyString(), any(Tag.class))).thenReturn(mock(Counter.class));
+        return new AgencyShares(weights, maxRunning, maxBytesPerHour, 0, clock, metricRegistry);
+    }
+}
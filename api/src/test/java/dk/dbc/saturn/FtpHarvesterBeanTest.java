@@ -5,19 +5,44 @@
 
 package dk.dbc.saturn;
 
+import dk.dbc.dataio.commons.utils.jobstore.JobStoreServiceConnector;
+import dk.dbc.dataio.commons.utils.jobstore.ejb.JobStoreServiceConnectorBean;
+import dk.dbc.dataio.filestore.service.connector.FileStoreServiceConnector;
+import dk.dbc.dataio.filestore.service.connector.FileStoreServiceConnectorException;
+import dk.dbc.ftp.ByteCountingFailInputStream;
 import dk.dbc.ftp.FtpClient;
 import dk.dbc.proxy.ProxyBean;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
+import dk.dbc.saturn.job.JobSenderBean;
 import org.junit.Test;
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.command.CommandNames;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.command.PassCommandHandler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class FtpHarvesterBeanTest extends AbstractFtpBeanTest {
     @Test
@@ -137,9 +162,142 @@ public class FtpHarvesterBeanTest extends AbstractFtpBeanTest {
         assertThat(fileHarvests, is(expectedFileHarvests));
     }
 
+    @Test
+    public void test_harvest_prewarmed() throws IOException, HarvestException {
+        final String ftpDir = createFtpDir("test_harvest_prewarmed");
+        final FtpClient ftpClient = FtpClientFactory.createFtpClient(
+                "localhost", fakeFtpServer.getServerControlPort(), USERNAME, PASSWORD, ftpDir, null);
+        ftpClient.put("bb.txt", "Barnacle Boy!");
+        ftpClient.close();
+        final FtpHarvesterBean ftpHarvesterBean = getFtpHarvesterBean();
+        final FtpHarvesterConfig config = getFtpHarvesterConfig(
+                "localhost", USERNAME, PASSWORD, ftpDir, fakeFtpServer.getServerControlPort(), null);
+        config.setId(1);
+
+        ftpHarvesterBean.warm(config, Instant.now().plusSeconds(30), () -> {});
+        assertThat("pre-warmed", ftpHarvesterBean.warmConnections.size(), is(1));
+
+        Set<FileHarvest> fileHarvests = ftpHarvesterBean.listFiles(config);
+
+        assertThat("pre-warmed connection used", ftpHarvesterBean.warmConnections.size(), is(0));
+        assertThat("result size", fileHarvests.size(), is(1));
+        for (FileHarvest fileHarvest : fileHarvests) {
+            assertThat(fileHarvest.getFilename(), readInputStream(fileHarvest.getContent()), is("Barnacle Boy!"));
+        }
+    }
+
+    @Test
+    public void transferIsResumedWhereItBrokeOff() throws Exception {
+        final String ftpDir = createFtpDir("transferIsResumedWhereItBrokeOff");
+        final FtpClient ftpClient = FtpClientFactory.createFtpClient(
+                "localhost", fakeFtpServer.getServerControlPort(), USERNAME, PASSWORD, ftpDir, null);
+        ftpClient.put("large.txt", new ByteArrayInputStream(LARGE_BLOB), FtpClient.FileType.BINARY);
+        ftpClient.close();
+        final FtpHarvesterConfig config = getFtpHarvesterConfig(
+                "localhost", USERNAME, PASSWORD, ftpDir, fakeFtpServer.getServerControlPort(), null);
+        assertThat("not resumed by default", getFtpHarvesterBean().listFiles(config).iterator().next().isResumable(), is(false));
+        final FileHarvest fileHarvest = new FtpFileHarvest(ftpDir, "large.txt", null, null, FileHarvest.Status.AWAITING_DOWNLOAD, LARGE_BLOB.length)
+                .withResumeConnector(() -> FtpClientFactory.createResumingFtpClient(config, null));
+        assertThat("resumable", fileHarvest.isResumable(), is(true));
+
+        final FileStoreServiceConnector fileStore = mock(FileStoreServiceConnector.class);
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final AtomicInteger appends = new AtomicInteger();
+        when(fileStore.addFile(any(InputStream.class))).thenReturn("abc");
+        when(fileStore.getByteSize("abc")).thenAnswer(invocation -> (long) stored.size());
+        doAnswer(invocation -> {
+            InputStream is = invocation.getArgument(1);
+            if (appends.getAndIncrement() == 0) {
+                is = new ByteCountingFailInputStream(is, 25000);
+            }
+            byte[] buffer = new byte[1024];
+            int length;
+            try {
+                while ((length = is.read(buffer)) > 0) {
+                    stored.write(buffer, 0, length);
+                }
+            } catch (IOException e) {
+                throw new FileStoreServiceConnectorException("connection reset");
+            }
+            return null;
+        }).when(fileStore).appendStream(eq("abc"), any(InputStream.class));
+        final JobSenderBean jobSenderBean = new JobSenderBean(new ProgressTrackerBean(), fileStore,
+                new JobStoreServiceConnectorBean(mock(JobStoreServiceConnector.class)), makeMetricRegistry(), 1);
+
+        jobSenderBean.sendToFileStoreResume(fileHarvest, null, null, JobSenderBean.Checkpoint.NONE);
+
+        assertThat("appends", appends.get(), is(2));
+        assertThat("content", stored.toByteArray(), is(LARGE_BLOB));
+    }
+
+    @Test
+    public void listingAndTransfersStayWithinThePermitsOfTheHost() throws Exception {
+        final HostPermits hostPermits = new HostPermits(1, Map.of(), makeMetricRegistry());
+        final List<Integer> permitsAtLogin = Collections.synchronizedList(new ArrayList<>());
+        fakeFtpServer.setCommandHandler(CommandNames.PASS, new PassCommandHandler() {
+            @Override
+            protected void handle(Command command, Session session) {
+                permitsAtLogin.add(hostPermits.getInUse("localhost"));
+                super.handle(command, session);
+            }
+        });
+        try {
+            final String ftpDir = createFtpDir("listingAndTransfersStayWithinThePermitsOfTheHost");
+            final FtpClient ftpClient = FtpClientFactory.createFtpClient(
+                    "localhost", fakeFtpServer.getServerControlPort(), USERNAME, PASSWORD, ftpDir, null);
+            ftpClient.put("large.txt", new ByteArrayInputStream(LARGE_BLOB), FtpClient.FileType.BINARY);
+            ftpClient.close();
+            permitsAtLogin.clear();
+            final FtpHarvesterBean ftpHarvesterBean = getFtpHarvesterBean();
+            ftpHarvesterBean.resumeTransfers = true;
+            final FtpHarvesterConfig config = getFtpHarvesterConfig(
+                    "localhost", USERNAME, PASSWORD, ftpDir, fakeFtpServer.getServerControlPort(), null);
+
+            final Set<FileHarvest> fileHarvests;
+            try (HostPermits.Permit permit = hostPermits.acquire("localhost")) {
+                fileHarvests = ftpHarvesterBean.listFiles(config);
+            }
+            assertThat("a single login for the listing", permitsAtLogin, is(List.of(1)));
+
+            final FileStoreServiceConnector fileStore = mock(FileStoreServiceConnector.class);
+            final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+            final AtomicInteger appends = new AtomicInteger();
+            when(fileStore.addFile(any(InputStream.class))).thenReturn("abc");
+            when(fileStore.getByteSize("abc")).thenAnswer(invocation -> (long) stored.size());
+            doAnswer(invocation -> {
+                stored.reset();
+                return null;
+            }).when(fileStore).deleteFile("abc");
+            doAnswer(invocation -> {
+                InputStream is = invocation.getArgument(1);
+                if (appends.getAndIncrement() == 0) {
+                    is = new ByteCountingFailInputStream(is, 25000);
+                }
+                try {
+                    stored.write(is.readAllBytes());
+                } catch (IOException e) {
+                    throw new FileStoreServiceConnectorException("connection reset");
+                }
+                return null;
+            }).when(fileStore).appendStream(eq("abc"), any(InputStream.class));
+            final JobSenderBean jobSenderBean = new JobSenderBean(new ProgressTrackerBean(), fileStore,
+                    new JobStoreServiceConnectorBean(mock(JobStoreServiceConnector.class)), hostPermits, new Spool(), makeMetricRegistry(), 1);
+
+            jobSenderBean.sendToFileStoreResume(fileHarvests.iterator().next(), "localhost", null, JobSenderBean.Checkpoint.NONE);
+
+            assertThat("content", stored.toByteArray(), is(LARGE_BLOB));
+            assertThat("logins", permitsAtLogin.size() > 1, is(true));
+            assertThat("every login within the permits", permitsAtLogin.stream().allMatch(inUse -> inUse == 1), is(true));
+            assertThat("permit released", hostPermits.getInUse("localhost"), is(0));
+        } finally {
+            fakeFtpServer.setCommandHandler(CommandNames.PASS, new PassCommandHandler());
+        }
+    }
+
     private static FtpHarvesterBean getFtpHarvesterBean() {
         FtpHarvesterBean ftpHarvesterBean = new FtpHarvesterBean();
         ftpHarvesterBean.proxyBean = new ProxyBean();
+        ftpHarvesterBean.warmConnections = new WarmConnections(makeMetricRegistry(), Clock.systemUTC());
         return ftpHarvesterBean;
     }
 
@@ -14,6 +14,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.List;
 import java.util.Set;
 
@@ -24,6 +26,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static dk.dbc.saturn.FileHarvest.Status.AWAITING_DOWNLOAD;
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
@@ -363,6 +366,7 @@ public class HTTPHarvesterBeanTest {
         httpHarvesterBean.proxyBean = new ProxyBean("localhost", mockProxy.getPort())
                 .withNonProxyHosts(Set.of("localhost"));
         httpHarvesterBean.RETRY_POLICY = new RetryPolicy();
+        httpHarvesterBean.hostBreakers = new HostBreakers(3, Duration.ofMinutes(1), Duration.ofHours(1), Clock.systemUTC(), () -> 0.5, makeMetricRegistry());
         return httpHarvesterBean;
     }
 
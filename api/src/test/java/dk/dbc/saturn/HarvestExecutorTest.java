@@ -0,0 +1,56 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HarvestExecutorTest {
+
+    @Test
+    public void pooledConcurrency() {
+        HarvestExecutor executor = HarvestExecutor.pooled(2, Executors.defaultThreadFactory());
+        executor.setConcurrency(4);
+        assertThat("grown", executor.getConcurrency(), is(4));
+        executor.setConcurrency(1);
+        assertThat("shrunk", executor.getConcurrency(), is(1));
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 5000)
+    public void tasksBeyondTheConcurrencyAreQueued() throws InterruptedException {
+        HarvestExecutor executor = HarvestExecutor.pooled(2, Executors.defaultThreadFactory());
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            executor.submit(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        awaitCondition(() -> executor.getActiveCount() == 2 && executor.getQueueSize() == 1);
+
+        release.countDown();
+        awaitCondition(() -> executor.getCompletedTaskCount() == 3);
+        assertThat("queue", executor.getQueueSize(), is(0));
+        executor.shutdownNow();
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.HarvestLanes.Lane;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HarvestLanesTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:00:00Z");
+    private final HarvestArrivals harvestArrivals = mock(HarvestArrivals.class);
+    private final HarvestLanes harvestLanes = new HarvestLanes(harvestArrivals, 1, 2, 1000, Lane.BULK, Clock.fixed(NOW, ZoneOffset.UTC));
+
+    @Test
+    public void laneFollowsLargestLatestArrival() {
+        when(harvestArrivals.latestBytes(1, HarvestLanes.HISTORY)).thenReturn(List.of(10L, 999L, 20L));
+        when(harvestArrivals.latestBytes(2, HarvestLanes.HISTORY)).thenReturn(List.of(10L, 1000L));
+
+        assertThat("small", harvestLanes.laneOf(1), is(Lane.SMALL));
+        assertThat("bulk", harvestLanes.laneOf(2), is(Lane.BULK));
+    }
+
+    @Test
+    public void configOfUnknownSizeGoesToItsOwnLane() {
+        when(harvestArrivals.latestBytes(1, HarvestLanes.HISTORY)).thenReturn(List.of());
+        when(harvestArrivals.latestBytes(2, HarvestLanes.HISTORY)).thenThrow(new IllegalStateException("database down"));
+        HarvestLanes unknownIsSmall = new HarvestLanes(harvestArrivals, 1, 2, 1000, Lane.SMALL, Clock.fixed(NOW, ZoneOffset.UTC));
+
+        assertThat("no arrivals", harvestLanes.laneOf(1), is(Lane.BULK));
+        assertThat("not learned", harvestLanes.laneOf(2), is(Lane.BULK));
+        assertThat("configured", unknownIsSmall.laneOf(1), is(Lane.SMALL));
+        assertThat("never interactive", new HarvestLanes(harvestArrivals, 1, 2, 1000, Lane.INTERACTIVE, Clock.fixed(NOW, ZoneOffset.UTC)).laneOf(1), is(Lane.BULK));
+
+        harvestLanes.laneOf(2);
+        verify(harvestArrivals, times(2)).latestBytes(2, HarvestLanes.HISTORY);
+    }
+
+    @Test
+    public void expectedSizeIsRelearnedAfterArrival() {
+        when(harvestArrivals.latestBytes(1, HarvestLanes.HISTORY)).thenReturn(List.of(10L), List.of(5000L));
+
+        assertThat("before", harvestLanes.laneOf(1), is(Lane.SMALL));
+        assertThat("cached", harvestLanes.laneOf(1), is(Lane.SMALL));
+        harvestLanes.arrived(1);
+        assertThat("after", harvestLanes.laneOf(1), is(Lane.BULK));
+        verify(harvestArrivals, times(2)).latestBytes(1, HarvestLanes.HISTORY);
+    }
+
+    @Test
+    public void reservedSlots() {
+        assertThat("interactive", harvestLanes.getReserved(Lane.INTERACTIVE), is(1));
+        assertThat("small", harvestLanes.getReserved(Lane.SMALL), is(2));
+        assertThat("bulk", harvestLanes.getReserved(Lane.BULK), is(0));
+    }
+
+    @Test
+    public void reservationsMustLeaveASlotForBulk() {
+        harvestLanes.checkReservations(4);
+        try {
+            harvestLanes.checkReservations(3);
+            fail("no IllegalArgumentException thrown");
+        } catch (IllegalArgumentException e) {
+            assertThat("message", e.getMessage().startsWith("The 3 harvest slots reserved"), is(true));
+        }
+    }
+}
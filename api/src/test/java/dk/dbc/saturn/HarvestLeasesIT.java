@@ -0,0 +1,45 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HarvestLeasesIT extends AbstractIntegrationTest {
+    private static final Instant SLOT = Instant.parse("2024-03-01T12:00:00Z");
+
+    @Test
+    public void slotIsOnlyClaimedOnce() {
+        assertThat("claimed", HARVEST_LEASES.claim(1, HarvesterType.FTP, SLOT), is(true));
+        assertThat("held", HARVEST_LEASES.claim(1, HarvesterType.FTP, SLOT.plusSeconds(3600)), is(false));
+
+        HARVEST_LEASES.release(1);
+        assertThat("same slot", HARVEST_LEASES.claim(1, HarvesterType.FTP, SLOT), is(false));
+        assertThat("next slot", HARVEST_LEASES.claim(1, HarvesterType.FTP, SLOT.plusSeconds(3600)), is(true));
+    }
+
+    @Test
+    public void expiredLeasesAreRecovered() {
+        HARVEST_LEASES.claim(1, HarvesterType.SFTP, SLOT);
+        HARVEST_LEASES.claim(2, HarvesterType.HTTP, SLOT);
+        entityManager.createNativeQuery("UPDATE harvestlease SET owner = 'crashed', expires = now() - interval '1 minute' WHERE configid = 1")
+                .executeUpdate();
+
+        assertThat("heartbeat", HARVEST_LEASES.heartbeat(Set.of(1, 2)), is(1));
+        List<HarvestLeases.Orphan> orphans = HARVEST_LEASES.recoverExpired(10);
+        assertThat("orphans", orphans.size(), is(1));
+        assertThat("orphan id", orphans.get(0).getConfigId(), is(1));
+        assertThat("orphan type", orphans.get(0).getType(), is(HarvesterType.SFTP));
+        assertThat("orphaned slot can be claimed again", HARVEST_LEASES.claim(1, HarvesterType.SFTP, SLOT), is(true));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static dk.dbc.saturn.TestUtils.getHttpHarvesterConfig;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HarvestPlanTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:00:00Z");
+    private final HarvestPlan harvestPlan = new HarvestPlan(Clock.fixed(NOW, ZoneOffset.UTC), new RunScheduleBean("Europe/Copenhagen"));
+
+    @Test
+    public void pollDue_returnsDueEntriesInOrder() {
+        harvestPlan.plan(1, HarvesterType.FTP, NOW.minusSeconds(10));
+        harvestPlan.plan(2, HarvesterType.HTTP, NOW.minusSeconds(20));
+        harvestPlan.plan(3, HarvesterType.SFTP, NOW.plusSeconds(30));
+
+        List<HarvestPlan.Entry> due = harvestPlan.pollDue(NOW);
+
+        assertThat("due ids", due.stream().map(HarvestPlan.Entry::getConfigId).collect(Collectors.toList()), is(List.of(2, 1)));
+        assertThat("remaining", harvestPlan.size(), is(1));
+        assertThat("next due", harvestPlan.nextDue(), is(Optional.of(NOW.plusSeconds(30))));
+    }
+
+    @Test
+    public void plan_replacesEarlierPlan() {
+        harvestPlan.plan(1, HarvesterType.FTP, NOW.minusSeconds(10));
+        harvestPlan.plan(1, HarvesterType.FTP, NOW.plusSeconds(60));
+
+        assertThat("nothing due", harvestPlan.pollDue(NOW).isEmpty(), is(true));
+        assertThat("size", harvestPlan.size(), is(1));
+        assertThat("due later", harvestPlan.pollDue(NOW.plusSeconds(60)).size(), is(1));
+    }
+
+    @Test
+    public void removeAndRetain() {
+        harvestPlan.plan(1, HarvesterType.FTP, NOW);
+        harvestPlan.plan(2, HarvesterType.FTP, NOW);
+        harvestPlan.plan(3, HarvesterType.FTP, NOW);
+        harvestPlan.remove(1);
+        harvestPlan.retainAll(Set.of(1, 2));
+
+        List<HarvestPlan.Entry> due = harvestPlan.pollDue(NOW);
+        assertThat("due ids", due.stream().map(HarvestPlan.Entry::getConfigId).collect(Collectors.toList()), is(List.of(2)));
+    }
+
+    @Test
+    public void replan_usesScheduleAndLastHarvested() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSchedule("0 * * * *");
+        config.setLastHarvested(TestUtils.getDate("2024-03-01T13:30:00"));
+        harvestPlan.replan(config);
+
+        assertThat("next full hour", harvestPlan.nextDue(), is(Optional.of(Instant.parse("2024-03-01T13:00:00Z"))));
+
+        config.setEnabled(false);
+        harvestPlan.replan(config);
+        assertThat("disabled config is removed", harvestPlan.size(), is(0));
+    }
+
+    @Test
+    public void replan_invalidSchedule() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSchedule("!!");
+        harvestPlan.replan(config);
+
+        assertThat("config is not planned", harvestPlan.size(), is(0));
+    }
+
+    @Test(timeout = 5000)
+    public void awaitDue_returnsEmptyAfterMaxWait() throws InterruptedException {
+        harvestPlan.plan(1, HarvesterType.FTP, NOW.plusSeconds(3600));
+
+        assertThat("nothing due", harvestPlan.awaitDue(Duration.ofMillis(50)).isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.Set;
+
+import static dk.dbc.saturn.TestUtils.getHttpHarvesterConfig;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HarvestedFilesIT extends AbstractIntegrationTest {
+    private static final Instant RUN = Instant.parse("2024-03-01T12:00:00.123456789Z");
+
+    @Test
+    public void sentFilesMoveSeqnoAlong() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSeqno(5);
+        entityManager.persist(config);
+        entityManager.flush();
+
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), RUN, new MockFileHarvest("a", "a", 7), 42, 7);
+        assertThat("seqno", seqnoOf(config), is(7));
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), RUN, new MockFileHarvest("b", "b", 6), 43, 6);
+        assertThat("seqno never goes back", seqnoOf(config), is(7));
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), RUN, new MockFileHarvest("d", "d", 9), 44, null);
+        assertThat("seqno held back by a file not sent yet", seqnoOf(config), is(7));
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), RUN, new MockFileHarvest("c", "c", 8), 45, 9);
+        assertThat("seqno moves past the files sent out of order", seqnoOf(config), is(9));
+
+        assertThat("sent", HARVESTED_FILES.sent(config.getId(), RUN), is(Set.of("a", "b", "c", "d")));
+        assertThat("other run", HARVESTED_FILES.sent(config.getId(), RUN.plusSeconds(1)), is(Set.of()));
+    }
+
+    @Test
+    public void earlierRunsAreForgotten() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        entityManager.persist(config);
+        entityManager.flush();
+        Instant next = RUN.plusSeconds(3600);
+
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), RUN, new MockFileHarvest("a", "a", 1), 42, 1);
+        HARVESTED_FILES.record(HarvesterType.HTTP, config.getId(), next, new MockFileHarvest("b", "b", 2), 43, 2);
+
+        assertThat("earlier run", HARVESTED_FILES.sent(config.getId(), RUN), is(Set.of()));
+        assertThat("latest run", HARVESTED_FILES.sent(config.getId(), next), is(Set.of("b")));
+    }
+
+    private static Integer seqnoOf(HttpHarvesterConfig config) {
+        return HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.HTTP, config.getId()).getSeqno();
+    }
+}
@@ -5,19 +5,30 @@
 
 package dk.dbc.saturn;
 
+import dk.dbc.saturn.api.HarvesterType;
 import dk.dbc.saturn.entity.CustomHttpHeader;
 import dk.dbc.saturn.entity.FtpHarvesterConfig;
+import dk.dbc.saturn.entity.HarvesterSchedule;
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import dk.dbc.saturn.entity.MisfirePolicy;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
 import org.junit.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.time.Instant;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static dk.dbc.saturn.TestUtils.getDate;
 import static dk.dbc.saturn.TestUtils.getHttpHarvesterConfig;
@@ -302,6 +313,91 @@ public class HarvesterConfigEntityIT extends AbstractIntegrationTest {
         assertThat("list size after delete", listAfterDelete.size(), is(0));
     }
 
+    @Test
+    public void test_listSchedules() throws ParseException {
+        FtpHarvesterConfig ftpHarvesterConfig = getFtpHarvesterConfig();
+        HttpHarvesterConfig httpHarvesterConfig = getHttpHarvesterConfig();
+        httpHarvesterConfig.setSeqno(42);
+        SFtpHarvesterConfig disabled = getSFtpHarvesterConfig();
+        disabled.setEnabled(false);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.persist(ftpHarvesterConfig);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.persist(httpHarvesterConfig);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.persist(disabled);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+
+        List<HarvesterSchedule> schedules = HARVESTER_CONFIG_REPOSITORY.listSchedules();
+
+        assertThat("enabled configs", schedules.size(), is(2));
+        assertThat("ftp", schedules, hasItem(new HarvesterSchedule(ftpHarvesterConfig.getId(), HarvesterType.FTP,
+                ftpHarvesterConfig.getSchedule(), true, ftpHarvesterConfig.getLastHarvested(), null,
+                MisfirePolicy.RUN_ONCE, null, null, ftpHarvesterConfig.getAgency(), null)));
+        assertThat("http", HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.HTTP, httpHarvesterConfig.getId()).getSeqno(), is(42));
+        assertThat("disabled", HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.SFTP, disabled.getId()).isEnabled(), is(false));
+        assertThat("wrong type", HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.FTP, httpHarvesterConfig.getId()), is((HarvesterSchedule) null));
+    }
+
+    @Test
+    public void test_saveHarvestState() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSeqno(42);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.persist(config);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+        // harvests work on configs outside of any transaction
+        HARVESTER_CONFIG_REPOSITORY.entityManager.detach(config);
+        Instant harvested = Instant.parse("2024-03-01T12:00:00Z");
+        config.setLastHarvested(Date.from(harvested));
+        config.setSeqno(43);
+
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().begin();
+        HARVESTER_CONFIG_REPOSITORY.saveHarvestState(config, false);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+        HarvesterSchedule polled = HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.HTTP, config.getId());
+        assertThat("polled lastHarvested", polled.getLastHarvested().toInstant(), is(harvested));
+        assertThat("polled seqno", polled.getSeqno(), is(42));
+
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().begin();
+        HARVESTER_CONFIG_REPOSITORY.saveHarvestState(config, true);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+        assertThat("harvested seqno", HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.HTTP, config.getId()).getSeqno(), is(43));
+
+        Instant caughtUpUntil = Instant.parse("2024-03-01T09:00:00Z");
+        config.setCaughtUpUntil(Date.from(caughtUpUntil));
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().begin();
+        HARVESTER_CONFIG_REPOSITORY.saveHarvestState(config, true);
+        HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+        assertThat("caught up until", HARVESTER_CONFIG_REPOSITORY.getSchedule(HarvesterType.HTTP, config.getId()).getCaughtUpUntil().toInstant(), is(caughtUpUntil));
+    }
+
+    @Test
+    public void test_changeNotifications() throws ParseException, SQLException {
+        try (Connection connection = SATURN_DB_CONTAINER.datasource().getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + HarvesterConfigIndex.CHANNEL);
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+
+            FtpHarvesterConfig config = getFtpHarvesterConfig();
+            HARVESTER_CONFIG_REPOSITORY.entityManager.persist(config);
+            HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+            assertThat("insert", payloads(pgConnection), is(List.of("FTP:" + config.getId())));
+
+            HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().begin();
+            config.setName("Not a scheduling change");
+            HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+            assertThat("name change", payloads(pgConnection), is(List.of()));
+
+            HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().begin();
+            config.setSchedule("2 * * * *");
+            HARVESTER_CONFIG_REPOSITORY.entityManager.getTransaction().commit();
+            assertThat("schedule change", payloads(pgConnection), is(List.of("FTP:" + config.getId())));
+        }
+    }
+
+    private static List<String> payloads(PGConnection connection) throws SQLException {
+        PGNotification[] notifications = connection.getNotifications(1000);
+        if (notifications == null) return List.of();
+        return Stream.of(notifications).map(PGNotification::getParameter).collect(Collectors.toList());
+    }
+
     @Test
     public void test_getHarvesterConfigType() throws ParseException {
         FtpHarvesterConfig ftpHarvesterConfig = getFtpHarvesterConfig();
@@ -0,0 +1,115 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HarvesterSchedule;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HarvesterConfigIndexTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:30:00Z");
+    private final HarvesterConfigRepository harvesterConfigRepository = mock(HarvesterConfigRepository.class);
+    private final RunScheduleBean runScheduleBean = new RunScheduleBean("Europe/Copenhagen");
+    private final HarvestPlan harvestPlan = new HarvestPlan(Clock.fixed(NOW, ZoneOffset.UTC), runScheduleBean);
+    private final HarvesterConfigIndex configIndex = new HarvesterConfigIndex(harvesterConfigRepository, harvestPlan, runScheduleBean, makeMetricRegistry());
+
+    @Test
+    public void resyncLoadsEnabledConfigs() {
+        harvestPlan.plan(3, HarvesterType.HTTP, NOW);
+        when(harvesterConfigRepository.listSchedules()).thenReturn(List.of(schedule(1, HarvesterType.FTP, true), schedule(2, HarvesterType.SFTP, true)));
+
+        configIndex.resync();
+
+        assertThat("index size", configIndex.size(), is(2));
+        assertThat("plan size", harvestPlan.size(), is(2));
+        assertThat("next due", harvestPlan.nextDue(), is(Optional.of(Instant.parse("2024-03-01T13:00:00Z"))));
+    }
+
+    @Test
+    public void changedConfigIsReplanned() {
+        when(harvesterConfigRepository.listSchedules()).thenReturn(List.of(schedule(1, HarvesterType.FTP, true)));
+        configIndex.resync();
+        when(harvesterConfigRepository.getSchedule(HarvesterType.HTTP, 2)).thenReturn(schedule(2, HarvesterType.HTTP, true));
+
+        configIndex.changed("HTTP:2");
+
+        assertThat("index size", configIndex.size(), is(2));
+        assertThat("plan size", harvestPlan.size(), is(2));
+    }
+
+    @Test
+    public void disabledOrDeletedConfigIsRemoved() {
+        when(harvesterConfigRepository.listSchedules()).thenReturn(List.of(schedule(1, HarvesterType.FTP, true), schedule(2, HarvesterType.SFTP, true)));
+        configIndex.resync();
+        when(harvesterConfigRepository.getSchedule(HarvesterType.FTP, 1)).thenReturn(schedule(1, HarvesterType.FTP, false));
+        when(harvesterConfigRepository.getSchedule(HarvesterType.SFTP, 2)).thenReturn(null);
+
+        configIndex.changed("FTP:1");
+        configIndex.changed("SFTP:2");
+
+        assertThat("index size", configIndex.size(), is(0));
+        assertThat("plan size", harvestPlan.size(), is(0));
+    }
+
+    @Test(timeout = 10000)
+    public void changeDuringResyncIsNotUndone() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        when(harvesterConfigRepository.listSchedules()).thenAnswer(invocation -> {
+            reading.countDown();
+            read.await();
+            return List.of(schedule(1, HarvesterType.FTP, true));
+        });
+        when(harvesterConfigRepository.getSchedule(HarvesterType.FTP, 1)).thenReturn(schedule(1, HarvesterType.FTP, false));
+        CompletableFuture<Void> resync = CompletableFuture.runAsync(configIndex::resync);
+        reading.await();
+
+        CompletableFuture<Void> changed = CompletableFuture.runAsync(() -> configIndex.changed("FTP:1"));
+        Thread.sleep(100);
+        read.countDown();
+        resync.get();
+        changed.get();
+
+        assertThat("index size", configIndex.size(), is(0));
+        assertThat("plan size", harvestPlan.size(), is(0));
+    }
+
+    @Test
+    public void unknownNotificationIsIgnored() {
+        configIndex.changed("GOPHER:1");
+        configIndex.changed("garbage");
+
+        assertThat("index size", configIndex.size(), is(0));
+    }
+
+    @Test
+    public void lookupFallsThroughToDatabaseWhenNotListening() {
+        HarvesterSchedule schedule = schedule(1, HarvesterType.FTP, true);
+        when(harvesterConfigRepository.getSchedule(HarvesterType.FTP, 1)).thenReturn(schedule);
+
+        assertThat("listening", configIndex.isListening(), is(false));
+        assertThat("schedule", configIndex.getSchedule(HarvesterType.FTP, 1), is(schedule));
+    }
+
+    private static HarvesterSchedule schedule(int id, HarvesterType type, boolean enabled) {
+        return new HarvesterSchedule(id, type, "0 * * * *", enabled, Date.from(NOW.minusSeconds(60)), null);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HostBreakersTest {
+    private static final String HOST = "ftp.example.com";
+    private final TestClock clock = new TestClock(Instant.parse("2024-03-01T12:00:00Z"));
+    // no jitter, the backoff is exact
+    private final HostBreakers hostBreakers = new HostBreakers(2, Duration.ofMinutes(1), Duration.ofMinutes(3), clock, () -> 0.5, makeMetricRegistry());
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        hostBreakers.failure(HOST);
+        assertThat("one failure", hostBreakers.getState(HOST), is(HostBreakers.State.CLOSED));
+        hostBreakers.failure("FTP.example.com");
+        assertThat("two failures", hostBreakers.getState(HOST), is(HostBreakers.State.OPEN));
+        assertThat("rejected", hostBreakers.allowRequest(HOST), is(false));
+        assertThat("retry after", hostBreakers.retryAfter(HOST), is(Duration.ofMinutes(1)));
+        assertThat("other host", hostBreakers.allowRequest("sftp.example.com"), is(true));
+    }
+
+    @Test
+    public void halfOpenLetsSingleProbeThrough() {
+        hostBreakers.failure(HOST);
+        hostBreakers.failure(HOST);
+        clock.advance(Duration.ofMinutes(1));
+
+        assertThat("half open", hostBreakers.getState(HOST), is(HostBreakers.State.HALF_OPEN));
+        assertThat("probe", hostBreakers.allowRequest(HOST), is(true));
+        assertThat("while probing", hostBreakers.allowRequest(HOST), is(false));
+
+        hostBreakers.success(HOST);
+        assertThat("closed", hostBreakers.getState(HOST), is(HostBreakers.State.CLOSED));
+        assertThat("allowed", hostBreakers.allowRequest(HOST), is(true));
+    }
+
+    @Test
+    public void backoffDoublesUpToMaximum() {
+        hostBreakers.failure(HOST);
+        hostBreakers.failure(HOST);
+        for (Duration expected : new Duration[] {Duration.ofMinutes(2), Duration.ofMinutes(3), Duration.ofMinutes(3)}) {
+            clock.advance(hostBreakers.retryAfter(HOST));
+            assertThat("probe", hostBreakers.allowRequest(HOST), is(true));
+            hostBreakers.failure(HOST);
+            assertThat("backoff", hostBreakers.retryAfter(HOST), is(expected));
+        }
+    }
+
+    @Test
+    public void failuresWhileOpenDoNotProlongIt() {
+        hostBreakers.failure(HOST);
+        hostBreakers.failure(HOST);
+        clock.advance(Duration.ofSeconds(30));
+        hostBreakers.failure(HOST);
+
+        assertThat("retry after", hostBreakers.retryAfter(HOST), is(Duration.ofSeconds(30)));
+    }
+
+    @Test
+    public void noHostIsNeverBroken() {
+        hostBreakers.failure(null);
+        hostBreakers.failure(null);
+        assertThat("allowed", hostBreakers.allowRequest(null), is(true));
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now;
+
+        private TestClock(Instant now) {
+            this.now = now;
+        }
+
+        private void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
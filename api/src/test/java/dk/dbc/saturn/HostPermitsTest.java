@@ -0,0 +1,82 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HostPermitsTest {
+    private final MetricRegistry metricRegistry = makeMetricRegistry();
+
+    @Test
+    public void configuredLimits() {
+        HostPermits hostPermits = new HostPermits();
+        hostPermits.defaultLimit = 4;
+        hostPermits.hostLimits = Set.of("ftp.example.com=1", " SFTP.example.com = 2", "broken");
+        hostPermits.init();
+
+        assertThat("ftp", hostPermits.getLimit("ftp.example.com"), is(1));
+        assertThat("sftp", hostPermits.getLimit("sftp.example.com"), is(2));
+        assertThat("default", hostPermits.getLimit("www.example.com"), is(4));
+    }
+
+    @Test
+    public void tryAcquireDoesNotWait() {
+        HostPermits hostPermits = new HostPermits(1, Map.of(), metricRegistry);
+        HostPermits.Permit permit = hostPermits.tryAcquire("ftp.example.com");
+
+        assertThat("taken", permit != null, is(true));
+        assertThat("none free", hostPermits.tryAcquire("ftp.example.com") == null, is(true));
+        permit.close();
+        permit.close();
+        assertThat("released once", hostPermits.getInUse("ftp.example.com"), is(0));
+        assertThat("free again", hostPermits.tryAcquire("ftp.example.com") != null, is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void acquireWaitsForRelease() throws Exception {
+        HostPermits hostPermits = new HostPermits(4, Map.of("ftp.example.com", 1), metricRegistry);
+        HostPermits.Permit permit = hostPermits.acquire("FTP.example.com");
+        assertThat("in use", hostPermits.getInUse("ftp.example.com"), is(1));
+
+        CompletableFuture<HostPermits.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return hostPermits.acquire("ftp.example.com");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            waiting.get(100, TimeUnit.MILLISECONDS);
+            fail("second permit was granted while the first was held");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        permit.close();
+        waiting.get().close();
+        assertThat("released", hostPermits.getInUse("ftp.example.com"), is(0));
+    }
+
+    @Test
+    public void noHostNeedsNoPermit() throws InterruptedException {
+        HostPermits hostPermits = new HostPermits(1, Map.of(), metricRegistry);
+        try (HostPermits.Permit first = hostPermits.acquire(null);
+             HostPermits.Permit second = hostPermits.acquire(null)) {
+            assertThat("nothing in use", hostPermits.getInUse("localhost"), is(0));
+        }
+    }
+}
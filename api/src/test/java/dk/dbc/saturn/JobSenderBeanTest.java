@@ -14,26 +14,50 @@ import dk.dbc.dataio.filestore.service.connector.FileStoreServiceConnectorExcept
 import dk.dbc.dataio.jobstore.types.JobInfoSnapshot;
 import dk.dbc.dataio.jobstore.types.JobInputStream;
 import dk.dbc.saturn.job.JobSenderBean;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class JobSenderBeanTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
     ProgressTrackerBean progressTracker = new ProgressTrackerBean();
     FileStoreServiceConnector fileStore = mock(FileStoreServiceConnector.class);
     JobStoreServiceConnector jobstore = mock(JobStoreServiceConnector.class);
+    MetricRegistry metricRegistry = makeMetricRegistry();
 
     @Test
     public void send() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
@@ -62,9 +86,472 @@ public class JobSenderBeanTest {
         assertThat("Two files was transferred", current, is(2));
     }
 
+    @Test
+    public void sendsFilesOfAnAgency() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        List<String> uploaded = new ArrayList<>();
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            uploaded.add(new String(invocation.<InputStream>getArgument(0).readAllBytes()));
+            return "abc";
+        });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        progressTracker.add(0);
+
+        jobSenderBean.send(Set.of(new MockFileHarvest("sponge", "squarepants", 1)), "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0,
+                null, "870970", JobSenderBean.Checkpoint.NONE);
+
+        assertThat("metered file sent", uploaded, is(List.of("squarepants")));
+    }
+
+    @Test
+    public void checkpointFollowsSentFiles() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42, 43);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        when(fileStore.addFile(any(InputStream.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<InputStream>getArgument(0).readNBytes(3);
+                    throw new FileStoreServiceConnectorException("connection reset");
+                })
+                .thenReturn("abc");
+        List<String> sent = new ArrayList<>();
+        AtomicLong retransferred = new AtomicLong();
+        progressTracker.add(0);
+        Set<FileHarvest> files = new LinkedHashSet<>(List.of(new MockFileHarvest("sponge", "squarepants", 1), new MockFileHarvest("bob", "bob", 2)));
+
+        jobSenderBean.send(files, "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, null, null, new JobSenderBean.Checkpoint() {
+            @Override
+            public void jobCreated(FileHarvest fileHarvest, int jobId, Integer seqno) {
+                sent.add(fileHarvest.getFilename() + ":" + jobId);
+            }
+
+            @Override
+            public void retransferred(long bytes) {
+                retransferred.addAndGet(bytes);
+            }
+        });
+
+        assertThat("sent in order", sent, is(List.of("sponge:42", "bob:43")));
+        assertThat("retransferred", retransferred.get(), is(3L));
+    }
+
+    @Test
+    public void sendsFilesInParallelAndCreatesJobsInOrder() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        CountDownLatch othersSent = new CountDownLatch(2);
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            String content = new String(invocation.<InputStream>getArgument(0).readAllBytes());
+            if (!content.equals("one")) {
+                othersSent.countDown();
+            } else if (!othersSent.await(10, TimeUnit.SECONDS)) {
+                throw new FileStoreServiceConnectorException("files were not sent in parallel");
+            }
+            return content;
+        });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        ArgumentCaptor<JobInputStream> captor = ArgumentCaptor.forClass(JobInputStream.class);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        List<String> sent = new ArrayList<>();
+        progressTracker.add(0);
+        Set<FileHarvest> files = new LinkedHashSet<>(List.of(concurrent("one", 1), concurrent("two", 2), concurrent("three", 3)));
+
+        jobSenderBean.send(files, "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, null, null, 3,
+                (fileHarvest, jobId, seqno) -> sent.add(fileHarvest.getFilename() + ":" + seqno));
+
+        verify(jobstore, times(3)).addJob(captor.capture());
+        List<String> dataFiles = captor.getAllValues().stream().map(JobInputStream::getJobSpecification)
+                .map(JobSpecification::getAncestry).map(JobSpecification.Ancestry::getDatafile).collect(Collectors.toList());
+        assertThat("jobs in order although the first file was uploaded last", dataFiles, is(List.of("one", "two", "three")));
+        assertThat("sent in order", sent, is(List.of("one:1", "two:2", "three:3")));
+        assertThat("progress", progressTracker.get(0).getCurrentFiles(), is(3));
+    }
+
+    @Test
+    public void filesAfterFailedFileGetNoJobs() throws FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            String content = new String(invocation.<InputStream>getArgument(0).readAllBytes());
+            if (content.equals("two")) throw new FileStoreServiceConnectorException("connection reset");
+            return content;
+        });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        List<String> sent = new ArrayList<>();
+        progressTracker.add(0);
+        Set<FileHarvest> files = new LinkedHashSet<>(List.of(concurrent("one", 1), concurrent("two", 2), concurrent("three", 3)));
+
+        try {
+            jobSenderBean.send(files, "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, null, null, 3,
+                    (fileHarvest, jobId, seqno) -> sent.add(fileHarvest.getFilename()));
+            fail("Expected the harvest to fail");
+        } catch (HarvestException e) {
+            // expected
+        }
+
+        assertThat("only the file before the failed file is sent", sent, is(List.of("one")));
+        verify(jobstore, times(1)).addJob(any(JobInputStream.class));
+        verify(fileStore).deleteFile("three");
+    }
+
+    @Test
+    public void abortCancelsFilesInFlight() throws FileStoreServiceConnectorException, JobStoreServiceConnectorException, InterruptedException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return "abc";
+        });
+        ProgressTrackerBean.Progress progress = progressTracker.add(0);
+        Thread aborter = new Thread(() -> {
+            try {
+                started.await();
+                progress.abort();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        aborter.start();
+        Set<FileHarvest> files = new LinkedHashSet<>(List.of(concurrent("one", 1), concurrent("two", 2), concurrent("three", 3)));
+
+        try {
+            jobSenderBean.send(files, "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, null, null, 2, JobSenderBean.Checkpoint.NONE);
+        } catch (HarvestException e) {
+            // interrupted by the abort
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertThat("files in flight interrupted", interrupted.await(10, TimeUnit.SECONDS), is(true));
+        verify(fileStore, times(2)).addFile(any(InputStream.class));
+        verify(jobstore, never()).addJob(any(JobInputStream.class));
+    }
+
+    @Test(timeout = 10000)
+    public void abortClosesSourcesAndWaitsForUploadsToRemoveTheirFiles() throws FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch released = new CountDownLatch(1);
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            started.countDown();
+            String content = new String(invocation.<InputStream>getArgument(0).readAllBytes());
+            awaitUninterruptibly(released);
+            return content;
+        });
+        ProgressTrackerBean.Progress progress = progressTracker.add(0);
+        BlockingInputStream source = new BlockingInputStream();
+        FileHarvest blocked = new MockFileHarvest("one", "one", 1) {
+            @Override
+            public boolean isConcurrent() {
+                return true;
+            }
+
+            @Override
+            public ByteCountingInputStream getContent() {
+                return new ByteCountingInputStream(source);
+            }
+        };
+        new Thread(() -> {
+            awaitUninterruptibly(started);
+            progress.abort();
+            released.countDown();
+        }).start();
+        Set<FileHarvest> files = new LinkedHashSet<>(List.of(blocked, concurrent("two", 2)));
+
+        try {
+            jobSenderBean.send(files, "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, null, null, 2, JobSenderBean.Checkpoint.NONE);
+        } catch (HarvestException e) {
+            // given up by the abort
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertThat("blocked source closed", source.closed.getCount(), is(0L));
+        verify(fileStore).deleteFile("two");
+        verify(jobstore, never()).addJob(any(JobInputStream.class));
+    }
+
+    @Test(timeout = 10000)
+    public void connectionsToTheHostAreLimited() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        HostPermits hostPermits = new HostPermits(1, Map.of(), metricRegistry);
+        JobSenderBean jobSenderBean = new JobSenderBean(progressTracker, fileStore, new JobStoreServiceConnectorBean(jobstore),
+                hostPermits, new Spool(), metricRegistry, 1);
+        AtomicInteger inUse = new AtomicInteger();
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            inUse.set(Math.max(inUse.get(), hostPermits.getInUse("ftp.example.com")));
+            invocation.<InputStream>getArgument(0).readAllBytes();
+            return "abc";
+        });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        progressTracker.add(0);
+
+        jobSenderBean.send(getFileHarvests("sponge", "bob"), "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, "ftp.example.com");
+
+        assertThat("permit held while sending", inUse.get(), is(1));
+        assertThat("permits released", hostPermits.getInUse("ftp.example.com"), is(0));
+        verify(jobstore, times(2)).addJob(any(JobInputStream.class));
+    }
+
+    @Test(timeout = 10000)
+    public void readAheadStopsBeforeThePermitIsReleased() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        HostPermits hostPermits = new HostPermits(1, Map.of(), metricRegistry);
+        JobSenderBean jobSenderBean = new JobSenderBean(progressTracker, fileStore, new JobStoreServiceConnectorBean(jobstore),
+                hostPermits, new Spool(), 2, metricRegistry, 1);
+        List<Integer> permitsAfterReads = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger closes = new AtomicInteger();
+        InputStream source = new InputStream() {
+            private boolean first = true;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    if (first) {
+                        first = false;
+                        System.arraycopy("squarepants".getBytes(), 0, b, off, 11);
+                        return 11;
+                    }
+                    // a slow source, which is still being read when the upload is done
+                    Thread.sleep(200);
+                    return -1;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted");
+                } finally {
+                    permitsAfterReads.add(hostPermits.getInUse("ftp.example.com"));
+                }
+            }
+
+            @Override
+            public void close() {
+                closes.incrementAndGet();
+            }
+        };
+        FileHarvest fileHarvest = new MockFileHarvest("sponge", "squarepants", 1) {
+            @Override
+            public ByteCountingInputStream getContent() {
+                return new ByteCountingInputStream(source);
+            }
+        };
+        when(fileStore.addFile(any(InputStream.class))).thenAnswer(invocation -> {
+            invocation.<InputStream>getArgument(0).readNBytes(3);
+            return "abc";
+        });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        progressTracker.add(0);
+
+        jobSenderBean.send(Set.of(fileHarvest), "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, "ftp.example.com");
+
+        assertThat("source read", permitsAfterReads.isEmpty(), is(false));
+        assertThat("every read done while the permit was held", permitsAfterReads.stream().allMatch(inUse -> inUse == 1), is(true));
+        assertThat("permit released", hostPermits.getInUse("ftp.example.com"), is(0));
+        assertThat("source closed once", closes.get(), is(1));
+    }
+
+    @Test
+    public void failingSourceOpensTheCircuitOfItsHost() {
+        JobSenderBean jobSenderBean = new JobSenderBean(progressTracker, fileStore, new JobStoreServiceConnectorBean(jobstore), metricRegistry, 5);
+        AtomicInteger attempts = new AtomicInteger();
+        FileHarvest fileHarvest = new MockFileHarvest("sponge", "squarepants", 1) {
+            @Override
+            public ByteCountingInputStream getContent() {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("connection refused");
+            }
+        };
+        progressTracker.add(0);
+
+        try {
+            jobSenderBean.send(Set.of(fileHarvest), "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0, "ftp.example.com");
+            fail("Expected the harvest to fail");
+        } catch (HarvestException e) {
+            // expected
+        }
+
+        assertThat("retries stopped once the circuit opened", attempts.get(), is(3));
+    }
+
+    @Test
+    public void uploadRetryIsReadFromSpool() throws HarvestException, FileStoreServiceConnectorException, JobStoreServiceConnectorException {
+        Spool spool = new Spool(folder.getRoot().toPath(), 100 * 1024 * 1024, metricRegistry);
+        JobSenderBean jobSenderBean = new JobSenderBean(progressTracker, fileStore, new JobStoreServiceConnectorBean(jobstore),
+                new HostPermits(1, Map.of(), metricRegistry), spool, metricRegistry, 1);
+        List<String> uploaded = new ArrayList<>();
+        when(fileStore.addFile(any(InputStream.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<InputStream>getArgument(0).readNBytes(3);
+                    throw new FileStoreServiceConnectorException("connection reset");
+                })
+                .thenAnswer(invocation -> {
+                    uploaded.add(new String(invocation.<InputStream>getArgument(0).readAllBytes()));
+                    return "abc";
+                });
+        JobInfoSnapshot jobInfoSnapshot = mock(JobInfoSnapshot.class);
+        when(jobInfoSnapshot.getJobId()).thenReturn(42);
+        when(jobstore.addJob(any(JobInputStream.class))).thenReturn(jobInfoSnapshot);
+        AtomicInteger downloads = new AtomicInteger();
+        FileHarvest fileHarvest = new MockFileHarvest("sponge", "squarepants", 1) {
+            @Override
+            public ByteCountingInputStream getContent() {
+                downloads.incrementAndGet();
+                return super.getContent();
+            }
+        };
+        progressTracker.add(0);
+
+        jobSenderBean.send(Set.of(fileHarvest), "transfile", "b=ticklerepo,c=utf8,t=iso,o=viaf,m=any@dbc.dk", 0);
+
+        assertThat("downloaded once", downloads.get(), is(1));
+        assertThat("uploaded from spool", uploaded, is(List.of("squarepants")));
+        assertThat("spool emptied", spool.getUsed(), is(0L));
+        assertThat("spool file deleted", folder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void rejectedResumeStartsOver() throws Exception {
+        JobSenderBean jobSenderBean = new JobSenderBean(progressTracker, fileStore, new JobStoreServiceConnectorBean(jobstore), metricRegistry, 2);
+        Map<String, StringBuilder> stored = new HashMap<>();
+        when(fileStore.addFile(any(InputStream.class))).thenReturn("first", "second");
+        when(fileStore.getByteSize(anyString())).thenAnswer(invocation -> (long) stored.computeIfAbsent(invocation.getArgument(0), id -> new StringBuilder()).length());
+        AtomicInteger appends = new AtomicInteger();
+        doAnswer(invocation -> {
+            StringBuilder content = stored.computeIfAbsent(invocation.getArgument(0), id -> new StringBuilder());
+            InputStream is = invocation.getArgument(1);
+            if (appends.getAndIncrement() == 0) {
+                content.append(new String(is.readNBytes(3)));
+                throw new FileStoreServiceConnectorException("connection reset");
+            }
+            content.append(new String(is.readAllBytes()));
+            return null;
+        }).when(fileStore).appendStream(anyString(), any(InputStream.class));
+        List<Long> retransferred = new ArrayList<>();
+
+        String fileStoreId = jobSenderBean.sendToFileStoreResume(new RestRejectingFileHarvest("sponge", "squarepants"), null, null, new JobSenderBean.Checkpoint() {
+            @Override
+            public void jobCreated(FileHarvest fileHarvest, int jobId, Integer seqno) {
+            }
+
+            @Override
+            public void retransferred(long bytes) {
+                retransferred.add(bytes);
+            }
+        });
+
+        assertThat("file store id", fileStoreId, is("second"));
+        assertThat("sent from the start", stored.get("second").toString(), is("squarepants"));
+        assertThat("sent again from the start", retransferred, is(List.of(3L)));
+        verify(fileStore).deleteFile("first");
+    }
+
+    @Test
+    public void resumableFileIsRemovedWhenItCannotBeSent() throws Exception {
+        JobSenderBean jobSenderBean = makeJobSenderBean();
+        when(fileStore.addFile(any(InputStream.class))).thenReturn("abc");
+        when(fileStore.getByteSize("abc")).thenReturn(0L);
+        doThrow(new FileStoreServiceConnectorException("connection reset")).when(fileStore).appendStream(anyString(), any(InputStream.class));
+
+        try {
+            jobSenderBean.sendToFileStoreResume(new RestRejectingFileHarvest("sponge", "squarepants"), null, null, JobSenderBean.Checkpoint.NONE);
+            fail("no exception");
+        } catch (RuntimeException e) {
+            // the transfer failed
+        }
+
+        verify(fileStore).deleteFile("abc");
+    }
+
+    /**
+     * A file whose source claims to resume, but rejects the resume point when asked
+     */
+    private static class RestRejectingFileHarvest extends MockFileHarvest {
+        private boolean resumable = true;
+        private long resumePoint = 0;
+
+        private RestRejectingFileHarvest(String filename, String content) {
+            super(filename, content, 1);
+        }
+
+        @Override
+        public void setResumePoint(long resumePoint) {
+            this.resumePoint = resumePoint;
+        }
+
+        @Override
+        public boolean isResumable() {
+            return resumable;
+        }
+
+        @Override
+        public ByteCountingInputStream getContent() {
+            if (resumePoint > 0) {
+                resumable = false;
+                throw new IllegalStateException("REST not implemented");
+            }
+            return super.getContent();
+        }
+    }
+
+    /**
+     * A source which neither delivers nor notices being interrupted, until it is closed
+     */
+    private static class BlockingInputStream extends InputStream {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public int read() throws IOException {
+            awaitUninterruptibly(closed);
+            throw new IOException("stream closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static FileHarvest concurrent(String name, int seqno) {
+        return new MockFileHarvest(name, name, seqno) {
+            @Override
+            public boolean isConcurrent() {
+                return true;
+            }
+        };
+    }
+
     private JobSenderBean makeJobSenderBean() {
         JobStoreServiceConnectorBean bean = new JobStoreServiceConnectorBean(jobstore);
-        return new JobSenderBean(progressTracker, fileStore, bean, 1);
+        return new JobSenderBean(progressTracker, fileStore, bean, metricRegistry, 1);
     }
 
     private Set<FileHarvest> getFileHarvests(String... contentList) {
@@ -0,0 +1,207 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HarvesterSchedule;
+import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import dk.dbc.saturn.entity.MisfirePolicy;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static dk.dbc.saturn.TestUtils.getHttpHarvesterConfig;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RunScheduleBeanTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:30:00Z");
+    private final RunScheduleBean runScheduleBean = new RunScheduleBean("Europe/Copenhagen");
+
+    @Test
+    public void scheduleIsCachedPerConfig() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSchedule("0 * * * *");
+        Instant after = Instant.parse("2024-03-01T12:30:00Z");
+
+        assertThat("hourly", runScheduleBean.nextFireTimeAfter(config, after), is(Instant.parse("2024-03-01T13:00:00Z")));
+        assertThat("hourly again", runScheduleBean.nextFireTimeAfter(config, after), is(Instant.parse("2024-03-01T13:00:00Z")));
+        assertThat("cache size", runScheduleBean.cacheSize(), is(1));
+
+        config.setSchedule("45 * * * *");
+        assertThat("changed expression is recompiled", runScheduleBean.nextFireTimeAfter(config, after), is(Instant.parse("2024-03-01T12:45:00Z")));
+        assertThat("cache size", runScheduleBean.cacheSize(), is(1));
+
+        runScheduleBean.evict(config.getId());
+        assertThat("evicted", runScheduleBean.cacheSize(), is(0));
+    }
+
+    @Test
+    public void dueAt() throws ParseException {
+        HttpHarvesterConfig due = getHttpHarvesterConfig();
+        HttpHarvesterConfig notDue = getHttpHarvesterConfig();
+        notDue.setId(2);
+        notDue.setSchedule("0 0 1 1 *");
+        notDue.setLastHarvested(TestUtils.getDate("2024-01-01T00:30:00"));
+        HttpHarvesterConfig invalid = getHttpHarvesterConfig();
+        invalid.setId(3);
+        invalid.setSchedule("!!");
+
+        List<HttpHarvesterConfig> result = runScheduleBean.dueAt(Instant.parse("2024-03-01T12:00:00Z"), List.of(due, notDue, invalid));
+
+        assertThat("due configs", result, is(List.of(due)));
+    }
+
+    @Test
+    public void slotOf() throws ParseException {
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSchedule("0 * * * *");
+
+        assertThat("on the slot", runScheduleBean.slotOf(config, Instant.parse("2024-03-01T12:00:00Z")), is(Instant.parse("2024-03-01T12:00:00Z")));
+        assertThat("after the slot", runScheduleBean.slotOf(config, Instant.parse("2024-03-01T12:00:12.345Z")), is(Instant.parse("2024-03-01T12:00:00Z")));
+    }
+
+    @Test
+    public void jitterDelaysFireTimes() throws ParseException {
+        RunScheduleBean jittered = new RunScheduleBean("Europe/Copenhagen", 600);
+        HttpHarvesterConfig config = getHttpHarvesterConfig();
+        config.setSchedule("0 * * * *");
+        Duration jitter = jittered.jitterOf(config.getId());
+        assertThat("same jitter every time", jittered.jitterOf(config.getId()), is(jitter));
+        assertThat("within window", jitter.toSeconds() >= 0 && jitter.toSeconds() < 600, is(true));
+
+        Instant slot = Instant.parse("2024-03-01T13:00:00Z");
+        assertThat("next fire time", jittered.nextFireTimeAfter(config, Instant.parse("2024-03-01T12:30:00Z")), is(slot.plus(jitter)));
+        assertThat("slot", jittered.slotOf(config, slot.plus(jitter)), is(slot));
+
+        config.setLastHarvested(Date.from(slot.plus(jitter).plusSeconds(5)));
+        assertThat("after harvest", jittered.nextFireTime(config, Instant.now()), is(slot.plus(Duration.ofHours(1)).plus(jitter)));
+    }
+
+    @Test
+    public void jitterSpreadsConfigs() {
+        RunScheduleBean jittered = new RunScheduleBean("Europe/Copenhagen", 600);
+        Set<Duration> jitters = IntStream.rangeClosed(1, 100)
+                .mapToObj(jittered::jitterOf)
+                .collect(Collectors.toSet());
+        assertThat("distinct jitters", jitters.size() > 80, is(true));
+        assertThat("no jitter by default", runScheduleBean.jitterOf(42), is(Duration.ZERO));
+    }
+
+    @Test
+    public void missedFireTimesAreRunOnceByDefault() {
+        HarvesterSchedule config = behind(MisfirePolicy.RUN_ONCE, null);
+
+        assertThat("due at the first missed fire time", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T09:00:00Z")));
+        assertThat("misfire", runScheduleBean.isMisfire(config, NOW), is(true));
+        assertThat("not catching up", runScheduleBean.caughtUpUntil(config, NOW), is(nullValue()));
+    }
+
+    @Test
+    public void missedFireTimesAreSkipped() {
+        HarvesterSchedule config = behind(MisfirePolicy.SKIP, null);
+
+        assertThat("due at the next fire time", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T13:00:00Z")));
+        assertThat("no misfire", runScheduleBean.isMisfire(config, NOW), is(false));
+    }
+
+    @Test
+    public void missedFireTimesAreRunOneByOne() {
+        HarvesterSchedule config = behind(MisfirePolicy.RUN_ALL, null);
+        assertThat("first missed", runScheduleBean.caughtUpUntil(config, NOW), is(Instant.parse("2024-03-01T09:00:00Z")));
+
+        config = caughtUp(config, NOW, Instant.parse("2024-03-01T09:00:00Z"));
+        assertThat("next missed", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T10:00:00Z")));
+
+        config = caughtUp(config, NOW, Instant.parse("2024-03-01T11:00:00Z"));
+        assertThat("still behind", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T12:00:00Z")));
+        assertThat("caught up", runScheduleBean.caughtUpUntil(config, NOW), is(nullValue()));
+
+        config = caughtUp(config, NOW, null);
+        assertThat("counts from the last harvest", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T13:00:00Z")));
+    }
+
+    @Test
+    public void missedFireTimesAreLimited() {
+        HarvesterSchedule config = behind(MisfirePolicy.RUN_ALL, 2);
+
+        assertThat("latest two missed", runScheduleBean.caughtUpUntil(config, NOW), is(Instant.parse("2024-03-01T11:00:00Z")));
+    }
+
+    @Test
+    public void lateHarvestWithinThresholdIsNoMisfire() {
+        HarvesterSchedule config = harvested(behind(MisfirePolicy.SKIP, null), Instant.parse("2024-03-01T11:10:00Z"));
+
+        assertThat("due at the fire time", runScheduleBean.nextFireTime(config, Instant.parse("2024-03-01T12:04:00Z")), is(Instant.parse("2024-03-01T12:00:00Z")));
+    }
+
+    @Test
+    public void polledFireTimesAreNoMisfire() {
+        HarvesterSchedule config = behind(MisfirePolicy.RUN_ONCE, null);
+        runScheduleBean.markPolled(config.getId(), Instant.parse("2024-03-01T12:00:10Z"));
+
+        assertThat("no misfire", runScheduleBean.isMisfire(config, NOW), is(false));
+        assertThat("due at the next fire time", runScheduleBean.nextFireTime(config, NOW), is(Instant.parse("2024-03-01T13:00:00Z")));
+
+        config = harvested(config, Instant.parse("2024-03-01T13:00:05Z"));
+        assertThat("harvest supersedes the mark", runScheduleBean.nextFireTime(config, Instant.parse("2024-03-01T13:30:00Z")), is(Instant.parse("2024-03-01T14:00:00Z")));
+
+        runScheduleBean.forget(config.getId());
+        assertThat("forgotten", runScheduleBean.isMisfire(behind(MisfirePolicy.RUN_ONCE, null), NOW), is(true));
+    }
+
+    @Test
+    public void runOnceIsDueAtItsNextFireTime() {
+        assertDueAtNextFireTime(runScheduleBean, behind(MisfirePolicy.RUN_ONCE, null));
+        assertDueAtNextFireTime(new RunScheduleBean("Europe/Copenhagen", 600), behind(MisfirePolicy.RUN_ONCE, null));
+    }
+
+    @Test
+    public void skipIsDueAtItsNextFireTime() {
+        assertDueAtNextFireTime(runScheduleBean, behind(MisfirePolicy.SKIP, null));
+        assertDueAtNextFireTime(new RunScheduleBean("Europe/Copenhagen", 600), behind(MisfirePolicy.SKIP, null));
+    }
+
+    @Test
+    public void runAllIsDueAtItsNextFireTime() {
+        HarvesterSchedule config = behind(MisfirePolicy.RUN_ALL, null);
+        assertDueAtNextFireTime(runScheduleBean, config);
+        assertDueAtNextFireTime(runScheduleBean, caughtUp(config, NOW, Instant.parse("2024-03-01T10:00:00Z")));
+        assertDueAtNextFireTime(new RunScheduleBean("Europe/Copenhagen", 600), config);
+    }
+
+    /**
+     * A harvest is planned for the next fire time of its config, and must not be skipped when it is dispatched then
+     */
+    private static void assertDueAtNextFireTime(RunScheduleBean bean, HarvesterSchedule config) {
+        Instant fireTime = bean.nextFireTime(config, NOW);
+        assertThat("not skipped at " + fireTime, bean.shouldSkip(config, fireTime), is(false));
+        assertThat("not due before " + fireTime, bean.shouldSkip(config, fireTime.minusSeconds(1)), is(true));
+        assertThat("due at " + fireTime, bean.dueAt(fireTime, List.of(config)), is(List.of(config)));
+    }
+
+    private static HarvesterSchedule behind(MisfirePolicy misfirePolicy, Integer misfireLimit) {
+        return new HarvesterSchedule(1, HarvesterType.HTTP, "0 * * * *", true, Date.from(Instant.parse("2024-03-01T08:00:30Z")), null, misfirePolicy, misfireLimit, null, null, null);
+    }
+
+    private static HarvesterSchedule harvested(HarvesterSchedule config, Instant lastHarvested) {
+        return caughtUp(config, lastHarvested, null);
+    }
+
+    private static HarvesterSchedule caughtUp(HarvesterSchedule config, Instant lastHarvested, Instant caughtUpUntil) {
+        return new HarvesterSchedule(config.getId(), config.getType(), config.getSchedule(), true, Date.from(lastHarvested),
+                null, config.getMisfirePolicy(), config.getMisfireLimit(), null, null,
+                caughtUpUntil == null ? null : Date.from(caughtUpUntil));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RunningTasksTest {
+    private final MetricRegistry metricRegistry = mock(MetricRegistry.class);
+    private final Counter coalesced = mock(Counter.class);
+    private final RunningTasks runningTasks = new RunningTasks(metricRegistry);
+
+    @Test
+    public void duplicateSubmissionsAreCoalesced() {
+        when(metricRegistry.counter(anyString())).thenReturn(coalesced);
+
+        assertThat("first submission", runningTasks.enqueue(1), is(true));
+        assertThat("second submission", runningTasks.enqueue(1), is(false));
+        assertThat("other config", runningTasks.enqueue(2), is(true));
+        assertThat("pending", runningTasks.pendingSize(), is(2));
+        verify(coalesced, times(1)).inc();
+    }
+
+    @Test
+    public void runningTaskIsNotQueuedAgain() {
+        when(metricRegistry.counter(anyString())).thenReturn(coalesced);
+        AtomicInteger runs = new AtomicInteger();
+
+        runningTasks.enqueue(1);
+        runningTasks.run(1, v -> {
+            runs.incrementAndGet();
+            assertThat("no longer pending", runningTasks.pendingSize(), is(0));
+            assertThat("running", runningTasks.size(), is(1));
+            assertThat("submission while running", runningTasks.enqueue(1), is(false));
+            assertThat("bails out", runningTasks.run(1, w -> runs.incrementAndGet()), is(false));
+        });
+
+        assertThat("ran once", runs.get(), is(1));
+        assertThat("done", runningTasks.size(), is(0));
+        assertThat("can be queued again", runningTasks.enqueue(1), is(true));
+    }
+
+    @Test
+    public void taskWaitingForRetryIsNotQueuedAgain() {
+        when(metricRegistry.counter(anyString())).thenReturn(coalesced);
+
+        runningTasks.enqueue(1);
+        runningTasks.run(1, v -> {});
+        runningTasks.requeue(1);
+
+        assertThat("submission while waiting for retry", runningTasks.enqueue(1), is(false));
+        runningTasks.cancel(1);
+        assertThat("can be queued again", runningTasks.enqueue(1), is(true));
+    }
+
+    @Test
+    public void submissionWhileATaskStartsIsCoalesced() throws InterruptedException {
+        when(metricRegistry.counter(anyString())).thenReturn(coalesced);
+        AtomicInteger bailedOut = new AtomicInteger();
+        // every submission which gets through is run, and must never find another task of the config running
+        Runnable submitter = () -> {
+            for (int i = 0; i < 20_000; i++) {
+                if (runningTasks.enqueue(1) && !runningTasks.run(1, v -> {})) {
+                    bailedOut.incrementAndGet();
+                }
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(submitter);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat("bailed out", bailedOut.get(), is(0));
+        assertThat("nothing pending", runningTasks.pendingSize(), is(0));
+        assertThat("nothing running", runningTasks.size(), is(0));
+    }
+
+    @Test
+    public void longestRunningTaskIsTheOldest() {
+        runningTasks.run(1, v -> {
+            sleep(50);
+            runningTasks.run(2, w -> assertThat("oldest task", runningTasks.getLongestRunningTask().toMillis() >= 50, is(true)));
+        });
+
+        assertThat("nothing running", runningTasks.getLongestRunningTask(), is(Duration.ZERO));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
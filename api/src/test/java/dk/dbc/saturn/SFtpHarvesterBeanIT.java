@@ -9,12 +9,14 @@ import dk.dbc.commons.sftpclient.SFTPConfig;
 import dk.dbc.commons.sftpclient.SFtpClient;
 import dk.dbc.proxy.ProxyBean;
 import dk.dbc.saturn.entity.SFtpHarvesterConfig;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -25,6 +27,8 @@ import java.util.Set;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
 
 public class SFtpHarvesterBeanIT extends AbstractIntegrationTest {
     private static final SFTPConfig sftpConfig = new SFTPConfig()
@@ -121,6 +125,7 @@ public class SFtpHarvesterBeanIT extends AbstractIntegrationTest {
     private static SFtpHarvesterBean getSFtpHarvesterBean() {
         SFtpHarvesterBean sFtpHarvesterBean = new SFtpHarvesterBean();
         sFtpHarvesterBean.proxyBean = new ProxyBean();
+        sFtpHarvesterBean.warmConnections = new WarmConnections(mock(MetricRegistry.class, RETURNS_DEEP_STUBS), Clock.systemUTC());
         return sFtpHarvesterBean;
     }
 
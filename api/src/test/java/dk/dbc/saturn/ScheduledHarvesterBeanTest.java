@@ -5,50 +5,57 @@
 
 package dk.dbc.saturn;
 
-import dk.dbc.proxy.ProxyBean;
-import dk.dbc.saturn.entity.AbstractHarvesterConfigEntity;
+import dk.dbc.saturn.api.HarvesterType;
+import dk.dbc.saturn.entity.HarvesterSchedule;
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
-import dk.dbc.saturn.job.JobSenderBean;
 import org.junit.Test;
 
 import java.text.ParseException;
-import java.util.Collections;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.List;
-import java.util.Set;
+import java.util.Optional;
 
 import static dk.dbc.saturn.TestUtils.getHttpHarvesterConfig;
-import static org.mockito.ArgumentMatchers.any;
+import static dk.dbc.saturn.TestUtils.makeMetricRegistry;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class ScheduledHarvesterBeanTest {
-    private static final JobSenderBean JOB_SENDER_BEAN = mock(JobSenderBean.class);
-    private static final RunningTasks runningTasks = new RunningTasks();
-    HarvesterConfigRepository harvesterConfigRepository = mock(HarvesterConfigRepository.class);
+    private static final Instant NOW = Instant.parse("2024-03-01T12:30:00Z");
+    private final HarvesterConfigRepository harvesterConfigRepository = mock(HarvesterConfigRepository.class);
+    private final RunScheduleBean runScheduleBean = new RunScheduleBean("Europe/Copenhagen");
+    private final HarvestPlan harvestPlan = new HarvestPlan(Clock.fixed(NOW, ZoneOffset.UTC), runScheduleBean);
 
     @Test
-    public void test_harvest() throws HarvestException, ParseException {
-        Set<FileHarvest> fileHarvests = Set.of(new MockFileHarvest("spongebob", "spongebob", 3));
-        List<HttpHarvesterConfig> httpConfigs = Collections.singletonList(getHttpHarvesterConfig());
-        ScheduledHarvesterBean scheduledHarvesterBean = makeScheduledHarvesterBean(fileHarvests);
-        when(harvesterConfigRepository.list(HttpHarvesterConfig.class, 0, 0)).thenReturn(httpConfigs);
+    public void test_harvest() throws ParseException {
+        HarvesterSchedule enabled = scheduleOf(getHttpHarvesterConfig());
+        HttpHarvesterConfig disabledConfig = getHttpHarvesterConfig();
+        disabledConfig.setId(2);
+        disabledConfig.setEnabled(false);
+        HarvesterSchedule disabled = scheduleOf(disabledConfig);
+        when(harvesterConfigRepository.listSchedules()).thenReturn(List.of(enabled, disabled));
+        // planned while it was still enabled
+        harvestPlan.plan(disabled.getId(), HarvesterType.HTTP, NOW);
+        ScheduledHarvesterBean scheduledHarvesterBean = makeScheduledHarvesterBean();
 
         scheduledHarvesterBean.harvest();
+
+        assertThat("enabled config planned", harvestPlan.dueOf(enabled.getId()), is(Optional.of(runScheduleBean.nextFireTime(enabled, NOW))));
+        assertThat("disabled config not planned", harvestPlan.dueOf(disabled.getId()), is(Optional.empty()));
+        assertThat("plan size", harvestPlan.size(), is(1));
+    }
+
+    private ScheduledHarvesterBean makeScheduledHarvesterBean() {
+        HarvesterConfigIndex configIndex = new HarvesterConfigIndex(harvesterConfigRepository, harvestPlan, runScheduleBean, makeMetricRegistry());
+        return new ScheduledHarvesterBean(mock(HTTPHarvesterBean.class), mock(FtpHarvesterBean.class), mock(SFtpHarvesterBean.class), harvesterConfigRepository,
+                configIndex, harvestPlan);
     }
 
-    private ScheduledHarvesterBean makeScheduledHarvesterBean(Set<FileHarvest> fileHarvests) throws HarvestException {
-        HTTPHarvesterBean httpHarvesterBean = new HTTPHarvesterBean(harvesterConfigRepository, JOB_SENDER_BEAN, new ProgressTrackerBean(), mock(ProxyBean.class), new RunningTasks()) {
-            @Override
-            public Set<FileHarvest> listFiles(HttpHarvesterConfig config) {
-                return fileHarvests;
-            }
-        };
-        SFtpHarvesterBean sFtpHarvesterBean = mock(SFtpHarvesterBean.class);
-        FtpHarvesterBean ftpHarvesterBean = mock(FtpHarvesterBean.class);
-        final ScheduledHarvesterBean scheduledHarvesterBean = new ScheduledHarvesterBean(httpHarvesterBean, ftpHarvesterBean, sFtpHarvesterBean, harvesterConfigRepository);
-        for (Harvester<? extends AbstractHarvesterConfigEntity> c : List.of(sFtpHarvesterBean, ftpHarvesterBean)) {
-            when(c.listFiles(any())).thenReturn(Set.of());
-        }
-        return scheduledHarvesterBean;
+    private static HarvesterSchedule scheduleOf(HttpHarvesterConfig config) {
+        return new HarvesterSchedule(config.getId(), HarvesterType.HTTP, config.getSchedule(), config.isEnabled(), config.getLastHarvested(), config.getSeqno());
     }
 }
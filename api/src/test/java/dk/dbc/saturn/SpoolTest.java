@@ -0,0 +1,99 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final MetricRegistry metricRegistry = mock(MetricRegistry.class);
+    private final Counter hits = mock(Counter.class);
+    private final Counter misses = mock(Counter.class);
+
+    public SpoolTest() {
+        when(metricRegistry.counter(anyString())).thenReturn(mock(Counter.class));
+        when(metricRegistry.counter("harvest_spool_hits")).thenReturn(hits);
+        when(metricRegistry.counter("harvest_spool_misses")).thenReturn(misses);
+    }
+
+    @Test
+    public void spooledFileIsReplayedAndDeletedWhenClosed() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Spool spool = new Spool(dir, 1000, metricRegistry);
+
+        try (Spool.Spooled spooled = spool.reserve(5)) {
+            assertThat("reserved", spooled, is(notNullValue()));
+            assertThat("filled", spooled.fill(new ByteArrayInputStream("bobby".getBytes())), is(true));
+            assertThat("size", spooled.getSize(), is(5L));
+            assertThat("first", read(spooled), is("bobby"));
+            assertThat("replay", read(spooled), is("bobby"));
+        }
+
+        verify(hits).inc();
+        assertThat("quota given back", spool.getUsed(), is(0L));
+        try (var files = Files.list(dir)) {
+            assertThat("spool file deleted", files.count(), is(0L));
+        }
+    }
+
+    @Test
+    public void fileWhichDoesNotFitIsNotSpooled() throws IOException {
+        Spool spool = new Spool(folder.getRoot().toPath(), 10, metricRegistry);
+
+        assertThat("too large", spool.reserve(20), is(nullValue()));
+        assertThat("size unknown", spool.reserve(null), is(nullValue()));
+        try (Spool.Spooled spooled = spool.reserve(4)) {
+            assertThat("larger than reported", spooled.fill(new ByteArrayInputStream(new byte[20])), is(false));
+        }
+        assertThat("quota given back", spool.getUsed(), is(0L));
+    }
+
+    @Test
+    public void spoolFilesOfAnEarlierRunAreSweptAtStartup() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("saturn123.spool"), new byte[100]);
+        Files.write(dir.resolve("other"), new byte[7]);
+
+        Spool spool = new Spool(dir, 1000, metricRegistry);
+
+        assertThat("spool file deleted", Files.exists(dir.resolve("saturn123.spool")), is(false));
+        assertThat("other file kept", Files.exists(dir.resolve("other")), is(true));
+        assertThat("room taken by other files", spool.getUsed(), is(7L));
+    }
+
+    @Test
+    public void disabledSpoolReservesNothing() throws IOException {
+        Spool spool = new Spool(null, 1000, metricRegistry);
+
+        assertThat("disabled", spool.reserve(5), is(nullValue()));
+    }
+
+    private static String read(Spool.Spooled spooled) throws IOException {
+        try (InputStream is = spooled.open()) {
+            return new String(is.readAllBytes());
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package dk.dbc.saturn;
 
 import dk.dbc.saturn.entity.HttpHarvesterConfig;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
 
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+
 public class TestUtils {
     public static TimeZone TIME_ZONE = TimeZone.getTimeZone("Europe/Copenhagen");
     public static HttpHarvesterConfig getHttpHarvesterConfig() throws ParseException {
@@ -23,6 +27,13 @@ public class TestUtils {
         return config;
     }
 
+    /**
+     * @return metric registry which hands out a mock for every metric
+     */
+    public static MetricRegistry makeMetricRegistry() {
+        return mock(MetricRegistry.class, RETURNS_MOCKS);
+    }
+
     public static Date getDate(String date) throws ParseException {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
         sdf.setTimeZone(TIME_ZONE);
@@ -0,0 +1,135 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.saturn;
+
+import dk.dbc.saturn.api.HarvesterType;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WarmConnectionsTest {
+    private static final Instant NOW = Instant.parse("2024-03-01T12:00:00Z");
+    private final Timer saved = mock(Timer.class);
+    private final Counter unused = mock(Counter.class);
+    private final WarmConnections warmConnections = new WarmConnections(makeMetricRegistry(), Clock.fixed(NOW, ZoneOffset.UTC));
+
+    @Test
+    public void harvestUsesPrewarmedConnection() {
+        Connection warm = new Connection();
+        warmConnections.warm(1, HarvesterType.FTP, NOW.plusSeconds(30), () -> {}, () -> warm, Connection::close);
+
+        Connection connection = warmConnections.connect(1, HarvesterType.FTP, Connection.class, Connection::new, c -> true);
+
+        assertThat("connection", connection, is(sameInstance(warm)));
+        assertThat("closed", warm.closed, is(false));
+        assertThat("size", warmConnections.size(), is(0));
+        verify(saved).update(any());
+    }
+
+    @Test
+    public void unusablePrewarmedConnectionIsReplaced() {
+        Connection warm = new Connection();
+        warmConnections.warm(1, HarvesterType.SFTP, NOW.plusSeconds(30), () -> {}, () -> warm, Connection::close);
+
+        Connection connection = warmConnections.connect(1, HarvesterType.SFTP, Connection.class, Connection::new, c -> {
+            throw new IllegalStateException("connection reset");
+        });
+
+        assertThat("connection", connection, is(not(sameInstance(warm))));
+        assertThat("closed", warm.closed, is(true));
+        verify(unused).inc();
+        verify(saved, never()).update(any());
+    }
+
+    @Test
+    public void unusedConnectionIsClosed() {
+        Connection late = new Connection();
+        Connection early = new Connection();
+        warmConnections.warm(1, HarvesterType.FTP, NOW.minus(WarmConnections.UNUSED_AFTER).minusSeconds(1), () -> {}, () -> late, Connection::close);
+        warmConnections.warm(2, HarvesterType.FTP, NOW.plusSeconds(30), () -> {}, () -> early, Connection::close);
+
+        warmConnections.expire();
+
+        assertThat("unused closed", late.closed, is(true));
+        assertThat("upcoming kept", early.closed, is(false));
+        assertThat("size", warmConnections.size(), is(1));
+    }
+
+    @Test
+    public void fireTimeIsOnlyClaimedOnce() {
+        assertThat("first", warmConnections.claim(1, NOW), is(true));
+        assertThat("again", warmConnections.claim(1, NOW), is(false));
+        assertThat("next fire time", warmConnections.claim(1, NOW.plusSeconds(3600)), is(true));
+    }
+
+    @Test
+    public void pastFireTimesAreForgotten() {
+        warmConnections.claim(1, NOW.minus(WarmConnections.UNUSED_AFTER).minusSeconds(1));
+        warmConnections.claim(2, NOW.plusSeconds(30));
+
+        warmConnections.expire();
+
+        assertThat("claimed", warmConnections.claimed(), is(1));
+    }
+
+    @Test
+    public void permitIsHandedOverToTheHarvest() {
+        AtomicInteger released = new AtomicInteger();
+        warmConnections.warm(1, HarvesterType.FTP, NOW.plusSeconds(30), released::incrementAndGet, Connection::new, Connection::close);
+
+        HostPermits.Permit permit = warmConnections.takePermit(1);
+        warmConnections.connect(1, HarvesterType.FTP, Connection.class, Connection::new, c -> false);
+
+        assertThat("not released with the discarded connection", released.get(), is(0));
+        permit.close();
+        assertThat("released by the harvest", released.get(), is(1));
+        assertThat("no permit left", warmConnections.takePermit(1), is(nullValue()));
+    }
+
+    @Test
+    public void permitIsReleasedWithUnusedConnection() {
+        AtomicInteger released = new AtomicInteger();
+        warmConnections.warm(1, HarvesterType.FTP, NOW.minus(WarmConnections.UNUSED_AFTER).minusSeconds(1), released::incrementAndGet, Connection::new, Connection::close);
+
+        warmConnections.expire();
+
+        assertThat("released", released.get(), is(1));
+    }
+
+    private MetricRegistry makeMetricRegistry() {
+        MetricRegistry metricRegistry = TestUtils.makeMetricRegistry();
+        when(metricRegistry.timer(eq("harvest_prewarm_saved"), any(Tag.class))).thenReturn(saved);
+        when(metricRegistry.counter(eq("harvest_prewarm_unused"), any(Tag.class))).thenReturn(unused);
+        return metricRegistry;
+    }
+
+    private static class Connection {
+        private boolean closed = false;
+
+        private void close() {
+            closed = true;
+        }
+    }
+}
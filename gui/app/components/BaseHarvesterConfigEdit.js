@@ -51,6 +51,41 @@ const AGENCY_HELP =
     </div>
 
 
+const MISFIRE_POLICY_HELP =
+    <div>
+        <div className='help-title'>Hvad der sker med kørsler som er sprunget over, f.eks. fordi saturn har været nede</div>
+        <div className='help-indent'>KØR EN GANG</div>
+        <div className='help-text'>Høsteren køres en gang for alle de oversprungne kørsler</div>
+        <div className='help-indent'>SPRING OVER</div>
+        <div className='help-text'>Høsteren venter til næste planlagte kørsel</div>
+        <div className='help-indent'>KØR ALLE</div>
+        <div className='help-text'>Høsteren køres en gang for hver oversprungen kørsel, dog højst det antal gange
+            der er angivet i "Maks. indhentede kørsler" (standard 24)</div>
+    </div>
+
+const TRANSFER_PARALLELISM_HELP =
+    <div>
+        <div className='help-title'>Antal filer fra en hentning, der overføres samtidig</div>
+        <div className='help-text'>Hver fil får sin egen forbindelse til serveren, dog højst så mange som serveren må have, og højst 16.</div>
+        <div className='help-text'>Hvis feltet er tomt, overføres filerne en ad gangen.</div>
+        <div className='help-text'>Eksempel:</div>
+        <div className='help-indent'>4</div>
+    </div>
+
+const MISFIRE_POLICY_OPTIONS = [
+    {
+        label: "KØR EN GANG",
+        value: "RUN_ONCE",
+    },
+    {
+        label: "SPRING OVER",
+        value: "SKIP",
+    },
+    {
+        label: "KØR ALLE",
+        value: "RUN_ALL",
+    }
+];
 
 class FormEntry extends React.Component {
     constructor(props) {
@@ -294,6 +329,17 @@ class BaseHarvesterConfigEdit extends React.Component {
                 <FormEntry label="Biblioteksnummer+præfiks" name="agency" value={config.agency} help={AGENCY_HELP}
                            onChangeCallback={this.onChangeCallback}/>
                 {this.props.children}
+                <FormSelect label="Oversprungne kørsler" name="misfirePolicy" value={config.misfirePolicy || "RUN_ONCE"}
+                            onChangeCallback={this.onChangeCallback} options={MISFIRE_POLICY_OPTIONS}
+                            help={MISFIRE_POLICY_HELP}/>
+                {config.misfirePolicy === "RUN_ALL" ?
+                    <FormEntry label="Maks. indhentede kørsler" name="misfireLimit"
+                               value={config.misfireLimit == null ? "" : String(config.misfireLimit)}
+                               onChangeCallback={this.onChangeCallback}/>
+                    : <div/> }
+                <FormEntry label="Samtidige overførsler" name="transferParallelism" help={TRANSFER_PARALLELISM_HELP}
+                           value={config.transferParallelism == null ? "" : String(config.transferParallelism)}
+                           onChangeCallback={this.onChangeCallback}/>
                 <FormCheckbox label="Gzip udgående fil" name="gzip" enabled={config.gzip}
                               onChangeCallback={this.onChangeCallback}/>
                 <FormCheckbox label="Aktiv" name="enabled" enabled={config.enabled}
@@ -83,6 +83,16 @@ const FILES_PATTERN_HELP =
         <div className='help-indent'>*records.utf8</div>
     </div>
 
+const PREWARM_SECONDS_HELP =
+    <div>
+        <div className='help-title'>Antal sekunder før planlagt hentning, hvor forbindelsen til serveren åbnes og der logges ind</div>
+        <div className='help-text'>Så venter hentningen ikke på login. Skal være kortere end den tid, serveren holder en ubrugt forbindelse åben.</div>
+        <div className='help-text'>Højst 300 sekunder, større værdier behandles som 300.</div>
+        <div className='help-text'>Hvis feltet er tomt, åbnes forbindelsen når hentningen starter.</div>
+        <div className='help-text'>Eksempel:</div>
+        <div className='help-indent'>30</div>
+    </div>
+
 
 
 class FtpHarvesterConfigEdit extends React.Component {
@@ -166,6 +176,18 @@ class FtpHarvesterConfigEdit extends React.Component {
                 case "gzip":
                     config.gzip = form[i].checked;
                     break;
+                case "misfirePolicy":
+                    config.misfirePolicy = form[i].value;
+                    break;
+                case "misfireLimit":
+                    config.misfireLimit = form[i].value === "" ? null : Number.parseInt(form[i].value);
+                    break;
+                case "transferParallelism":
+                    config.transferParallelism = form[i].value === "" ? null : Number.parseInt(form[i].value);
+                    break;
+                case "prewarmSeconds":
+                    config.prewarmSeconds = form[i].value === "" ? null : Number.parseInt(form[i].value);
+                    break;
                 default:
                     break;
             }
@@ -246,6 +268,9 @@ class FtpHarvesterConfigEdit extends React.Component {
                            onChangeCallback={this.onChangeCallback}/>
                 <FormEntry label="Filnavnsstruktur" name="filesPattern" value={getStringValue(this.state.config.filesPattern)} help={FILES_PATTERN_HELP}
                            onChangeCallback={this.onChangeCallback}/>
+                <FormEntry label="Forbind sekunder før" name="prewarmSeconds" help={PREWARM_SECONDS_HELP}
+                           value={this.state.config.prewarmSeconds == null ? "" : String(this.state.config.prewarmSeconds)}
+                           onChangeCallback={this.onChangeCallback}/>
             </BaseHarvesterConfigEdit>
         )
     }
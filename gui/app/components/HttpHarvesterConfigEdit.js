@@ -127,6 +127,15 @@ class HttpHarvesterConfigEdit extends React.Component {
                 case "gzip":
                     config.gzip = form[i].checked;
                     break;
+                case "misfirePolicy":
+                    config.misfirePolicy = form[i].value;
+                    break;
+                case "misfireLimit":
+                    config.misfireLimit = form[i].value === "" ? null : Number.parseInt(form[i].value);
+                    break;
+                case "transferParallelism":
+                    config.transferParallelism = form[i].value === "" ? null : Number.parseInt(form[i].value);
+                    break;
                 case "listFilesHandler":
                     config.listFilesHandler = form[i].value;
                     break;
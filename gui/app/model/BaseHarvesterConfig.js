@@ -73,6 +73,9 @@ class BaseHarvesterConfig {
         config.seqnoExtract = json.seqnoExtract;
         config.agency = json.agency;
         config.enabled = json.enabled;
+        config.misfirePolicy = json.misfirePolicy;
+        config.misfireLimit = json.misfireLimit;
+        config.transferParallelism = json.transferParallelism;
         config.lastHarvested = json.lastHarvested;
         config.progress = json.progress ? json.progress.message : "";
         config.running = json.progress ? json.progress.running : false;
@@ -31,6 +31,7 @@ class FtpHarvesterConfig extends BaseHarvesterConfig {
         config.password = json.password;
         config.dir = json.dir;
         config.filesPattern = json.filesPattern;
+        config.prewarmSeconds = json.prewarmSeconds;
         config.lastHarvested = json.lastHarvested;
         return config;
     }